@@ -9,16 +9,47 @@ package com.programmaticallyspeaking.tinyws;
 
 import javax.net.ssl.*;
 import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -29,7 +60,7 @@ import java.util.function.Supplier;
  * <li>Add one or more handler factories using the {@link Server#addHandlerFactory(String, Supplier)} method.
  * <li>Start the server using {@link Server#start()}.
  * <li>Connect clients...
- * <li>Stop using {@link Server#stop()}.
+ * <li>Stop using {@link Server#stop()}, or {@link Server#stopGracefully(Duration)} to drain connected clients.
  * </ol>
  *
  * The server implementation passes all tests of <a href="https://github.com/crossbario/autobahn-testsuite">
@@ -41,16 +72,56 @@ public class Server {
 
     private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
     private static final int SupportedVersion = 13;
+    private static final int MaxHeaderLength = 10; // 2 + 8 (extended length)
+    private static final int MaskingKeyLength = 4;
+
+    // Maximum size of the plaintext of a TLS record, see https://tools.ietf.org/html/rfc5246#section-6.2.1
+    private static final int MaxTLSPlaintextLength = 16384;
+
+    // Maximum payload size of a frame that fits in a full TLS record together with its (4-byte) header
+    private static final int RecordAlignedFrameSize = MaxTLSPlaintextLength - 4;
+
+    // Size classes of the pool for frame payloads and encoded messages, see BufferPool
+    private static final int[] FrameBufferClasses = BufferPool.powerOfTwoClasses(256, 65536);
+
+    // Maximum number of bytes to read from or write to a socket channel in one go, see ChannelInputStream
+    private static final int MaxChannelChunk = 65536;
+
+    // Maximum length of a close reason in bytes, since a control frame payload is at most 125 bytes
+    private static final int MaxCloseReasonLength = 123;
+
+    // Maximum time to wait for a queued message that is being written before closing a slow client
+    private static final long SlowConsumerCloseGraceMillis = 1000;
+
+    // Handler invocations for messages, as non-capturing lambdas that aren't allocated per message.
+    private static final BiConsumer<WebSocketHandler, Object> TextMessageCall = (h, text) -> h.onTextMessage((CharSequence) text);
+    private static final BiConsumer<WebSocketHandler, Object> BinaryDataCall = (h, data) -> h.onBinaryData((byte[]) data);
+
+    // Pre-encoded response sent to a client that is rejected right after accept, see acceptInLoop.
+    private static final byte[] ServiceUnavailableResponse = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Connection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
 
     private final Executor mainExecutor;
     private final Options options;
     private final Logger logger;
 
-    private ServerSocket serverSocket;
-    private Map<String, Supplier<WebSocketHandler>> handlerFactories = new HashMap<>();
+    private ServerSocketChannel serverChannel;
+    private final BufferPool frameBufferPool;
+    private BufferPool sslBufferPool;
+    private final Router<Endpoint> handlerFactories = new Router<>();
 
     private FallbackHandler fallbackHandler = new DefaultFallbackHandler();
 
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final KeyedCounter<InetAddress> connectionsPerAddress = new KeyedCounter<>();
+    private final KeyedCounter<String> connectionsPerEndpoint = new KeyedCounter<>();
+
+    private final Set<ClientHandler> liveClients = ConcurrentHashMap.newKeySet();
+    private volatile boolean isDraining;
+
+    private final Topics topics;
+    private final Metrics metrics = new Metrics();
+
     /**
      * Constructs a new server instance but doesn't start listening for client connections.
      *
@@ -62,7 +133,17 @@ public class Server {
     public Server(Executor mainExecutor, Options options) {
         this.mainExecutor = mainExecutor;
         this.options = options;
-        this.logger = new Logger() {
+        this.logger = guardedLogger(options);
+        this.topics = new Topics(options.pubSubExecutor != null ? options.pubSubExecutor : mainExecutor);
+        this.frameBufferPool = new BufferPool(false, FrameBufferClasses, options.bufferPoolCapacity,
+                options.bufferLeakTracking, metrics.frameBufferPool, logger);
+    }
+
+    /**
+     * Returns a logger that logs via the logger of the options, if any, and ignores logging errors.
+     */
+    private static Logger guardedLogger(Options options) {
+        return new Logger() {
             public void log(LogLevel level, String message, Throwable error) {
                 if (isEnabledAt(level)) {
                     try {
@@ -80,23 +161,75 @@ public class Server {
         };
     }
 
+    /**
+     * Logs a message that is only created if the level is enabled. Note that a capturing lambda or a bound method
+     * reference is allocated also if the level is disabled, so code that runs per frame or per message checks the
+     * level itself instead.
+     */
     private void lazyLog(LogLevel level, Supplier<String> msgFun) {
+        lazyLog(logger, level, msgFun);
+    }
+
+    private static void lazyLog(Logger logger, LogLevel level, Supplier<String> msgFun) {
         if (logger.isEnabledAt(level)) logger.log(level, msgFun.get(), null);
     }
 
     /**
      * Adds a factory for creating handlerFactories for a specific endpoint. Handler factories must be added before the server
-     * is started. The endpoint must match a requested resource exactly to be used. The root handler factory must thus
-     * be registered for the "/" endpoint.
+     * is started. A segment of the endpoint path can be a parameter, e.g. "{id}" in "/rooms/{id}", which matches any
+     * non-empty path segment, or (only as the last segment) a wildcard, "*", which matches the rest of the path. Other
+     * segments must match a requested resource exactly. The root handler factory must thus be registered for the "/"
+     * endpoint. If several endpoints match a requested resource, literal segments are preferred over parameters,
+     * which are preferred over a wildcard. The values of parameters and wildcard are available through
+     * {@link WebSocketClient#pathParameters()}.
      *
-     * @param endpoint non-{@code null}, non-empty endpoint
+     * @param endpoint non-{@code null} endpoint starting with '/'
      * @param handlerFactory a handler factory
      * @exception IllegalStateException if the server has been started
      */
     public void addHandlerFactory(String endpoint, Supplier<WebSocketHandler> handlerFactory) {
+        addEndpoint(endpoint, new Endpoint(handlerFactory, null, 0));
+    }
+
+    /**
+     * Adds a factory for creating handlers for a specific endpoint, with a policy for clients that don't keep up
+     * with the messages sent to them. Messages sent to a client of the endpoint are queued and written by a task on
+     * the main executor, so that a sender (e.g. a topic publisher) isn't held up by a slow client. The policy decides
+     * what happens when the queued messages of a client exceed the outbound budget. See {@link SlowConsumerPolicy}
+     * for details. See {@link #addHandlerFactory(String, Supplier)} for how endpoints are matched.
+     *
+     * @param endpoint non-{@code null} endpoint starting with '/'
+     * @param handlerFactory a handler factory
+     * @param policy the non-{@code null} slow-consumer policy
+     * @param outboundBudget the maximum number of bytes of queued messages per client, which must be greater than 0
+     * @exception IllegalStateException if the server has been started
+     */
+    public void addHandlerFactory(String endpoint, Supplier<WebSocketHandler> handlerFactory, SlowConsumerPolicy policy,
+                                  long outboundBudget) {
+        if (policy == null) throw new IllegalArgumentException("Slow-consumer policy cannot be null.");
+        if (outboundBudget <= 0) throw new IllegalArgumentException("Outbound budget must be > 0");
+        addEndpoint(endpoint, new Endpoint(handlerFactory, policy, outboundBudget));
+    }
+
+    private void addEndpoint(String endpoint, Endpoint value) {
         if (endpoint == null || "".equals(endpoint)) throw new IllegalArgumentException("Endpoint must be non-empty.");
-        if (serverSocket != null) throw new IllegalStateException("Please add handler factories before starting the server.");
-        handlerFactories.put(endpoint, handlerFactory);
+        if (serverChannel != null) throw new IllegalStateException("Please add handler factories before starting the server.");
+        handlerFactories.add(endpoint, value);
+    }
+
+    /**
+     * A registered WebSocket endpoint.
+     */
+    static class Endpoint {
+        final Supplier<WebSocketHandler> handlerFactory;
+        final SlowConsumerPolicy slowConsumerPolicy; // null if senders write directly
+        final long outboundBudget;
+
+        Endpoint(Supplier<WebSocketHandler> handlerFactory, SlowConsumerPolicy slowConsumerPolicy, long outboundBudget) {
+            this.handlerFactory = handlerFactory;
+            this.slowConsumerPolicy = slowConsumerPolicy;
+            this.outboundBudget = outboundBudget;
+        }
     }
 
     /**
@@ -106,11 +239,30 @@ public class Server {
      * @param handler the fallback handler; {@code null} restores the default handler (which responds 404)
      */
     public void setFallbackHandler(FallbackHandler handler) {
-        if (serverSocket != null) throw new IllegalStateException("Please add fallback handler before starting the server.");
+        if (serverChannel != null) throw new IllegalStateException("Please add fallback handler before starting the server.");
         if (handler == null) handler = new DefaultFallbackHandler();
         fallbackHandler = handler;
     }
 
+    /**
+     * Returns the publish/subscribe facility of this server, through which WebSocket clients can be subscribed to
+     * topics and messages can be published to all subscribers of a topic.
+     *
+     * @return the topics of this server
+     */
+    public Topics topics() {
+        return topics;
+    }
+
+    /**
+     * Returns the metrics of this server.
+     *
+     * @return metrics, updated continuously while the server is running
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
     /**
      * Starts listening for client connections, using the port specified in the options passed to the constructor. If
      * a backlog was not specified in the options, the Java-default backlog (50 for Java 8) is used.
@@ -122,20 +274,39 @@ public class Server {
      * @exception GeneralSecurityException if an SSL related error occurs
      */
     public void start() throws IOException, GeneralSecurityException {
-        serverSocket = createServerSocket();
+        if (options.shouldUseSSL()) {
+            configureSSLSessions();
+            // Network buffers are sized for the largest TLS record, which is given by the session of an engine.
+            int packetBufferSize = options.sslContext.createSSLEngine().getSession().getPacketBufferSize();
+            sslBufferPool = new BufferPool(true, new int[] { packetBufferSize }, options.bufferPoolCapacity,
+                    options.bufferLeakTracking, metrics.sslBufferPool, logger);
+        }
+        serverChannel = createServerChannel();
         mainExecutor.execute(this::acceptInLoop);
     }
 
-    private ServerSocket createServerSocket() throws IOException, GeneralSecurityException {
-        // Using backlog 0 will force ServerSocket to use the default (50).
+    private void configureSSLSessions() {
+        SSLSessionContext sessionContext = options.sslContext.getServerSessionContext();
+        if (sessionContext != null) {
+            if (options.sslSessionCacheSize != null) sessionContext.setSessionCacheSize(options.sslSessionCacheSize);
+            if (options.sslSessionTimeout != null) sessionContext.setSessionTimeout(options.sslSessionTimeout);
+        }
+    }
+
+    private ServerSocketChannel createServerChannel() throws IOException {
+        // Using backlog 0 will force the Java-default backlog (50).
         int backlog = options.backlog != null ? options.backlog : 0;
 
-        if (options.shouldUseSSL()) {
-            SSLServerSocketFactory sslServerSocketFactory = options.sslContext.getServerSocketFactory();
-            return sslServerSocketFactory.createServerSocket(options.port, backlog, options.address);
-        }
+        if (options.unixDomainSocketPath != null) return UnixDomainSockets.openServerChannel(options.unixDomainSocketPath, backlog);
 
-        return new ServerSocket(options.port, backlog, options.address);
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(options.address, options.port), backlog);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
     }
 
     /**
@@ -144,234 +315,687 @@ public class Server {
      * any supplied logger.
      */
     public void stop() {
-        if (serverSocket == null) return;
+        if (serverChannel == null) return;
         try {
-            serverSocket.close();
+            serverChannel.close();
         } catch (IOException e) {
             logger.log(LogLevel.WARN, "Failed to close server socket.", e);
         }
-        serverSocket = null;
+        // Closing the channel doesn't remove the socket file, which would prevent binding to it again.
+        if (options.unixDomainSocketPath != null) doIgnoringExceptions(() -> Files.deleteIfExists(options.unixDomainSocketPath));
+        serverChannel = null;
+    }
+
+    /**
+     * Stops listening for client connections and drains connected clients. WebSocket clients are closed with code
+     * 1001 (Going Away) in batches (see {@link Options#andDrainBatchSize(int)}), paced evenly across the given
+     * timeout so that the clients don't all reconnect elsewhere at the same instant. Each client is given the chance
+     * to respond to the close frame. Connections that remain when the timeout expires are closed forcibly. Drain
+     * progress is logged at INFO level.
+     *
+     * This method blocks until all connections have been closed.
+     *
+     * @param timeout the maximum time to spend draining before closing the remaining connections forcibly
+     * @return {@code true} if all connections closed before the timeout expired, {@code false} otherwise
+     * @throws InterruptedException if the calling thread is interrupted while draining, in which case the remaining
+     *                              connections are closed forcibly
+     */
+    public boolean stopGracefully(Duration timeout) throws InterruptedException {
+        if (timeout == null || timeout.isNegative()) throw new IllegalArgumentException("Timeout must be non-negative.");
+        isDraining = true;
+        stop();
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        List<ClientHandler> clients = new ArrayList<>(liveClients);
+        int batchSize = options.drainBatchSize;
+        int batchCount = (clients.size() + batchSize - 1) / batchSize;
+        // Leave one interval after the last batch, for the last clients to respond to the close frame.
+        long intervalNanos = timeout.toNanos() / (batchCount + 1);
+
+        lazyLog(LogLevel.INFO, () -> String.format("Draining %d connection(s) in %d batch(es) during %d ms.",
+                clients.size(), batchCount, timeout.toMillis()));
+
+        try {
+            for (int i = 0; i < batchCount; i++) {
+                int from = i * batchSize, to = Math.min(from + batchSize, clients.size());
+                for (ClientHandler client : clients.subList(from, to)) {
+                    // Write the close frame on the main executor, so that a slow client cannot stall the drain.
+                    mainExecutor.execute(client::goAway);
+                }
+                int batchNo = i + 1;
+                lazyLog(LogLevel.INFO, () -> String.format("Drain batch %d of %d sent, %d connection(s) remaining.",
+                        batchNo, batchCount, liveClients.size()));
+                awaitDrained(Math.min(deadline, System.nanoTime() + intervalNanos), false);
+            }
+            awaitDrained(deadline, true);
+        } finally {
+            int remaining = liveClients.size();
+            if (remaining > 0) {
+                lazyLog(LogLevel.INFO, () -> String.format("Drain timeout, closing %d remaining connection(s).", remaining));
+                liveClients.forEach(ClientHandler::abort);
+            } else {
+                logger.log(LogLevel.INFO, "All connections drained.", null);
+            }
+        }
+        return liveClients.isEmpty();
+    }
+
+    private void awaitDrained(long deadlineNanos, boolean untilEmpty) throws InterruptedException {
+        synchronized (liveClients) {
+            long remaining;
+            while ((remaining = deadlineNanos - System.nanoTime()) > 0 && (!untilEmpty || !liveClients.isEmpty())) {
+                long millis = Math.max(1, remaining / 1000000);
+                liveClients.wait(millis);
+            }
+        }
     }
 
     private void acceptInLoop() {
         try {
-            lazyLog(LogLevel.INFO, () -> "Receiving WebSocket clients at " + serverSocket.getLocalSocketAddress());
+            ServerSocketChannel channel = serverChannel;
+            SocketAddress localAddress = channel.getLocalAddress();
+            lazyLog(LogLevel.INFO, () -> "Receiving WebSocket clients at " + localAddress);
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                
-                // We need this on Linux. Without it the close frame sent just before closing the
-                // socket won't be seen by the WebSocket client.
-                clientSocket.setTcpNoDelay(true);
+                SocketChannel clientChannel = channel.accept();
+                SocketAddress remoteSocketAddress = clientChannel.getRemoteAddress();
+
+                InetAddress remoteAddress = remoteInetAddress(remoteSocketAddress);
+                if (!tryAdmit(remoteAddress)) {
+                    lazyLog(LogLevel.DEBUG, () -> String.format("Rejecting client from %s due to connection limits.",
+                            remoteSocketAddress));
+                    reject(clientChannel);
+                    continue;
+                }
 
-                mainExecutor.execute(new ClientHandler(clientSocket));
+                ClientHandler handler = null;
+                try {
+                    // We need this on Linux. Without it the close frame sent just before closing the
+                    // socket won't be seen by the WebSocket client.
+                    if (remoteSocketAddress instanceof InetSocketAddress) clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    handler = new ClientHandler(clientChannel, remoteSocketAddress);
+                    // Register before the handler runs, so that a drain that starts while the handler is queued on
+                    // the executor sees (and closes) the connection.
+                    liveClients.add(handler);
+                    mainExecutor.execute(handler);
+                } catch (Exception ex) {
+                    if (handler != null) liveClients.remove(handler);
+                    release(remoteAddress);
+                    doIgnoringExceptions(clientChannel::close);
+                    throw ex;
+                }
             }
-        } catch (SocketException e) {
+        } catch (ClosedChannelException e) {
             logger.log(LogLevel.DEBUG, "Server socket was closed, probably because the server was stopped.", e);
         } catch (Exception ex) {
             logger.log(LogLevel.ERROR, "Error accepting a client socket.", ex);
         }
     }
 
-    private class ClientHandler implements Runnable {
+    /**
+     * Returns the address of a client, for the per-address connection limit. A client connected via a Unix domain
+     * socket is on the same host, and is counted as the loopback address.
+     */
+    private static InetAddress remoteInetAddress(SocketAddress address) {
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * Checks the global and per-address connection limits and, if the client is admitted, counts the connection
+     * against both. An admitted connection must be released using {@link #release(InetAddress)}.
+     */
+    private boolean tryAdmit(InetAddress remoteAddress) {
+        int max = options.maxConnections;
+        while (true) {
+            int current = connectionCount.get();
+            if (max > 0 && current >= max) return false;
+            if (connectionCount.compareAndSet(current, current + 1)) break;
+        }
+        if (options.maxConnectionsPerAddress > 0 && !connectionsPerAddress.tryIncrement(remoteAddress, options.maxConnectionsPerAddress)) {
+            connectionCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void release(InetAddress remoteAddress) {
+        if (options.maxConnectionsPerAddress > 0) connectionsPerAddress.decrement(remoteAddress);
+        connectionCount.decrementAndGet();
+    }
+
+    /**
+     * Rejects a client that wasn't admitted. This happens on the accept thread, so it must be cheap. For a plain
+     * connection, we write a pre-encoded 503 response (which fits in the socket send buffer), but for SSL that
+     * would mean doing the handshake here, so we just close the connection.
+     */
+    private void reject(SocketChannel clientChannel) {
+        if (!options.shouldUseSSL()) {
+            doIgnoringExceptions(() -> clientChannel.write(ByteBuffer.wrap(ServiceUnavailableResponse)));
+        }
+        doIgnoringExceptions(clientChannel::close);
+    }
+
+    private class ClientHandler implements Runnable, MessageReceiver {
 
-        private final Socket clientSocket;
+        private final SocketAddress remoteSocketAddress;
+        private final Transport transport;
+        private final InetAddress remoteAddress;
         private final OutputStream out;
         private final InputStream in;
         private final PayloadCoder payloadCoder;
         private final FrameWriter frameWriter;
+        private final byte[] frameHeader = new byte[8];
+        private final Executor handlerDispatcher;
         private WebSocketHandler handler;
+        private WebSocketClientImpl webSocketClient;
         private volatile boolean isClosed; // potentially set from handler thread
-
-        ClientHandler(Socket clientSocket) throws IOException {
-            this.clientSocket = clientSocket;
-            out = clientSocket.getOutputStream();
-            in = clientSocket.getInputStream();
+        private volatile boolean isWebSocket;
+        private volatile boolean goAwayRequested;
+        private volatile boolean isClosing;
+        private volatile boolean isIdle;
+        private boolean isReadingPaused; // guarded by this
+        private volatile boolean closeFrameSent;
+        private volatile WebSocketClosure serverClosure; // why the server closed the connection, if not going away
+        private Endpoint endpoint;
+        private String countedEndpoint;
+        private Map<String, String> pathParameters;
+        private FrameHandler frameHandler; // the handler, if it takes data frames one by one
+        private boolean isInPassedMessage; // whether a fragmented message is being passed to the frame handler
+
+        ClientHandler(SocketChannel clientChannel, SocketAddress remoteSocketAddress) throws IOException {
+            this.remoteSocketAddress = remoteSocketAddress;
+            remoteAddress = remoteInetAddress(remoteSocketAddress);
+            transport = options.shouldUseSSL()
+                    ? new SSLTransport(clientChannel, options.sslContext.createSSLEngine(), false, sslBufferPool, metrics)
+                    : new PlainTransport(clientChannel);
+            out = transport.outputStream();
+            in = transport.inputStream();
 
             payloadCoder = new PayloadCoder();
-            frameWriter = new FrameWriter(out, payloadCoder, options.maxFrameSize);
+            frameWriter = new FrameWriter(transport, payloadCoder, options.outboundFrameSize(), frameBufferPool,
+                    options.coalescingBytes, options.coalescingDelayNanos, mainExecutor);
+            handlerDispatcher = options.handlerExecutor != null
+                    ? new SerialExecutor(options.handlerExecutor, options.maxQueuedHandlerInvocations)
+                    : null;
         }
 
+        /**
+         * Invokes the handler, either directly on the current (reading) thread or, if a handler executor has been
+         * configured, via the serial dispatcher of this connection. In the latter case, this method blocks if the
+         * dispatcher queue is full, which stops reading from the client until the handler catches up. A frame
+         * handler is always invoked directly, since the frames it gets are only valid during the invocation.
+         */
         private void invokeHandler(Consumer<WebSocketHandler> fun) {
             if (handler == null) return;
+            if (handlerDispatcher != null && frameHandler == null) {
+                WebSocketHandler h = handler;
+                handlerDispatcher.execute(() -> invokeHandler(h, fun));
+            } else {
+                invokeHandler(handler, fun);
+            }
+        }
+
+        private void invokeHandler(WebSocketHandler h, Consumer<WebSocketHandler> fun) {
+            try {
+                fun.accept(h);
+            } catch (Exception ex) {
+                logger.log(LogLevel.ERROR, "Handler invocation error.", ex);
+            }
+        }
+
+        /**
+         * Invokes the handler with an argument, like {@link #invokeHandler(Consumer)}. Given a non-capturing
+         * function, such as {@link #TextMessageCall}, nothing is allocated when the handler is invoked directly.
+         */
+        @Override
+        public void invokeHandler(BiConsumer<WebSocketHandler, Object> fun, Object arg) {
+            if (handler == null) return;
+            if (handlerDispatcher != null && frameHandler == null) {
+                WebSocketHandler h = handler;
+                handlerDispatcher.execute(() -> invokeHandler(h, fun, arg));
+            } else {
+                invokeHandler(handler, fun, arg);
+            }
+        }
+
+        private void invokeHandler(WebSocketHandler h, BiConsumer<WebSocketHandler, Object> fun, Object arg) {
             try {
-                fun.accept(handler);
+                fun.accept(h, arg);
             } catch (Exception ex) {
                 logger.log(LogLevel.ERROR, "Handler invocation error.", ex);
             }
         }
 
+        /**
+         * Initiates a close of a WebSocket connection with code 1001 (Going Away). The connection isn't closed until
+         * the client responds with a close frame (or the connection is aborted). If the WebSocket handshake hasn't
+         * completed yet, the close frame is sent once it has. An idle persistent HTTP connection is closed right away.
+         */
+        void goAway() {
+            boolean isIdle;
+            synchronized (this) {
+                goAwayRequested = true;
+                isIdle = this.isIdle;
+                if (!isIdle) {
+                    if (!isWebSocket || isClosed || closeFrameSent) return;
+                    closeFrameSent = true;
+                    // Wake up a paused reader, since we need to read the client's close frame.
+                    notifyAll();
+                }
+            }
+            // Outside of the monitor, since a client that doesn't read may block the write indefinitely, while abort()
+            // and pausing/resuming reading need the monitor.
+            if (isIdle) abort();
+            else doIgnoringExceptions(() -> frameWriter.writeClose(1001, "Going Away"));
+        }
+
+        /**
+         * Pauses or resumes reading from the client, see {@link WebSocketClient#pauseReading()}.
+         */
+        synchronized void setReadingPaused(boolean paused) {
+            if (isReadingPaused == paused) return;
+            isReadingPaused = paused;
+            lazyLog(LogLevel.DEBUG, () -> String.format("%s reading from client %s.", paused ? "Pausing" : "Resuming",
+                    remoteSocketAddress));
+            if (!paused) notifyAll();
+        }
+
+        /**
+         * Blocks the reading thread while reading is paused. Reading is resumed if the connection is closed or if
+         * the server has sent a close frame, which the client is expected to respond to.
+         */
+        private synchronized void awaitReadingResumed() throws InterruptedIOException {
+            try {
+                while (isReadingPaused && !isClosed && !closeFrameSent) wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading was paused");
+            }
+        }
+
         @Override
         public void run() {
             try {
-                communicate();
+                // A connection accepted just before the server socket was closed is aborted right away.
+                if (!isDraining) communicate();
             } catch (WebSocketClosure ex) {
                 lazyLog(LogLevel.DEBUG, () -> String.format("Closing with code %d (%s)%s", ex.code, ex.reason,
                         ex.debugDetails != null ? (" because: " + ex.debugDetails) : ""));
-                doIgnoringExceptions(() -> frameWriter.writeClose(ex.code, ex.reason));
+                if (!closeFrameSent) doIgnoringExceptions(() -> frameWriter.writeClose(ex.code, ex.reason));
                 // If the connection was closed by the client, we expect onClosedByClient to have been invoked and
                 // we must *not* invoke onClosedByServer since that would be a lie...
                 if (!ex.closedByClient)
                     invokeHandler(h -> h.onClosedByServer(ex.code, ex.reason));
+            } catch (ServiceUnavailableException ex) {
+                lazyLog(LogLevel.DEBUG, () -> String.format("Rejecting client from %s since endpoint '%s' has too many connections.",
+                        remoteSocketAddress, ex.endpoint));
+                sendServiceUnavailableResponse();
             } catch (MethodNotAllowedException ex) {
                 lazyLog(LogLevel.WARN, () -> String.format("WebSocket client from %s used a non-allowed method: %s",
-                            clientSocket.getRemoteSocketAddress(), ex.method));
+                            remoteSocketAddress, ex.method));
                 sendMethodNotAllowedResponse();
             } catch (IllegalArgumentException ex) {
                 lazyLog(LogLevel.WARN, () -> String.format("WebSocket client from %s sent a malformed request: %s",
-                        clientSocket.getRemoteSocketAddress(), ex.getMessage()));
+                        remoteSocketAddress, ex.getMessage()));
                 sendBadRequestResponse();
             } catch (FileNotFoundException ex) {
                 lazyLog(LogLevel.WARN, () -> String.format("WebSocket client from %s requested an unknown endpoint.",
-                        clientSocket.getRemoteSocketAddress()));
+                        remoteSocketAddress));
                 sendNotFoundResponse();
             } catch (SocketException ex) {
-                if (!isClosed) {
+                if (!(isClosed || isClosing)) {
                     logger.log(LogLevel.ERROR, "Client socket error.", ex);
                     invokeHandler(h -> h.onFailure(ex));
                 }
             } catch (Exception ex) {
-                logger.log(LogLevel.ERROR, "Client communication error.", ex);
-                invokeHandler(h -> h.onFailure(ex));
+                // An I/O error after we closed the connection (e.g. AsynchronousCloseException when a channel read
+                // is interrupted) is expected.
+                if (!(isClosed || isClosing) || !(ex instanceof IOException)) {
+                    logger.log(LogLevel.ERROR, "Client communication error.", ex);
+                    invokeHandler(h -> h.onFailure(ex));
+                }
+            }
+            abort();
+            transport.release();
+            if (webSocketClient != null) topics.unsubscribeAll(webSocketClient);
+            if (countedEndpoint != null) connectionsPerEndpoint.decrement(countedEndpoint);
+            release(remoteAddress);
+            liveClients.remove(this);
+            if (isDraining) {
+                synchronized (liveClients) {
+                    liveClients.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Closes the connection on request of the handler, see {@link WebSocketClient#close(int, String)}.
+         *
+         * @param code the close code, or {@code null} for 1001 (Going Away)
+         */
+        private void closeFromHandler(Integer code, String reason) {
+            // Before the handshake response has been sent, close like goAway once it has been sent.
+            if (!isWebSocket) {
+                goAwayRequested = true;
+                // The handshake may have completed since the check, without seeing the request.
+                if (isWebSocket) goAway();
+                return;
+            }
+            // The client may close the connection as soon as it sees the close frame, which is expected.
+            isClosing = true;
+            if (code != null) doIgnoringExceptions(() -> frameWriter.writeClose(code, reason));
+            else doIgnoringExceptions(() -> frameWriter.writeClose(1001, "Going Away"));
+            abort();
+        }
+
+        /**
+         * Closes the connection of a client that doesn't keep up with the messages sent to it, see
+         * {@link SlowConsumerPolicy}. The queue has been cleared, but a queued message may still be being written.
+         * The close frame is sent after that message, unless writing it takes too long, since a write to a slow client
+         * may block indefinitely. In that case, the connection is closed without a close frame.
+         */
+        private void closeSlowConsumer(int code) {
+            WebSocketClosure closure = WebSocketClosure.slowConsumer(code);
+            synchronized (this) {
+                if (isClosed || closeFrameSent) return;
+                serverClosure = closure;
+                closeFrameSent = true;
+            }
+            lazyLog(LogLevel.DEBUG, () -> String.format("Closing slow client %s with code %d.",
+                    remoteSocketAddress, code));
+            if (frameWriter.awaitQueuedWriteDone(SlowConsumerCloseGraceMillis)) {
+                doIgnoringExceptions(() -> frameWriter.writeClose(code, closure.reason));
             }
             abort();
         }
 
         private void abort() {
             if (isClosed) return;
-            doIgnoringExceptions(clientSocket::close);
+            // Mark as closed first, so that a reader that fails because of the close knows that it's expected.
             isClosed = true;
+            doIgnoringExceptions(transport::close);
+            synchronized (this) {
+                // Wake up a paused reader
+                notifyAll();
+            }
         }
 
         private void communicate() throws IOException, NoSuchAlgorithmException {
+            transport.handshake();
             maybeLogSSLDetails();
 
             Headers headers = Headers.read(in, isSSL());
-            String endpoint = headers.endpoint;
-
-            Supplier<WebSocketHandler> handlerFactory = handlerFactories.get(endpoint);
-            if (handlerFactory == null || (handler = handlerFactory.get()) == null) {
-                fallbackHandler.handle(createConnection(headers));
-                return;
+            while (!createHandler(headers)) {
+                // If the connection can be reused (HTTP/1.1 persistent connection), wait for the next request, which
+                // may be a WebSocket upgrade.
+                FallbackExchange exchange = new FallbackExchange(headers);
+                fallbackHandler.handle(exchange);
+                if (!exchange.complete() || (headers = readNextRequest()) == null) return;
             }
+            String endpoint = headers.endpoint;
+            if (handler instanceof FrameHandler) frameHandler = (FrameHandler) handler;
 
             if (!"GET".equals(headers.method)) throw new MethodNotAllowedException(headers.method);
             if (!headers.isProperUpgrade()) throw new IllegalArgumentException("Handshake has malformed upgrade.");
             if (headers.version() != SupportedVersion) throw new IllegalArgumentException("Bad version, must be: " + SupportedVersion);
 
             lazyLog(LogLevel.INFO, () -> String.format("New WebSocket client from %s at endpoint '%s'.",
-                        clientSocket.getRemoteSocketAddress(), endpoint));
+                        remoteSocketAddress, endpoint));
 
-            invokeHandler(h -> h.onOpened(new WebSocketClientImpl(frameWriter, this::abort, headers)));
+            // Messages sent from other threads when the handler is opened must wait for the handshake response.
+            frameWriter.messageLock.lock();
+            try {
+                webSocketClient = new WebSocketClientImpl(frameWriter, this::closeFromHandler, this::setReadingPaused, headers,
+                        pathParameters);
+                invokeHandler(h -> h.onOpened(webSocketClient));
 
-            String key = headers.key();
-            if (key == null) throw new IllegalArgumentException("Missing Sec-WebSocket-Key in handshake.");
+                String key = headers.key();
+                if (key == null) throw new IllegalArgumentException("Missing Sec-WebSocket-Key in handshake.");
 
-            String responseKey = createResponseKey(key);
+                String responseKey = createResponseKey(key);
 
-            lazyLog(LogLevel.TRACE, () -> String.format("Opening handshake key is '%s', sending response key '%s'.", key, responseKey));
+                lazyLog(LogLevel.TRACE, () -> String.format("Opening handshake key is '%s', sending response key '%s'.", key, responseKey));
 
-            sendHandshakeResponse(responseKey);
+                sendHandshakeResponse(responseKey);
+                isWebSocket = true;
+                // Enabled after the handshake response, since queued messages are written by another thread.
+                if (this.endpoint.slowConsumerPolicy != null) {
+                    frameWriter.useOutboundQueue(this.endpoint.slowConsumerPolicy, this.endpoint.outboundBudget, mainExecutor,
+                            metrics, code -> mainExecutor.execute(() -> closeSlowConsumer(code)));
+                }
+            } finally {
+                frameWriter.messageLock.unlock();
+            }
+            if (goAwayRequested) goAway();
 
             List<Frame> frameBatch = new ArrayList<>();
-            while (true) {
-                frameBatch.add(Frame.read(in));
-                handleBatch(frameBatch);
+            try {
+                while (true) {
+                    frameBatch.add(readFrame());
+                    // A frame that is read while reading is paused is held until reading is resumed. Thus, at most
+                    // one frame is buffered, and the rest stay in the socket buffers.
+                    awaitReadingResumed();
+                    if (frameHandler != null) passFrame(frameBatch.remove(0));
+                    else handleBatch(frameBatch);
+                }
+            } finally {
+                // Fragments of an incomplete message
+                for (Frame frame : frameBatch) frame.release(frameBufferPool);
             }
         }
 
-        private Connection createConnection(Headers headers) {
-            return new Connection() {
-                @Override public String method() { return headers.method; }
-                @Override public URI uri() { return headers.uri; }
-                @Override public InputStream inputStream() { return in; }
-                @Override public OutputStream outputStream() { return out; }
-                @Override public Iterable<String> headerNames() { return headers.headers.keySet(); }
-                @Override public Optional<String> header(String name) {
-                    if (name == null) throw new IllegalArgumentException("Header name must be non-null");
-                    String value = headers.headers.get(name);
-                    return Optional.ofNullable(value);
-                }
-                @Override
-                public void sendResponse(int statusCode, String reason, Map<String, String> headers) {
-                    if (reason == null) reason = "";
-                    if (headers == null) headers = Collections.emptyMap();
-                    ClientHandler.this.sendResponse(statusCode, reason, headers);
+        /**
+         * Creates a WebSocket handler for the endpoint of a request, if a handler factory has been registered for it.
+         *
+         * @return {@code true} if a handler was created, {@code false} if the fallback handler should handle the request
+         */
+        private boolean createHandler(Headers headers) throws ServiceUnavailableException {
+            Router.Match<Endpoint> route = handlerFactories.match(headers.endpoint);
+            if (route == null) return false;
+            // Connections are counted per registered endpoint, not per requested resource.
+            String endpoint = route.route;
+            Supplier<WebSocketHandler> handlerFactory = route.value.handlerFactory;
+            this.endpoint = route.value;
+            pathParameters = route.parameters;
+            if (options.maxConnectionsPerEndpoint > 0) {
+                // Check before invoking the factory, so that a rejected client doesn't cause a handler to be created.
+                if (!connectionsPerEndpoint.tryIncrement(endpoint, options.maxConnectionsPerEndpoint))
+                    throw new ServiceUnavailableException(endpoint);
+                countedEndpoint = endpoint;
+            }
+            if ((handler = handlerFactory.get()) != null) return true;
+            if (countedEndpoint != null) {
+                // The connection may be reused for another request, so don't keep counting it.
+                connectionsPerEndpoint.decrement(countedEndpoint);
+                countedEndpoint = null;
+            }
+            return false;
+        }
+
+        /**
+         * Waits for the next request on a persistent connection.
+         *
+         * @return the headers of the next request, or {@code null} if the client closed the connection
+         */
+        private Headers readNextRequest() throws IOException {
+            lazyLog(LogLevel.TRACE, () -> String.format("Keeping the connection from %s open for another request.",
+                    remoteSocketAddress));
+            isIdle = true;
+            try {
+                // goAway aborts an idle connection, so check for draining after marking the connection as idle.
+                return isDraining ? null : Headers.read(in, isSSL(), true);
+            } finally {
+                isIdle = false;
+            }
+        }
+
+        private Frame readFrame() throws IOException {
+            try {
+                return Frame.read(in, frameHeader, frameBufferPool, frameHandler != null);
+            } catch (WebSocketClosure ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // A client may drop the connection instead of responding to our close frame.
+                if (closeFrameSent) throw serverClosure != null ? serverClosure : WebSocketClosure.goingAway();
+                throw ex;
+            }
+        }
+
+        /**
+         * A request/response exchange handled by the fallback handler. Keeps track of the request body and the
+         * response, so that the connection can be reused for another request if both are properly delimited.
+         */
+        private class FallbackExchange implements Connection {
+            private final Headers headers;
+            private final BoundedInputStream requestBody;
+            private final ResponseBodyOutputStream responseBody = new ResponseBodyOutputStream();
+            private int statusCode;
+            private long responseBodyLength = -1;
+            private boolean responseClosesConnection;
+
+            FallbackExchange(Headers headers) {
+                this.headers = headers;
+                long length = headers.contentLength();
+                requestBody = length >= 0 ? new BoundedInputStream(in, length) : null;
+            }
+
+            @Override public String method() { return headers.method; }
+            @Override public URI uri() { return headers.uri; }
+            @Override public InputStream inputStream() { return requestBody != null ? requestBody : in; }
+            @Override public OutputStream outputStream() { return responseBody; }
+            @Override public void sendFile(FileChannel file, long position, long count) throws IOException {
+                if (file == null) throw new IllegalArgumentException("File must be non-null");
+                if (position < 0 || count < 0) throw new IllegalArgumentException("Position and count must be >= 0");
+                responseBody.flush();
+                long written = transport.transferFrom(file, position, count);
+                responseBody.count += written;
+                if (written < count) throw new EOFException("File ended after " + written + " of " + count + " bytes");
+            }
+            @Override public Iterable<String> headerNames() { return headers.headers.keySet(); }
+            @Override public Optional<String> header(String name) {
+                if (name == null) throw new IllegalArgumentException("Header name must be non-null");
+                String value = headers.headers.get(name);
+                return Optional.ofNullable(value);
+            }
+            @Override
+            public void sendResponse(int statusCode, String reason, Map<String, String> headers) {
+                if (reason == null) reason = "";
+                if (headers == null) headers = Collections.emptyMap();
+                this.statusCode = statusCode;
+                responseBodyLength = -1;
+                responseClosesConnection = false;
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    if ("Content-Length".equalsIgnoreCase(entry.getKey())) {
+                        responseBodyLength = Headers.parseContentLength(entry.getValue());
+                    } else if ("Connection".equalsIgnoreCase(entry.getKey())) {
+                        responseClosesConnection = Headers.containsToken(entry.getValue(), "close");
+                    }
                 }
-            };
+                ClientHandler.this.sendResponse(statusCode, reason, headers);
+            }
+
+            /**
+             * Completes the exchange after the fallback handler has returned.
+             *
+             * @return {@code true} if the connection can be used for another request
+             */
+            boolean complete() throws IOException {
+                if (!options.httpKeepAlive || isDraining || headers.wantsClose() || requestBody == null) return false;
+                // A status code below 200 means that no (final) response has been sent, or that the handler has
+                // switched protocols.
+                if (statusCode < 200 || responseClosesConnection || responseBody.isClosed) return false;
+                // https://tools.ietf.org/html/rfc7230#section-3.3.3
+                boolean hasNoBody = "HEAD".equals(headers.method) || statusCode == 204 || statusCode == 304;
+                if (responseBody.count != (hasNoBody ? 0 : responseBodyLength)) return false;
+                out.flush();
+                // Skip whatever the handler didn't read of the request body.
+                return requestBody.skipRemaining();
+            }
+        }
+
+        /**
+         * The output stream for a response body. Counts the bytes written, and ends the connection when closed.
+         */
+        private class ResponseBodyOutputStream extends OutputStream {
+            private long count;
+            private boolean isClosed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                count++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                count += len;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                isClosed = true;
+                out.flush();
+            }
         }
 
         private boolean isSSL() {
-            return clientSocket instanceof SSLSocket;
+            return transport.sslSession() != null;
         }
 
         private void maybeLogSSLDetails() {
             if (isSSL()) {
-                SSLSocket sslSocket = (SSLSocket) clientSocket;
-                SSLSession sslSession = sslSocket.getSession();
+                SSLSession sslSession = transport.sslSession();
                 lazyLog(LogLevel.DEBUG, () -> String.format("SSL session uses protocol %s and cipher suite %s.",
                         sslSession.getProtocol(), sslSession.getCipherSuite()));
             }
         }
 
         private void handleBatch(List<Frame> frameBatch) throws IOException {
-            Frame firstFrame = frameBatch.get(0);
+            if (logger.isEnabledAt(LogLevel.TRACE)) logger.log(LogLevel.TRACE, frameBatch.get(frameBatch.size() - 1).toString(), null);
+            Frame result = Frame.takeComplete(frameBatch, frameBufferPool);
+            if (result != null) handleAndRelease(result);
+        }
 
-            if (firstFrame.opCode == 0) throw WebSocketClosure.protocolError("Continuation frame with nothing to continue.");
+        private void handleAndRelease(Frame frame) throws IOException {
+            try {
+                handleResultFrame(frame, this, frameWriter, payloadCoder, logger);
+            } finally {
+                frame.release(frameBufferPool);
+            }
+        }
 
-            Frame lastOne = frameBatch.get(frameBatch.size() - 1);
-            lazyLog(LogLevel.TRACE, lastOne::toString);
-            if (!lastOne.isFin) return;
-            if (firstFrame != lastOne) {
-                if (lastOne.isControl()) {
-                    // Interleaved control frame
-                    frameBatch.remove(frameBatch.size() - 1);
-                    handleResultFrame(lastOne);
-                    return;
-                } else if (lastOne.opCode > 0) {
-                    throw WebSocketClosure.protocolError("Continuation frame must have opcode 0.");
+        /**
+         * Passes a data frame to the frame handler as is, or handles a control frame.
+         */
+        private void passFrame(Frame frame) throws IOException {
+            if (logger.isEnabledAt(LogLevel.TRACE)) logger.log(LogLevel.TRACE, frame.toString(), null);
+            try {
+                if (frame.isControl()) {
+                    handleResultFrame(frame, this, frameWriter, payloadCoder, logger);
+                } else {
+                    isInPassedMessage = Frame.checkSequence(frame, isInPassedMessage);
+                    frame.passTo(frameHandler, logger);
                 }
+            } finally {
+                frame.release(frameBufferPool);
             }
-
-            Frame result = frameBatch.size() > 1 ? Frame.merge(frameBatch) : lastOne;
-
-            frameBatch.clear();
-
-            handleResultFrame(result);
         }
 
-        private void handleResultFrame(Frame result) throws IOException {
-            switch (result.opCode) {
-                case 1:
-                    CharSequence data = payloadCoder.decode(result.payloadData);
-                    invokeHandler(h -> h.onTextMessage(data));
-                    break;
-                case 2:
-                    invokeHandler(h -> h.onBinaryData(result.payloadData));
-                    break;
-                case 8:
-                    CloseData cd = result.toCloseData(payloadCoder);
-
-                    if (cd.hasInvalidCode()) throw WebSocketClosure.protocolError("Invalid close frame code: " + cd.code);
-
-                    // 1000 is normal close
-                    int i = cd.code != null ? cd.code : 1000;
+        @Override
+        public boolean closeReceived(int code, String reason) throws WebSocketClosure {
+            // The client responded to a close frame that we sent.
+            if (closeFrameSent) throw WebSocketClosure.goingAway();
 
-                    invokeHandler(h -> h.onClosedByClient(i, cd.reason));
+            invokeHandler(h -> h.onClosedByClient(code, reason));
 
-                    throw WebSocketClosure.fromClient(i);
-                case 9:
-                    // Ping, send pong!
-                    logger.log(LogLevel.TRACE, "Got ping frame, sending pong.", null);
-                    frameWriter.writePong(result.payloadData);
-                    break;
-                case 10:
-                    // Pong is ignored
-                    logger.log(LogLevel.TRACE, "Ignoring unsolicited pong frame.", null);
-                    break;
-                default:
-                    throw WebSocketClosure.protocolError("Invalid opcode: " + result.opCode);
-            }
+            throw WebSocketClosure.fromClient(code);
         }
 
         private void outputLine(PrintWriter writer, String data) {
@@ -404,6 +1028,9 @@ public class Server {
         private void sendNotFoundResponse() {
             sendEmptyResponseBeforeClose(404, "Not Found", Collections.emptyMap());
         }
+        private void sendServiceUnavailableResponse() {
+            sendEmptyResponseBeforeClose(503, "Service Unavailable", Collections.emptyMap());
+        }
 
         private void sendEmptyResponseBeforeClose(int statusCode, String reason, Map<String, String> headers) {
             Map<String, String> allHeaders = new HashMap<>(headers);
@@ -434,795 +1061,5340 @@ public class Server {
         }
     }
 
-    static class Frame {
-
-        final int opCode;
-        final byte[] payloadData;
-        final boolean isFin;
+    /**
+     * The byte transport of a client connection. The streams of a transport can be read from and written to
+     * concurrently, from different threads.
+     */
+    abstract static class Transport {
+        final SocketChannel channel;
 
-        public String toString() {
-            return String.format("Frame[opcode=%d, control=%b, payload length=%d, fragmented=%b]",
-                    opCode, isControl(), payloadData.length, !isFin);
+        Transport(SocketChannel channel) {
+            this.channel = channel;
         }
 
-        boolean isControl() {
-            return (opCode & 8) == 8;
-        }
+        abstract InputStream inputStream();
 
-        private Frame(int opCode, byte[] payloadData, boolean isFin) {
-            this.opCode = opCode;
-            this.payloadData = payloadData;
-            this.isFin = isFin;
-        }
+        abstract OutputStream outputStream();
 
-        private static int toUnsigned(byte b) {
-            int result = b;
-            if (result < 0) result += 256;
-            return result;
-        }
+        /**
+         * Performs any handshake needed before application data can be exchanged.
+         */
+        void handshake() throws IOException {}
 
-        private static byte[] readBytes(InputStream in, int len, byte[] target) throws IOException {
-            assert target == null || target.length >= len : "readBytes target is too small";
-            byte[] buf = target != null ? target : new byte[len];
-            int totalRead = 0;
-            int offs = 0;
-            while (totalRead < len) {
-                int readLen = in.read(buf, offs, len - offs);
-                if (readLen < 0) break;
-                totalRead += readLen;
-                offs += readLen;
+        /**
+         * Returns the SSL session of the transport, or {@code null} if the transport isn't secure.
+         */
+        SSLSession sslSession() { return null; }
+
+        /**
+         * Writes a region of a file to the transport, by copying the data via the output stream.
+         *
+         * @return the number of bytes written, which is less than {@code count} if the file ended prematurely
+         */
+        long transferFrom(FileChannel file, long position, long count) throws IOException {
+            OutputStream out = outputStream();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, MaxChannelChunk));
+            long written = 0;
+            while (written < count) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - written));
+                int len = file.read(buf, position + written);
+                if (len < 0) break;
+                out.write(buf.array(), 0, len);
+                written += len;
             }
-            if (totalRead != len) throw new IOException("Expected to read " + len + " bytes but read " + totalRead);
-            return buf;
+            return written;
         }
 
-        private static long toLong(byte[] data, int offset, int len) {
-            long result = 0;
-            for (int i = offset, j = offset + len; i < j; i++) {
-                result = (result << 8) + toUnsigned(data[i]);
+        /**
+         * Writes the remaining data of a buffer to the transport, by copying the data via the output stream. The
+         * position of the buffer is advanced to its limit.
+         */
+        void write(ByteBuffer src) throws IOException {
+            OutputStream out = outputStream();
+            if (src.hasArray()) {
+                out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+                return;
+            }
+            byte[] chunk = new byte[Math.min(src.remaining(), MaxChannelChunk)];
+            while (src.hasRemaining()) {
+                int len = Math.min(src.remaining(), chunk.length);
+                src.get(chunk, 0, len);
+                out.write(chunk, 0, len);
             }
-            return result;
         }
 
-        static Frame read(InputStream in) throws IOException {
-            // We will read at most 8 bytes at any time, except the payload data.
-            byte[] buf = new byte[8];
+        /**
+         * Closes the transport. May be called from any thread, also while another thread reads from the transport.
+         */
+        void close() throws IOException {
+            channel.close();
+        }
 
-            // Read first 2 bytes
-            readBytes(in, 2, buf);
-            byte firstByte = buf[0];
-            byte secondByte = buf[1];
-            boolean isFin = (firstByte & 128) == 128;
-            boolean hasZeroReserved = (firstByte & 112) == 0;
-            if (!hasZeroReserved) throw WebSocketClosure.protocolError("Non-zero reserved bits in 1st byte: " + (firstByte & 112));
-            int opCode = (firstByte & 15);
-            boolean isControlFrame = (opCode & 8) == 8;
-            boolean isMasked = (secondByte & 128) == 128;
-            int len = (secondByte & 127);
-            if (isControlFrame) {
-                if (len > 125) throw WebSocketClosure.protocolError("Control frame length exceeding 125 bytes.");
-                if (!isFin) throw WebSocketClosure.protocolError("Fragmented control frame.");
-            }
-            if (len == 126) {
-                // 2 bytes of extended len
-                long tmp = toLong(readBytes(in, 2, buf), 0, 2);
-                len = (int) tmp;
-            } else if (len == 127) {
-                // 8 bytes of extended len
-                long tmp = toLong(readBytes(in, 8, buf), 0, 8);
-                if (tmp > Integer.MAX_VALUE) throw WebSocketClosure.protocolError("Frame length greater than 0x7fffffff not supported.");
-                len = (int) tmp;
-            }
-            byte[] maskingKey = isMasked ? readBytes(in, 4, buf) : null;
-            byte[] payloadData = unmaskIfNeededInPlace(readBytes(in, len, null), maskingKey);
-            return new Frame(opCode, payloadData, isFin);
+        /**
+         * Releases resources held by the transport. Must be called by the reading thread when it's done with the
+         * transport, after {@link #close()}.
+         */
+        void release() {}
+
+        /**
+         * Returns a write-only transport on top of an output stream, without a channel.
+         */
+        static Transport forStream(OutputStream out) {
+            return new Transport(null) {
+                @Override
+                InputStream inputStream() { throw new UnsupportedOperationException("Write-only transport"); }
+
+                @Override
+                OutputStream outputStream() { return out; }
+            };
         }
+    }
 
-        CloseData toCloseData(PayloadCoder payloadCoder) throws WebSocketClosure {
-            if (opCode != 8) throw new IllegalStateException("Not a close frame: " + opCode);
-            if (payloadData.length == 0) return new CloseData(null, null);
-            if (payloadData.length == 1) throw WebSocketClosure.protocolError("Invalid close frame payload length (1).");
-            int code = (int) toLong(payloadData, 0, 2);
-            CharSequence reason = payloadData.length > 2 ? payloadCoder.decode(payloadData, 2, payloadData.length - 2) : null;
-            return new CloseData(code, reason != null ? reason.toString() : null);
+    /**
+     * A transport that reads and writes the socket channel directly.
+     */
+    static class PlainTransport extends Transport {
+        private final InputStream in;
+        private final OutputStream out;
+
+        PlainTransport(SocketChannel channel) {
+            super(channel);
+            in = new ChannelInputStream(channel);
+            out = new ChannelOutputStream(channel);
         }
 
-        static Frame merge(List<Frame> frameBatch) {                // Combine payloads!
-            int totalLength = frameBatch.stream().mapToInt(f -> f.payloadData.length).sum();
-            byte[] allTheData = new byte[totalLength];
-            int offs = 0;
-            for (Frame frame : frameBatch) {
-                System.arraycopy(frame.payloadData, 0, allTheData, offs, frame.payloadData.length);
-                offs += frame.payloadData.length;
+        @Override
+        InputStream inputStream() { return in; }
+
+        @Override
+        OutputStream outputStream() { return out; }
+
+        /**
+         * Writes a region of a file directly to the socket channel using {@link FileChannel#transferTo}, which lets
+         * the operating system copy the data without passing them through user space (e.g. sendfile on Linux).
+         */
+        @Override
+        long transferFrom(FileChannel file, long position, long count) throws IOException {
+            long written = 0;
+            while (written < count) {
+                long len = file.transferTo(position + written, count - written, channel);
+                if (len <= 0 && position + written >= file.size()) break;
+                written += len;
             }
-            return new Frame(frameBatch.get(0).opCode, allTheData, true);
+            return written;
+        }
+
+        /**
+         * Writes a buffer directly to the socket channel, without copying or wrapping its data.
+         */
+        @Override
+        void write(ByteBuffer src) throws IOException {
+            ChannelOutputStream.write(channel, src);
         }
     }
 
-    private static class CloseData {
-        private final Integer code;
-        private final String reason;
+    /**
+     * An input stream that reads from a blocking socket channel. Unlike {@code Socket.getInputStream()} for a
+     * channel socket (and {@code Channels.newInputStream}), this stream doesn't hold the blocking lock of the channel
+     * while reading, which would prevent writing from another thread on Java 8.
+     */
+    static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+        // For small reads, e.g. of frame headers, which thus don't need a new buffer that wraps the target array
+        private final ByteBuffer small = ByteBuffer.allocate(MaxHeaderLength);
 
-        CloseData(Integer code, String reason) {
-            this.code = code;
-            this.reason = reason;
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
         }
 
-        boolean hasInvalidCode() {
-            if (code == null) return false; // no code isn't invalid
-            if (code < 1000 || code >= 5000) return true;
-            if (code >= 3000) return false; // 3000-3999 and 4000-4999 are valid
-            return code == 1004 || code == 1005 || code == 1006 || code > 1011;
+        @Override
+        public int read() throws IOException {
+            small.clear().limit(1);
+            int len = read(small);
+            return len < 0 ? -1 : small.get(0) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (len > small.capacity()) return read(ByteBuffer.wrap(b, off, len));
+            small.clear().limit(len);
+            int count = read(small);
+            if (count > 0) System.arraycopy(small.array(), 0, b, off, count);
+            return count;
+        }
+
+        private int read(ByteBuffer buf) throws IOException {
+            // The JDK reads via a temporary direct buffer of the same size, which is cached per thread. Reading in
+            // limited chunks keeps a large payload from leaving a large direct buffer behind.
+            if (buf.remaining() > MaxChannelChunk) buf.limit(buf.position() + MaxChannelChunk);
+            return channel.read(buf);
         }
     }
 
-    static class Headers {
-        private final Map<String, String> headers;
-        final String endpoint;
-        final String method;
-        final String query;
-        final String fragment;
-        final URI uri;
+    /**
+     * An output stream that writes to a blocking socket channel. See {@link ChannelInputStream}.
+     */
+    static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
 
-        private Headers(Map<String, String> headers, URI uri, String method) {
-            this.headers = headers;
-            this.method = method;
-            this.uri = uri;
-            this.endpoint = uri.getPath();
-            this.query = uri.getQuery();
-            this.fragment = uri.getFragment();
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
         }
 
-        boolean isProperUpgrade() {
-            return "websocket".equalsIgnoreCase(headers.get("Upgrade")) && "Upgrade".equalsIgnoreCase(headers.get("Connection"));
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
         }
-        int version() {
-            String versionStr = headers.get("Sec-WebSocket-Version");
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            write(channel, ByteBuffer.wrap(b, off, len));
+        }
+
+        /**
+         * Writes the remaining data of a buffer to a channel, advancing its position to its limit.
+         */
+        static void write(SocketChannel channel, ByteBuffer src) throws IOException {
+            if (src.isDirect()) {
+                while (src.hasRemaining()) channel.write(src);
+                return;
+            }
+            // See ChannelInputStream about chunking. The limit is that of the current chunk, so compare with the end.
+            int end = src.limit();
             try {
-                return Integer.parseInt(versionStr);
-            } catch (Exception ignore) {
-                return 0;
+                while (src.position() < end) {
+                    src.limit(Math.min(end, src.position() + MaxChannelChunk));
+                    channel.write(src);
+                }
+            } finally {
+                src.limit(end);
             }
         }
+    }
 
-        String key() { return headers.get("Sec-WebSocket-Key"); }
-        String userAgent() { return headers.get("User-Agent"); }
-        String host() { return headers.get("Host"); }
+    /**
+     * A transport that uses an {@link SSLEngine} on top of the socket channel. Network data are exchanged via direct
+     * buffers from a pool, while application data are exchanged via heap buffers. The handshake is done explicitly
+     * by {@link #handshake()}, before any application data are read. Like all other I/O of a connection, the
+     * handshake is blocking: it reads from and writes to the channel on the connection's thread, and runs delegated
+     * tasks (e.g. certificate validation) inline on that thread. A peer that stalls the handshake thus holds the
+     * thread until it sends data or the connection is closed.
+     *
+     * Reading (unwrapping) happens on the reading thread only, while writing (wrapping) is guarded by a lock. The
+     * engine allows wrap and unwrap to execute concurrently. Written application data are buffered until flushed
+     * or until a full TLS record can be produced, so that a frame isn't split across multiple small records.
+     */
+    static class SSLTransport extends Transport {
+        private static final ByteBuffer Empty = ByteBuffer.allocate(0);
+
+        private final SSLEngine engine;
+        private final BufferPool pool;
+        private final Metrics metrics;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final InputStream in = new SSLInputStream();
+        private final OutputStream out = new SSLOutputStream();
+
+        private ByteBuffer netIn; // write mode, read from the channel
+        private ByteBuffer appIn; // read mode, read by the input stream
+        private ByteBuffer netOut; // guarded by writeLock
+        private final ByteBuffer appOut = ByteBuffer.allocate(MaxTLSPlaintextLength); // guarded by writeLock, write mode
+        private boolean isReleased; // guarded by writeLock
 
-        private static String readHeaderLine(InputStream in) throws IOException {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            int b;
-            while ((b = in.read()) != 13) {
-                if (b < 0) break; // EOS, return what we have
-                bytes.write(b);
-            }
-            if (b != -1) {
-                // Read one more, but it has to be LF
-                if (in.read() != 10) throw new IOException("Expected LF after CR in HTTP header");
-            }
-            return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+        /**
+         * @param isClientMode {@code true} for a connection opened by a {@link Connector}, {@code false} for a
+         *                     connection accepted by the server
+         */
+        SSLTransport(SocketChannel channel, SSLEngine engine, boolean isClientMode, BufferPool pool, Metrics metrics) {
+            super(channel);
+            this.engine = engine;
+            this.pool = pool;
+            this.metrics = metrics;
+            engine.setUseClientMode(isClientMode);
+            netIn = pool.acquire(engine.getSession().getPacketBufferSize());
+            netOut = pool.acquire(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            appIn.flip();
         }
 
-        static Headers read(InputStream in, boolean isSSL) throws IOException {
-            String inputLine, method = "";
-            String path = null;
-            URI endpoint = null;
-            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-            boolean isFirstLine = true;
-            while (!"".equals((inputLine = readHeaderLine(in)))) {
-                if (isFirstLine) {
-                    String[] parts = inputLine.split(" ", 3);
-                    if (parts.length != 3) throw new IllegalArgumentException("Malformed 1st header line: " + inputLine);
-                    method = parts[0];
-                    if (!"HTTP/1.1".equals(parts[2])) throw new IllegalArgumentException("Only HTTP/1.1 is supported");
-                    path = parts[1];
-                    isFirstLine = false;
-                }
+        @Override
+        InputStream inputStream() { return in; }
 
-                String[] keyValue = inputLine.split(":", 2);
-                if (keyValue.length != 2) continue;
+        @Override
+        OutputStream outputStream() { return out; }
 
-                headers.put(keyValue[0], keyValue[1].trim());
-            }
-            if (isFirstLine) throw new IllegalArgumentException("No HTTP headers received");
+        @Override
+        SSLSession sslSession() { return engine.getSession(); }
 
-            // Figure out the entire endpoint
-            try {
-                String scheme = isSSL ? "https" : "http";
-                String host = headers.get("host");
-                if (host == null) host = "server";
-                endpoint = new URI(scheme + "://" + host + path);
-            } catch (URISyntaxException e) {
-                throw new IllegalArgumentException("Invalid endpoint: " + path);
+        @Override
+        void handshake() throws IOException {
+            long startTime = System.currentTimeMillis();
+            engine.beginHandshake();
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while (true) {
+                switch (status) {
+                    case FINISHED:
+                    case NOT_HANDSHAKING:
+                        // A resumed session was created by an earlier handshake.
+                        if (engine.getSession().getCreationTime() < startTime) metrics.resumedHandshakes.increment();
+                        else metrics.fullHandshakes.increment();
+                        return;
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    case NEED_WRAP:
+                        status = wrapAndWrite(Empty).getHandshakeStatus();
+                        break;
+                    default:
+                        // NEED_UNWRAP, or NEED_UNWRAP_AGAIN on Java 9+
+                        SSLEngineResult result = unwrap();
+                        if (result == null) throw new EOFException("Connection closed during SSL handshake");
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("SSL engine closed during handshake");
+                        status = result.getHandshakeStatus();
+                        break;
+                }
             }
-
-            // Note: Do NOT close the reader, because the stream must remain open!
-            return new Headers(headers, endpoint, method);
         }
-    }
 
-    static class PayloadCoder {
-        private final Charset charset = StandardCharsets.UTF_8;
-        private final CharsetDecoder decoder = charset.newDecoder();
-        private final CharsetEncoder encoder = charset.newEncoder();
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+        }
 
-        CharSequence decode(byte[] bytes) throws WebSocketClosure {
-            return decode(bytes, 0, bytes.length);
+        /**
+         * Unwraps network data into {@code appIn}, reading from the channel if more network data are needed.
+         *
+         * @return the result of the unwrap operation, or {@code null} on end of stream
+         */
+        private SSLEngineResult unwrap() throws IOException {
+            while (true) {
+                netIn.flip();
+                appIn.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                    appIn.flip();
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining()) netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                        if (channel.read(netIn) < 0) {
+                            doIgnoringExceptions(engine::closeInbound);
+                            return null;
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        appIn = enlargeReadMode(appIn, engine.getSession().getApplicationBufferSize());
+                        break;
+                    default:
+                        return result;
+                }
+            }
         }
 
         /**
-         * Decodes the given byte data as UTF-8 and returns the result as a string.
+         * Reads until application data are available.
          *
-         * @param bytes the byte array
-         * @param offset offset into the array where to start decoding
-         * @param len length of data to decode
-         * @return the decoded string
-         * @throws WebSocketClosure (1007) thrown if the data are not valid UTF-8
+         * @return {@code false} on end of stream or when the peer has closed the SSL connection
          */
-        CharSequence decode(byte[] bytes, int offset, int len) throws WebSocketClosure {
-            decoder.reset();
-            try {
-                return decoder.decode(ByteBuffer.wrap(bytes, offset, len));
-            } catch (Exception ex) {
-                throw WebSocketClosure.invalidFramePayloadData();
+        private boolean fill() throws IOException {
+            while (!appIn.hasRemaining()) {
+                SSLEngineResult result = unwrap();
+                if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) return false;
+                // Handle post-handshake messages, e.g. a renegotiation or key update.
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
+                    else wrapAndWrite(Empty);
+                    status = engine.getHandshakeStatus();
+                }
             }
+            return true;
         }
 
-        ByteBuffer encode(CharSequence s) throws CharacterCodingException {
-            encoder.reset();
-            ByteBuffer buf = encoder.encode(CharBuffer.wrap(s));
-            assert buf.hasArray() : "Expected ByteBuffer to have an array";
-            return buf;
+        /**
+         * Wraps all of the given application data (or a handshake message if there is no data) and writes the
+         * resulting network data to the channel.
+         */
+        private SSLEngineResult wrapAndWrite(ByteBuffer src) throws IOException {
+            writeLock.lock();
+            try {
+                if (isReleased) throw new SocketException("Socket closed");
+                while (true) {
+                    netOut.clear();
+                    SSLEngineResult result = engine.wrap(src, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                        continue;
+                    }
+                    netOut.flip();
+                    while (netOut.hasRemaining()) channel.write(netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        if (src.hasRemaining()) throw new SocketException("Socket closed");
+                        return result;
+                    }
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
+                    if (!src.hasRemaining()) return result;
+                }
+            } finally {
+                writeLock.unlock();
+            }
         }
-    }
 
-    static class WebSocketClosure extends IOException {
-        final int code;
-        final String reason;
-        final String debugDetails;
-        final boolean closedByClient;
+        private void flushAppOut() throws IOException {
+            if (appOut.position() == 0) return;
+            appOut.flip();
+            try {
+                wrapAndWrite(appOut);
+            } finally {
+                appOut.clear();
+            }
+        }
 
-        private WebSocketClosure(int code, String reason, String debugDetails, boolean closedByClient) {
-            this.code = code;
-            this.reason = reason;
-            this.debugDetails = debugDetails;
-            this.closedByClient = closedByClient;
+        private ByteBuffer enlarge(ByteBuffer buf, int minCapacity) {
+            // Assumes write mode
+            ByteBuffer larger = pool.acquire(Math.max(minCapacity, buf.capacity() * 2));
+            buf.flip();
+            larger.put(buf);
+            pool.release(buf);
+            return larger;
         }
 
-        static WebSocketClosure fromClient(int code) {
-            return new WebSocketClosure(code, "", "Closed by client", true);
+        private static ByteBuffer enlargeReadMode(ByteBuffer buf, int minCapacity) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(minCapacity, buf.capacity() * 2));
+            larger.put(buf);
+            larger.flip();
+            return larger;
         }
-        static WebSocketClosure protocolError(String debugDetails) {
-            return new WebSocketClosure(1002, "Protocol error", debugDetails, false);
-        }
-        static WebSocketClosure invalidFramePayloadData() {
-            return new WebSocketClosure(1007, "Invalid frame payload data", null, false);
+
+        @Override
+        void close() throws IOException {
+            // Try to send buffered data and close_notify, but don't wait for the peer's response. A writer that holds
+            // the write lock may be blocked indefinitely by a peer that doesn't read, in which case the channel is
+            // closed right away, which also fails the blocked write.
+            if (writeLock.tryLock()) {
+                try {
+                    doIgnoringExceptions(out::flush);
+                    doIgnoringExceptions(() -> {
+                        engine.closeOutbound();
+                        wrapAndWrite(Empty);
+                    });
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            super.close();
         }
 
         @Override
-        public synchronized Throwable fillInStackTrace() {
-            // Stack trace is not relevant
-            return this;
+        void release() {
+            writeLock.lock();
+            try {
+                isReleased = true;
+                pool.release(netOut);
+                netOut = null;
+            } finally {
+                writeLock.unlock();
+            }
+            pool.release(netIn);
+            netIn = null;
+        }
+
+        private class SSLInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                return fill() ? appIn.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (!fill()) return -1;
+                int count = Math.min(len, appIn.remaining());
+                appIn.get(b, off, count);
+                return count;
+            }
+        }
+
+        private class SSLOutputStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeLock.lock();
+                try {
+                    while (len > 0) {
+                        int count = Math.min(len, appOut.remaining());
+                        appOut.put(b, off, count);
+                        off += count;
+                        len -= count;
+                        if (!appOut.hasRemaining()) flushAppOut();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writeLock.lock();
+                try {
+                    flushAppOut();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
         }
     }
 
-    static class FrameWriter {
-        private final OutputStream out;
-        private final PayloadCoder payloadCoder;
-        private final int maxFrameSize;
+    /**
+     * A pool of buffers in a number of size classes. A buffer is acquired from the smallest class that fits the
+     * requested size, and a request that is larger than the largest class is allocated on demand and not pooled.
+     *
+     * Each thread has a cache of one buffer per class, so a thread that repeatedly acquires and releases buffers of
+     * similar sizes (such as a thread that reads frames from a client) doesn't contend with other threads. Other
+     * buffers are kept in shared per-class queues. The total size of the buffers kept by the pool, including those in
+     * thread caches, is capped; a buffer that is released when the pool is full is left to the garbage collector. The
+     * caches of threads that have died are reclaimed when the pool runs full.
+     *
+     * If leak tracking is enabled, the pool records where each buffer was acquired and logs a warning with the
+     * acquisition site for a buffer that is garbage collected without having been released. A buffer that is
+     * released twice is also detected (and not pooled twice). Leak tracking is expensive, so it's meant for testing.
+     */
+    static class BufferPool {
+        // Minimum time between attempts to reclaim the caches of dead threads
+        private static final long ReclaimIntervalNanos = 1000000000L;
+
+        private final boolean direct;
+        private final int[] classSizes;
+        private final long capacity;
+        private final BufferPoolMetrics metrics;
+        private final Logger logger;
+        private final ArrayDeque<ByteBuffer>[] shared;
+        private final Queue<LocalCache> caches = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<LocalCache> localCache = ThreadLocal.withInitial(this::newLocalCache);
+        private final AtomicLong lastReclaimNanos = new AtomicLong(System.nanoTime() - ReclaimIntervalNanos);
+
+        // Leak tracking; records are keyed by the identity hash code of their buffers, so that the map doesn't
+        // keep the buffers reachable.
+        private final boolean trackLeaks;
+        private final Map<Integer, List<LeakRecord>> leakRecords = new HashMap<>(); // guarded by itself
+        private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
 
-        // Reusable array for writing length bytes
-        private final byte[] lengthBytes = new byte[8];
+        /**
+         * Creates a new pool.
+         *
+         * @param direct whether to pool direct buffers (or heap buffers, which are backed by arrays)
+         * @param classSizes the buffer sizes of the classes, in increasing order
+         * @param capacity the maximum total size of the buffers kept by the pool, 0 to disable pooling
+         * @param trackLeaks whether to track buffers to find leaks
+         * @param metrics the metrics to update
+         * @param logger logger for leak reports
+         */
+        @SuppressWarnings("unchecked")
+        BufferPool(boolean direct, int[] classSizes, long capacity, boolean trackLeaks, BufferPoolMetrics metrics, Logger logger) {
+            this.direct = direct;
+            this.classSizes = classSizes.clone();
+            this.capacity = capacity;
+            this.trackLeaks = trackLeaks;
+            this.metrics = metrics;
+            this.logger = logger;
+            shared = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[classSizes.length];
+            for (int i = 0; i < shared.length; i++) shared[i] = new ArrayDeque<>();
+            metrics.capacity = capacity;
+        }
 
-        FrameWriter(OutputStream out, PayloadCoder payloadCoder, int maxFrameSize) {
-            this.out = out;
-            this.payloadCoder = payloadCoder;
-            this.maxFrameSize = maxFrameSize;
+        /**
+         * Returns the sizes of power-of-two classes from {@code minSize} to {@code maxSize}, inclusive.
+         */
+        static int[] powerOfTwoClasses(int minSize, int maxSize) {
+            int count = Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize) + 1;
+            int[] sizes = new int[count];
+            for (int i = 0; i < count; i++) sizes[i] = minSize << i;
+            return sizes;
         }
 
-        void writeClose(int code, String reason) throws IOException {
-            ByteBuffer buf = payloadCoder.encode(reason);
-            int bufLen = buf.limit();
-            byte[] combined = new byte[2 + bufLen];
-            numberToBytes(code, 2, combined);
-            buf.get(combined, 2, bufLen);
-            writeFrame(8, combined);
+        private LocalCache newLocalCache() {
+            LocalCache cache = new LocalCache(Thread.currentThread(), classSizes.length);
+            caches.add(cache);
+            return cache;
         }
 
-        void writeText(CharSequence text) throws IOException {
-            ByteBuffer buf = payloadCoder.encode(text);
-            writePossiblyFragmentedFrames(1, buf);
+        private int classOf(int size) {
+            for (int i = 0; i < classSizes.length; i++) {
+                if (size <= classSizes[i]) return i;
+            }
+            return -1;
         }
 
-        void writeBinary(byte[] data) throws IOException {
-            writePossiblyFragmentedFrames(2, ByteBuffer.wrap(data));
+        private ByteBuffer allocate(int size) {
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
         }
 
-        void writePing(byte[] data) throws IOException {
-            writeFrame(9, data);
+        /**
+         * Acquires a buffer with a capacity of at least the given size. The buffer is cleared, i.e. it's in write
+         * mode. A heap buffer has an array offset of 0.
+         *
+         * @param minSize the minimum buffer size
+         * @return a buffer, which should be released using {@link #release(ByteBuffer)} when no longer needed
+         */
+        ByteBuffer acquire(int minSize) {
+            int cls = classOf(minSize);
+            if (cls < 0) {
+                metrics.oversized.increment();
+                return allocate(minSize);
+            }
+            if (trackLeaks) expungeCollected();
+            ByteBuffer buf = capacity > 0 ? takePooled(cls) : null;
+            if (buf != null) {
+                metrics.hits.increment();
+                buf.clear();
+            } else {
+                metrics.misses.increment();
+                buf = allocate(classSizes[cls]);
+            }
+            metrics.outstanding.increment();
+            if (trackLeaks) track(buf);
+            return buf;
         }
 
-        void writePong(byte[] data) throws IOException {
-            writeFrame(10, data);
+        private ByteBuffer takePooled(int cls) {
+            LocalCache cache = localCache.get();
+            ByteBuffer buf = cache.slots[cls];
+            if (buf != null) {
+                cache.slots[cls] = null;
+            } else {
+                ArrayDeque<ByteBuffer> queue = shared[cls];
+                synchronized (queue) {
+                    buf = queue.pollFirst();
+                }
+                if (buf == null) return null;
+            }
+            metrics.pooledBytes.addAndGet(-buf.capacity());
+            return buf;
         }
 
-        private void writePossiblyFragmentedFrames(int opCode, ByteBuffer buf) throws IOException {
-            // https://tools.ietf.org/html/rfc6455#section-5.6 implies that a single frame may contain an UTF-8
-            // sequence that by itself is invalid, as long as the entire message text is valid UTF-8.
-            int bufLen = buf.limit();
-            byte[] data = buf.array();
-            if (maxFrameSize == 0 || bufLen <= maxFrameSize) {
-                writeFrame(opCode, data, bufLen, 0, bufLen);
+        /**
+         * Releases a buffer so that it can be reused. A buffer that wasn't acquired from this pool (or that is
+         * larger than the largest class) is ignored. The buffer must not be used after having been released.
+         *
+         * @param buf the buffer, may be {@code null}
+         */
+        void release(ByteBuffer buf) {
+            if (buf == null || buf.isDirect() != direct) return;
+            int cls = classOf(buf.capacity());
+            if (cls < 0 || classSizes[cls] != buf.capacity()) return;
+            if (trackLeaks && !untrack(buf)) {
+                logger.log(LogLevel.WARN, "A buffer was released twice, or wasn't acquired from the pool.", new Throwable("Released here"));
+                return;
+            }
+            metrics.outstanding.decrement();
+            if (!reserve(buf.capacity())) return;
+            LocalCache cache = localCache.get();
+            if (cache.slots[cls] == null) {
+                cache.slots[cls] = buf;
             } else {
-                int offset = 0;
-                while (offset < bufLen) {
-                    int len = Math.min(bufLen - offset, maxFrameSize);
-                    writeFrame(opCode, data, bufLen, offset, len);
-                    offset += len;
+                ArrayDeque<ByteBuffer> queue = shared[cls];
+                synchronized (queue) {
+                    queue.addLast(buf);
                 }
             }
         }
 
-        private void writeFrame(int opCode, byte[] data) throws IOException {
-            int dataLen = data != null ? data.length : 0;
-            writeFrame(opCode, data, dataLen, 0, dataLen);
+        /**
+         * Reserves room for a buffer in the pool, reclaiming the caches of dead threads if the pool is full.
+         */
+        private boolean reserve(int size) {
+            if (tryReserve(size)) return true;
+            long last = lastReclaimNanos.get();
+            long now = System.nanoTime();
+            if (now - last < ReclaimIntervalNanos || !lastReclaimNanos.compareAndSet(last, now)) return false;
+            reclaimDeadCaches();
+            return tryReserve(size);
+        }
+
+        private boolean tryReserve(int size) {
+            while (true) {
+                long current = metrics.pooledBytes.get();
+                if (current + size > capacity) return false;
+                if (metrics.pooledBytes.compareAndSet(current, current + size)) return true;
+            }
         }
 
         /**
-         * Writes a frame to the output stream. Since FrameWriter is handed out to potentially different threads,
-         * this method is synchronized.
+         * Moves the buffers cached by threads that have died to the shared queues. A thread cache is only used by
+         * its own thread, but once the thread has died, its cache is safe to use from any thread.
+         */
+        private void reclaimDeadCaches() {
+            for (Iterator<LocalCache> it = caches.iterator(); it.hasNext(); ) {
+                LocalCache cache = it.next();
+                Thread owner = cache.owner.get();
+                if (owner != null && owner.isAlive()) continue;
+                it.remove();
+                for (int i = 0; i < cache.slots.length; i++) {
+                    ByteBuffer buf = cache.slots[i];
+                    if (buf == null) continue;
+                    cache.slots[i] = null;
+                    synchronized (shared[i]) {
+                        shared[i].addLast(buf);
+                    }
+                }
+            }
+        }
+
+        private void track(ByteBuffer buf) {
+            LeakRecord record = new LeakRecord(buf, collected);
+            synchronized (leakRecords) {
+                leakRecords.computeIfAbsent(record.hash, h -> new ArrayList<>(1)).add(record);
+            }
+        }
+
+        private boolean untrack(ByteBuffer buf) {
+            int hash = System.identityHashCode(buf);
+            synchronized (leakRecords) {
+                List<LeakRecord> records = leakRecords.get(hash);
+                if (records == null) return false;
+                for (Iterator<LeakRecord> it = records.iterator(); it.hasNext(); ) {
+                    LeakRecord record = it.next();
+                    if (record.get() != buf) continue;
+                    it.remove();
+                    if (records.isEmpty()) leakRecords.remove(hash);
+                    // A cleared reference isn't enqueued, so the buffer won't be reported as leaked.
+                    record.clear();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Reports buffers that have been garbage collected without having been released.
+         */
+        private void expungeCollected() {
+            Reference<? extends ByteBuffer> ref;
+            while ((ref = collected.poll()) != null) {
+                LeakRecord record = (LeakRecord) ref;
+                synchronized (leakRecords) {
+                    List<LeakRecord> records = leakRecords.get(record.hash);
+                    if (records == null || !records.remove(record)) continue;
+                    if (records.isEmpty()) leakRecords.remove(record.hash);
+                }
+                metrics.outstanding.decrement();
+                metrics.leaks.increment();
+                logger.log(LogLevel.WARN, String.format("A buffer of %d bytes was garbage collected without having been released.",
+                        record.size), record.site);
+            }
+        }
+
+        /**
+         * Returns a pool that doesn't keep any buffers, for use where pooling isn't wanted.
+         */
+        static BufferPool unpooled() {
+            return new BufferPool(false, new int[0], 0, false, new BufferPoolMetrics(), null);
+        }
+
+        private static class LocalCache {
+            final WeakReference<Thread> owner;
+            final ByteBuffer[] slots;
+
+            LocalCache(Thread owner, int classCount) {
+                this.owner = new WeakReference<>(owner);
+                this.slots = new ByteBuffer[classCount];
+            }
+        }
+
+        private static class LeakRecord extends WeakReference<ByteBuffer> {
+            final int hash;
+            final int size;
+            final Throwable site = new Throwable("Buffer acquired here");
+
+            LeakRecord(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue) {
+                super(buf, queue);
+                this.hash = System.identityHashCode(buf);
+                this.size = buf.capacity();
+            }
+        }
+    }
+
+    static class Frame {
+
+        private static final byte[] NoPayload = new byte[0];
+
+        final int opCode;
+        // Array that contains the payload, which may be longer than the payload if the frame is pooled.
+        final byte[] payloadData;
+        final int payloadLength;
+        final boolean isFin;
+        // The pooled buffer that backs payloadData, or null if the payload isn't pooled.
+        private ByteBuffer pooled;
+
+        public String toString() {
+            return String.format("Frame[opcode=%d, control=%b, payload length=%d, fragmented=%b]",
+                    opCode, isControl(), payloadLength, !isFin);
+        }
+
+        boolean isControl() {
+            return (opCode & 8) == 8;
+        }
+
+        private Frame(int opCode, byte[] payloadData, boolean isFin) {
+            this(opCode, payloadData, payloadData.length, isFin, null);
+        }
+
+        private Frame(int opCode, byte[] payloadData, int payloadLength, boolean isFin, ByteBuffer pooled) {
+            this.opCode = opCode;
+            this.payloadData = payloadData;
+            this.payloadLength = payloadLength;
+            this.isFin = isFin;
+            this.pooled = pooled;
+        }
+
+        /**
+         * Returns the payload in an array of its own, which can be handed out.
+         */
+        byte[] payloadCopy() {
+            return pooled == null ? payloadData : Arrays.copyOf(payloadData, payloadLength);
+        }
+
+        /**
+         * Releases the pooled payload buffer, if any, after which the payload must not be used.
+         */
+        void release(BufferPool pool) {
+            pool.release(pooled);
+            pooled = null;
+        }
+
+        private static int toUnsigned(byte b) {
+            int result = b;
+            if (result < 0) result += 256;
+            return result;
+        }
+
+        private static byte[] readBytes(InputStream in, int len, byte[] target) throws IOException {
+            assert target == null || target.length >= len : "readBytes target is too small";
+            byte[] buf = target != null ? target : new byte[len];
+            int totalRead = 0;
+            int offs = 0;
+            while (totalRead < len) {
+                int readLen = in.read(buf, offs, len - offs);
+                if (readLen < 0) break;
+                totalRead += readLen;
+                offs += readLen;
+            }
+            if (totalRead != len) throw new IOException("Expected to read " + len + " bytes but read " + totalRead);
+            return buf;
+        }
+
+        private static long toLong(byte[] data, int offset, int len) {
+            long result = 0;
+            for (int i = offset, j = offset + len; i < j; i++) {
+                result = (result << 8) + toUnsigned(data[i]);
+            }
+            return result;
+        }
+
+        static Frame read(InputStream in) throws IOException {
+            return read(in, new byte[8], null);
+        }
+
+        static Frame read(InputStream in, byte[] buf, BufferPool pool) throws IOException {
+            return read(in, buf, pool, false);
+        }
+
+        /**
+         * Reads a frame. If a pool is given, the payload is read into a pooled buffer, except for an unfragmented
+         * binary message unless all payloads are pooled, since that payload is handed to the handler as is. A frame
+         * with a pooled payload must be released using {@link #release(BufferPool)}.
          *
-         * @param opCode the opcode of the frame
-         * @param data array that contains frame data
-         * @param totalLen total data length (differs from {@code len} when data are split across multiple frames
-         * @param offset offset in the {@code data} array where the frame data starts
-         * @param len length of frame data
-         * @throws IOException thrown if writing to the socket fails
+         * @param in the stream to read from
+         * @param buf array of at least 8 bytes for reading the frame header
+         * @param pool the pool to draw payload buffers from, or {@code null} to allocate payload arrays
+         * @param poolAll whether to read all payloads into pooled buffers, e.g. for a {@link FrameHandler}
+         * @return the frame
+         * @throws IOException if reading fails, or {@link WebSocketClosure} if the frame is invalid
          */
-        synchronized private void writeFrame(int opCode, byte[] data, int totalLen, int offset, int len) throws IOException {
-            boolean isFirstFrame = offset == 0;
-            boolean isFinalFrame = offset + len == totalLen;
+        static Frame read(InputStream in, byte[] buf, BufferPool pool, boolean poolAll) throws IOException {
+            // We will read at most 8 bytes at any time (into buf), except the payload data.
 
-            int firstByte = isFirstFrame ? opCode : 0;
-            if (isFinalFrame) firstByte |= 128; // FIN
-            int secondByte;
-            int extraLengthBytes = 0;
-            if (len < 126) {
-                secondByte = len;
-            } else if (len < 65536) {
-                secondByte = 126;
-                extraLengthBytes = 2;
-            } else {
-                secondByte = 127;
-                extraLengthBytes = 8;
+            // Read first 2 bytes
+            readBytes(in, 2, buf);
+            byte firstByte = buf[0];
+            byte secondByte = buf[1];
+            boolean isFin = (firstByte & 128) == 128;
+            boolean hasZeroReserved = (firstByte & 112) == 0;
+            if (!hasZeroReserved) throw WebSocketClosure.protocolError("Non-zero reserved bits in 1st byte: " + (firstByte & 112));
+            int opCode = (firstByte & 15);
+            boolean isControlFrame = (opCode & 8) == 8;
+            boolean isMasked = (secondByte & 128) == 128;
+            int len = (secondByte & 127);
+            if (isControlFrame) {
+                if (len > 125) throw WebSocketClosure.protocolError("Control frame length exceeding 125 bytes.");
+                if (!isFin) throw WebSocketClosure.protocolError("Fragmented control frame.");
+            }
+            if (len == 126) {
+                // 2 bytes of extended len
+                long tmp = toLong(readBytes(in, 2, buf), 0, 2);
+                len = (int) tmp;
+            } else if (len == 127) {
+                // 8 bytes of extended len
+                long tmp = toLong(readBytes(in, 8, buf), 0, 8);
+                if (tmp > Integer.MAX_VALUE) throw WebSocketClosure.protocolError("Frame length greater than 0x7fffffff not supported.");
+                len = (int) tmp;
+            }
+            byte[] maskingKey = isMasked ? readBytes(in, 4, buf) : null;
+            if (len == 0) return new Frame(opCode, NoPayload, isFin);
+            if (pool == null || (opCode == 2 && isFin && !poolAll)) {
+                return new Frame(opCode, unmaskIfNeededInPlace(readBytes(in, len, null), maskingKey), isFin);
             }
-            out.write(firstByte);
-            out.write(secondByte);
-            if (extraLengthBytes > 0) {
-                out.write(numberToBytes(len, extraLengthBytes, lengthBytes), 0, extraLengthBytes);
+            ByteBuffer pooled = pool.acquire(len);
+            try {
+                byte[] payloadData = readBytes(in, len, pooled.array());
+                unmaskIfNeededInPlace(payloadData, len, maskingKey);
+                return new Frame(opCode, payloadData, len, isFin, pooled);
+            } catch (IOException ex) {
+                pool.release(pooled);
+                throw ex;
             }
-            if (data != null) out.write(data, offset, len);
-            out.flush();
         }
+
+        CloseData toCloseData(PayloadCoder payloadCoder) throws WebSocketClosure {
+            if (opCode != 8) throw new IllegalStateException("Not a close frame: " + opCode);
+            if (payloadLength == 0) return new CloseData(null, null);
+            if (payloadLength == 1) throw WebSocketClosure.protocolError("Invalid close frame payload length (1).");
+            int code = (int) toLong(payloadData, 0, 2);
+            CharSequence reason = payloadLength > 2 ? payloadCoder.decode(payloadData, 2, payloadLength - 2) : null;
+            return new CloseData(code, reason != null ? reason.toString() : null);
+        }
+
+        /**
+         * Takes the next frame to handle from the frames read so far, which end with the frame that was read last:
+         * a control frame (possibly interleaved with the fragments of a message), a complete message (whose
+         * fragments are merged), or nothing if the last frame is a fragment of a message that isn't complete yet.
+         * The returned frame and the frames that it was merged from are removed from the list.
+         *
+         * @param frameBatch the frames read so far
+         * @param pool the pool to merge a fragmented text message into, see {@link #merge(List, BufferPool)}
+         * @return the frame to handle, which must be released, or {@code null} if there is none yet
+         * @throws WebSocketClosure if the frames are out of sequence
+         */
+        static Frame takeComplete(List<Frame> frameBatch, BufferPool pool) throws WebSocketClosure {
+            Frame firstFrame = frameBatch.get(0);
+
+            if (firstFrame.opCode == 0) throw WebSocketClosure.protocolError("Continuation frame with nothing to continue.");
+
+            Frame lastOne = frameBatch.get(frameBatch.size() - 1);
+            if (!lastOne.isFin) return null;
+            if (firstFrame != lastOne) {
+                if (lastOne.isControl()) {
+                    // Interleaved control frame
+                    frameBatch.remove(frameBatch.size() - 1);
+                    return lastOne;
+                } else if (lastOne.opCode > 0) {
+                    throw WebSocketClosure.protocolError("Continuation frame must have opcode 0.");
+                }
+            }
+
+            Frame result = lastOne;
+            if (frameBatch.size() > 1) {
+                result = merge(frameBatch, pool);
+                for (Frame frame : frameBatch) frame.release(pool);
+            }
+
+            frameBatch.clear();
+            return result;
+        }
+
+        /**
+         * Checks that a data frame is in sequence, when data frames are passed on one by one instead of being
+         * combined using {@link #takeComplete(List, BufferPool)}.
+         *
+         * @param frame the data frame
+         * @param isInMessage whether a fragmented message has been started but not ended before the frame
+         * @return whether a fragmented message has been started but not ended after the frame
+         * @throws WebSocketClosure if the frame is out of sequence
+         */
+        static boolean checkSequence(Frame frame, boolean isInMessage) throws WebSocketClosure {
+            if (frame.opCode == 0) {
+                if (!isInMessage) throw WebSocketClosure.protocolError("Continuation frame with nothing to continue.");
+            } else if (isInMessage) {
+                throw WebSocketClosure.protocolError("Continuation frame must have opcode 0.");
+            }
+            return !frame.isFin;
+        }
+
+        /**
+         * Passes this data frame to a frame handler. As for other handler invocations, an exception thrown by the
+         * handler is logged but doesn't affect the connection.
+         */
+        void passTo(FrameHandler handler, Logger logger) {
+            try {
+                handler.onFrame(opCode, isFin, payloadData, payloadLength);
+            } catch (Exception ex) {
+                logger.log(LogLevel.ERROR, "Handler invocation error.", ex);
+            }
+        }
+
+        static Frame merge(List<Frame> frameBatch) {
+            return merge(frameBatch, null);
+        }
+
+        /**
+         * Combines the payloads of the frames of a fragmented message. If a pool is given, the payload of a text
+         * message is combined into a pooled buffer. A binary payload is always combined into an array of its own,
+         * since it's handed to the handler as is.
+         */
+        static Frame merge(List<Frame> frameBatch, BufferPool pool) {
+            int opCode = frameBatch.get(0).opCode;
+            int totalLength = 0;
+            for (Frame frame : frameBatch) totalLength += frame.payloadLength;
+            ByteBuffer pooled = pool != null && opCode != 2 && totalLength > 0 ? pool.acquire(totalLength) : null;
+            byte[] allTheData = pooled != null ? pooled.array() : new byte[totalLength];
+            int offs = 0;
+            for (Frame frame : frameBatch) {
+                System.arraycopy(frame.payloadData, 0, allTheData, offs, frame.payloadLength);
+                offs += frame.payloadLength;
+            }
+            return new Frame(opCode, allTheData, totalLength, true, pooled);
+        }
+    }
+
+    private static class CloseData {
+        private final Integer code;
+        private final String reason;
+
+        CloseData(Integer code, String reason) {
+            this.code = code;
+            this.reason = reason;
+        }
+
+        boolean hasInvalidCode() {
+            if (code == null) return false; // no code isn't invalid
+            if (code < 1000 || code >= 5000) return true;
+            if (code >= 3000) return false; // 3000-3999 and 4000-4999 are valid
+            // 1012-1014 are registered with IANA, e.g. 1013 (Try Again Later) used by SlowConsumerPolicy.
+            return code == 1004 || code == 1005 || code == 1006 || code > 1014;
+        }
+    }
+
+    static class Headers {
+        private final Map<String, String> headers;
+        final String endpoint;
+        final String method;
+        final String query;
+        final String fragment;
+        final URI uri;
+
+        private Headers(Map<String, String> headers, URI uri, String method) {
+            this.headers = headers;
+            this.method = method;
+            this.uri = uri;
+            this.endpoint = uri.getPath();
+            this.query = uri.getQuery();
+            this.fragment = uri.getFragment();
+        }
+
+        boolean isProperUpgrade() {
+            return "websocket".equalsIgnoreCase(headers.get("Upgrade")) && containsToken(headers.get("Connection"), "Upgrade");
+        }
+
+        /**
+         * Tells if the client wants the connection to be closed after the response.
+         */
+        boolean wantsClose() {
+            return containsToken(headers.get("Connection"), "close");
+        }
+
+        /**
+         * Returns the length of the request body, which is 0 if there is no body, or -1 if the body isn't delimited
+         * by a valid Content-Length header (e.g. because chunked transfer encoding is used).
+         */
+        long contentLength() {
+            if (headers.containsKey("Transfer-Encoding")) return -1;
+            String value = headers.get("Content-Length");
+            return value == null ? 0 : parseContentLength(value);
+        }
+
+        static long parseContentLength(String value) {
+            try {
+                long length = Long.parseLong(value.trim());
+                return length >= 0 ? length : -1;
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        /**
+         * Tells if a comma-separated header value, such as "keep-alive, Upgrade", contains a token. The comparison
+         * is case-insensitive.
+         */
+        static boolean containsToken(String value, String token) {
+            if (value == null) return false;
+            for (String part : value.split(",")) {
+                if (token.equalsIgnoreCase(part.trim())) return true;
+            }
+            return false;
+        }
+        int version() {
+            String versionStr = headers.get("Sec-WebSocket-Version");
+            try {
+                return Integer.parseInt(versionStr);
+            } catch (Exception ignore) {
+                return 0;
+            }
+        }
+
+        String key() { return headers.get("Sec-WebSocket-Key"); }
+        String accept() { return headers.get("Sec-WebSocket-Accept"); }
+        String userAgent() { return headers.get("User-Agent"); }
+        String host() { return headers.get("Host"); }
+
+        private static String readHeaderLine(InputStream in) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != 13) {
+                if (b < 0) {
+                    // EOS, return what we have
+                    if (bytes.size() == 0) return null;
+                    break;
+                }
+                bytes.write(b);
+            }
+            if (b != -1) {
+                // Read one more, but it has to be LF
+                if (in.read() != 10) throw new IOException("Expected LF after CR in HTTP header");
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+        }
+
+        static Headers read(InputStream in, boolean isSSL) throws IOException {
+            return read(in, isSSL, false);
+        }
+
+        /**
+         * Reads the headers of a request.
+         *
+         * @param in the stream to read from
+         * @param isSSL whether the connection uses SSL
+         * @param allowEndOfStream if {@code true}, the stream may end before a request has been received, in which
+         *                         case {@code null} is returned
+         * @return the request headers
+         * @throws IOException if reading fails
+         */
+        static Headers read(InputStream in, boolean isSSL, boolean allowEndOfStream) throws IOException {
+            String inputLine, method = "";
+            String path = null;
+            URI endpoint = null;
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            boolean isFirstLine = true;
+            while (true) {
+                inputLine = readHeaderLine(in);
+                if (inputLine == null && isFirstLine && allowEndOfStream) return null;
+                if (inputLine == null || "".equals(inputLine)) break;
+                if (isFirstLine) {
+                    String[] parts = inputLine.split(" ", 3);
+                    if (parts.length != 3) throw new IllegalArgumentException("Malformed 1st header line: " + inputLine);
+                    method = parts[0];
+                    if (!"HTTP/1.1".equals(parts[2])) throw new IllegalArgumentException("Only HTTP/1.1 is supported");
+                    path = parts[1];
+                    isFirstLine = false;
+                }
+
+                String[] keyValue = inputLine.split(":", 2);
+                if (keyValue.length != 2) continue;
+
+                headers.put(keyValue[0], keyValue[1].trim());
+            }
+            if (isFirstLine) throw new IllegalArgumentException("No HTTP headers received");
+
+            // Figure out the entire endpoint
+            try {
+                String scheme = isSSL ? "https" : "http";
+                String host = headers.get("host");
+                if (host == null) host = "server";
+                endpoint = new URI(scheme + "://" + host + path);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid endpoint: " + path);
+            }
+
+            // Note: Do NOT close the reader, because the stream must remain open!
+            return new Headers(headers, endpoint, method);
+        }
+
+        /**
+         * Reads the headers of the response to a WebSocket upgrade request sent by a {@link Connector}.
+         *
+         * @param in the stream to read from
+         * @param uri the URI that was requested
+         * @return the response headers
+         * @throws IOException if reading fails, or if the response isn't a 101 (Switching Protocols) response
+         */
+        static Headers readResponse(InputStream in, URI uri) throws IOException {
+            String statusLine = readHeaderLine(in);
+            if (statusLine == null) throw new EOFException("Connection closed before the handshake response");
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !"HTTP/1.1".equals(parts[0])) throw new IOException("Malformed status line: " + statusLine);
+            if (!"101".equals(parts[1])) throw new IOException("WebSocket upgrade refused: " + statusLine);
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            String inputLine;
+            while ((inputLine = readHeaderLine(in)) != null && !"".equals(inputLine)) {
+                String[] keyValue = inputLine.split(":", 2);
+                if (keyValue.length == 2) headers.put(keyValue[0], keyValue[1].trim());
+            }
+            return new Headers(headers, uri, "GET");
+        }
+    }
+
+    /**
+     * An input stream that reads at most a given number of bytes from another stream, e.g. a request body delimited
+     * by Content-Length. Closing the stream doesn't close the underlying stream.
+     */
+    static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            if (len == 0) return 0;
+            int count = in.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        /**
+         * Reads and discards the rest of the data.
+         *
+         * @return {@code true} if all data could be read, {@code false} if the underlying stream ended prematurely
+         */
+        boolean skipRemaining() throws IOException {
+            byte[] buf = new byte[(int) Math.min(remaining, 4096)];
+            while (remaining > 0) {
+                if (read(buf, 0, buf.length) < 0) return false;
+            }
+            return true;
+        }
+    }
+
+    static class PayloadCoder {
+        private final Charset charset = StandardCharsets.UTF_8;
+        private final CharsetDecoder decoder = charset.newDecoder();
+        private final CharsetEncoder encoder = charset.newEncoder();
+
+        CharSequence decode(byte[] bytes) throws WebSocketClosure {
+            return decode(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Decodes the given byte data as UTF-8 and returns the result as a string.
+         *
+         * @param bytes the byte array
+         * @param offset offset into the array where to start decoding
+         * @param len length of data to decode
+         * @return the decoded string
+         * @throws WebSocketClosure (1007) thrown if the data are not valid UTF-8
+         */
+        CharSequence decode(byte[] bytes, int offset, int len) throws WebSocketClosure {
+            decoder.reset();
+            try {
+                return decoder.decode(ByteBuffer.wrap(bytes, offset, len));
+            } catch (Exception ex) {
+                throw WebSocketClosure.invalidFramePayloadData();
+            }
+        }
+
+        ByteBuffer encode(CharSequence s) throws CharacterCodingException {
+            encoder.reset();
+            ByteBuffer buf = encoder.encode(CharBuffer.wrap(s));
+            assert buf.hasArray() : "Expected ByteBuffer to have an array";
+            return buf;
+        }
+
+        /**
+         * Encodes the given text as UTF-8 into a buffer acquired from the given pool. The encoded length is
+         * computed up front, so that the text is encoded in one go without growing the buffer. The returned buffer
+         * is in read mode and should be released to the pool when no longer needed, using
+         * {@link #release(CharSequence, ByteBuffer, BufferPool)}. A {@link Utf8Text} (e.g. a received message that
+         * is sent on) isn't encoded; the buffer wraps its bytes.
+         *
+         * @param s the text to encode
+         * @param pool the pool to acquire the buffer from
+         * @return a heap buffer that contains the encoded text
+         * @throws CharacterCodingException thrown if the text isn't valid UTF-16 (e.g. has an unpaired surrogate)
+         */
+        ByteBuffer encode(CharSequence s, BufferPool pool) throws CharacterCodingException {
+            if (s instanceof Utf8Text) return ByteBuffer.wrap(((Utf8Text) s).bytes);
+            ByteBuffer buf = pool.acquire(utf8Length(s));
+            try {
+                encoder.reset();
+                CoderResult result = encoder.encode(CharBuffer.wrap(s), buf, true);
+                if (!result.isUnderflow()) result.throwException();
+                result = encoder.flush(buf);
+                if (!result.isUnderflow()) result.throwException();
+            } catch (CharacterCodingException ex) {
+                pool.release(buf);
+                throw ex;
+            }
+            buf.flip();
+            return buf;
+        }
+
+        /**
+         * Releases a buffer returned by {@link #encode(CharSequence, BufferPool)} for the given text.
+         */
+        static void release(CharSequence s, ByteBuffer buf, BufferPool pool) {
+            // The bytes of a Utf8Text must not end up in the pool, which they could if the length matches a size class.
+            if (!(s instanceof Utf8Text)) pool.release(buf);
+        }
+
+        /**
+         * Returns the UTF-8 encoded length of the given text. An unpaired surrogate is counted as 3 bytes, although
+         * it cannot be encoded.
+         */
+        static int utf8Length(CharSequence s) {
+            long len = 0;
+            for (int i = 0, j = s.length(); i < j; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) len += 1;
+                else if (c < 0x800) len += 2;
+                else if (Character.isHighSurrogate(c) && i + 1 < j && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else len += 3;
+            }
+            if (len > Integer.MAX_VALUE) throw new IllegalArgumentException("Text is too long to encode: " + s.length());
+            return (int) len;
+        }
+    }
+
+    static class WebSocketClosure extends IOException {
+        final int code;
+        final String reason;
+        final String debugDetails;
+        final boolean closedByClient;
+
+        private WebSocketClosure(int code, String reason, String debugDetails, boolean closedByClient) {
+            this.code = code;
+            this.reason = reason;
+            this.debugDetails = debugDetails;
+            this.closedByClient = closedByClient;
+        }
+
+        static WebSocketClosure fromClient(int code) {
+            return new WebSocketClosure(code, "", "Closed by client", true);
+        }
+        static WebSocketClosure protocolError(String debugDetails) {
+            return new WebSocketClosure(1002, "Protocol error", debugDetails, false);
+        }
+        static WebSocketClosure goingAway() {
+            return new WebSocketClosure(1001, "Going Away", "Server is shutting down", false);
+        }
+        static WebSocketClosure invalidFramePayloadData() {
+            return new WebSocketClosure(1007, "Invalid frame payload data", null, false);
+        }
+        static WebSocketClosure slowConsumer(int code) {
+            return new WebSocketClosure(code, code == 1008 ? "Policy Violation" : "Try Again Later", "Client is too slow", false);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // Stack trace is not relevant
+            return this;
+        }
+    }
+
+    static class FrameWriter {
+        private final Transport transport;
+        private final OutputStream out;
+        private final PayloadCoder payloadCoder;
+        private final int maxFrameSize;
+        private final BufferPool pool;
+
+        // Write coalescing, see Options.andWriteCoalescing
+        private final CoalescingOutputStream coalescing; // null if disabled
+        private final int coalescingBytes;
+        private final long coalescingDelayNanos;
+        private final Executor flushExecutor;
+        private boolean isFlushScheduled; // guarded by this
+
+        // Set (once) if messages are queued, see SlowConsumerPolicy
+        private OutboundQueue outbound;
+
+        // Masks the payloads of frames sent by a Connector connection; null for a server connection
+        private final MaskingOutputStream masking;
+        // The transport that payload writers write to, which masks the payload if needed
+        private final Transport payloadTransport;
+
+        // Reusable array for writing frame headers, and a buffer that wraps it for writing to the transport directly
+        private final byte[] headerBytes = new byte[MaxHeaderLength + MaskingKeyLength];
+        private final ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes); // guarded by this
+
+        // Held while writing all frames of a data message, so that messages from different senders aren't
+        // interleaved. Control frames only need the frame lock (this), so they can be sent between the fragments of
+        // a message. The message lock is taken before the frame lock, never the other way around.
+        private final ReentrantLock messageLock = new ReentrantLock();
+        private boolean isStreaming; // guarded by messageLock
+
+        FrameWriter(OutputStream out, PayloadCoder payloadCoder, int maxFrameSize) {
+            this(Transport.forStream(out), payloadCoder, maxFrameSize, BufferPool.unpooled());
+        }
+
+        FrameWriter(Transport transport, PayloadCoder payloadCoder, int maxFrameSize, BufferPool pool) {
+            this(transport, payloadCoder, maxFrameSize, pool, 0, 0, null);
+        }
+
+        /**
+         * @param coalescingBytes the buffer size at which coalesced frames are flushed, 0 to disable coalescing
+         * @param coalescingDelayNanos the maximum time that a coalesced frame is held before being flushed
+         * @param flushExecutor the executor that runs delayed flushes
+         */
+        FrameWriter(Transport transport, PayloadCoder payloadCoder, int maxFrameSize, BufferPool pool,
+                    int coalescingBytes, long coalescingDelayNanos, Executor flushExecutor) {
+            this(transport, payloadCoder, maxFrameSize, pool, coalescingBytes, coalescingDelayNanos, flushExecutor, false);
+        }
+
+        /**
+         * @param isMasking {@code true} to mask frame payloads, as a client must
+         */
+        FrameWriter(Transport transport, PayloadCoder payloadCoder, int maxFrameSize, BufferPool pool,
+                    int coalescingBytes, long coalescingDelayNanos, Executor flushExecutor, boolean isMasking) {
+            this.transport = transport;
+            this.coalescing = coalescingBytes > 0 ? new CoalescingOutputStream(transport.outputStream(), coalescingBytes) : null;
+            OutputStream unmasked = coalescing != null ? coalescing : transport.outputStream();
+            this.masking = isMasking ? new MaskingOutputStream(unmasked) : null;
+            this.out = masking != null ? masking : unmasked;
+            this.payloadTransport = masking != null ? Transport.forStream(masking) : transport;
+            this.payloadCoder = payloadCoder;
+            this.maxFrameSize = maxFrameSize;
+            this.pool = pool;
+            this.coalescingBytes = coalescingBytes;
+            this.coalescingDelayNanos = coalescingDelayNanos;
+            this.flushExecutor = flushExecutor;
+        }
+
+        /**
+         * Queues data messages from now on, instead of writing them on the sending thread. Must be called while
+         * holding the message lock, before the writer is used by other threads.
+         */
+        void useOutboundQueue(SlowConsumerPolicy policy, long budget, Executor executor, Metrics metrics, IntConsumer closer) {
+            outbound = new OutboundQueue(policy, budget, executor, metrics, closer);
+        }
+
+        /**
+         * Returns whether data messages are queued with a policy that never blocks the sender on a slow client.
+         */
+        boolean queuesWithoutBlocking() {
+            return outbound != null && outbound.policy != SlowConsumerPolicy.BLOCK;
+        }
+
+        /**
+         * Waits until no queued message is being written, or until the timeout expires.
+         *
+         * @return {@code true} if no queued message is being written
+         */
+        boolean awaitQueuedWriteDone(long timeoutMillis) {
+            return outbound == null || outbound.awaitNotWriting(timeoutMillis);
+        }
+
+        void writeClose(int code, String reason) throws IOException {
+            // Queued messages were sent before the close.
+            if (outbound != null) outbound.awaitWritten();
+            ByteBuffer buf = payloadCoder.encode(reason, pool);
+            ByteBuffer combined = pool.acquire(2 + buf.limit());
+            try {
+                numberToBytes(code, 2, combined.array());
+                combined.position(2);
+                combined.put(buf);
+                writeFrame(8 | 128, combined.array(), 0, combined.position());
+            } finally {
+                pool.release(combined);
+                pool.release(buf);
+            }
+        }
+
+        void writeText(CharSequence text) throws IOException {
+            ByteBuffer buf = payloadCoder.encode(text, pool);
+            lockMessage();
+            try {
+                if (outbound != null) outbound.offer(null, encodeFrames(1, buf.array(), 0, buf.limit(), maxFrameSize));
+                else writePossiblyFragmentedFrames(1, buf.array(), 0, buf.limit());
+            } finally {
+                messageLock.unlock();
+                PayloadCoder.release(text, buf, pool);
+            }
+        }
+
+        void writeBinary(byte[] data) throws IOException {
+            writeBinary(data, 0, data.length);
+        }
+
+        /**
+         * Writes a message that replaces a pending message with the same key, see
+         * {@link WebSocketClient#sendTextMessage(Object, CharSequence)}.
+         */
+        void writeKeyed(Object key, int opCode, byte[] data, int length) throws IOException {
+            lockMessage();
+            try {
+                if (outbound != null) outbound.offer(key, encodeFrames(opCode, data, 0, length, maxFrameSize));
+                else writePossiblyFragmentedFrames(opCode, data, 0, length);
+            } finally {
+                messageLock.unlock();
+            }
+        }
+
+        void writeText(Object key, CharSequence text) throws IOException {
+            ByteBuffer buf = payloadCoder.encode(text, pool);
+            try {
+                writeKeyed(key, 1, buf.array(), buf.limit());
+            } finally {
+                PayloadCoder.release(text, buf, pool);
+            }
+        }
+
+        void writeBinary(byte[] data, int offset, int length) throws IOException {
+            lockMessage();
+            try {
+                if (outbound != null) outbound.offer(null, encodeFrames(2, data, offset, length, maxFrameSize));
+                else writePossiblyFragmentedFrames(2, data, offset, length);
+            } finally {
+                messageLock.unlock();
+            }
+        }
+
+        /**
+         * Writes the remaining data of a buffer as a binary message, without modifying the buffer. The data of a
+         * direct buffer are written by the transport, so that they don't need to be copied to the heap on a plain
+         * connection.
+         */
+        void writeBinary(ByteBuffer data) throws IOException {
+            if (data.hasArray()) {
+                writeBinary(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                return;
+            }
+            ByteBuffer source = data.duplicate();
+            int start = source.position();
+            lockMessage();
+            try {
+                if (outbound != null) outbound.awaitWrittenBeforeUnqueued();
+                writePossiblyFragmentedFrames(2, source.remaining(), (offset, len) -> {
+                    source.limit(start + (int) offset + len);
+                    source.position(start + (int) offset);
+                    payloadTransport.write(source);
+                });
+            } finally {
+                messageLock.unlock();
+            }
+        }
+
+        /**
+         * Writes a region of a file as a binary message. The file data are written by the transport, which uses
+         * {@link FileChannel#transferTo} on a plain connection, so that the data never enter the heap.
+         *
+         * @throws EOFException if the file ends before the region does, in which case the connection is left with
+         * an incomplete frame
+         */
+        void writeBinary(FileChannel file, long position, long count) throws IOException {
+            lockMessage();
+            try {
+                if (outbound != null) outbound.awaitWrittenBeforeUnqueued();
+                writePossiblyFragmentedFrames(2, count, (offset, len) -> {
+                    long written = payloadTransport.transferFrom(file, position + offset, len);
+                    if (written < len) throw new EOFException("File ended after " + (offset + written) + " of " + count + " bytes");
+                });
+            } finally {
+                messageLock.unlock();
+            }
+        }
+
+        /**
+         * Opens a streamed message, see {@link WebSocketClient#openBinaryMessage()}. The message lock is held until
+         * the returned stream is closed.
+         *
+         * @param opCode the opcode of the message
+         * @return a stream that writes the message payload
+         */
+        MessageOutputStream openMessage(int opCode) {
+            lockMessage();
+            try {
+                if (outbound != null) outbound.awaitWrittenBeforeUnqueued();
+            } catch (IOException ex) {
+                messageLock.unlock();
+                throw new UncheckedIOException(ex);
+            } catch (RuntimeException ex) {
+                messageLock.unlock();
+                throw ex;
+            }
+            isStreaming = true;
+            return new MessageOutputStream(opCode);
+        }
+
+        /**
+         * Takes the message lock. A thread that has a streamed message open cannot send another message, since that
+         * would interleave the messages.
+         */
+        private void lockMessage() {
+            if (isStreaming && messageLock.isHeldByCurrentThread())
+                throw new IllegalStateException("Cannot send a message while a streamed message is open on the same thread.");
+            messageLock.lock();
+        }
+
+        /**
+         * The payload stream of a streamed message. Data are buffered (in a pooled buffer) and sent as a fragment
+         * each time the buffer fills up. The final fragment is sent when the stream is closed. The stream must be
+         * used by a single thread, the one that opened it.
+         */
+        class MessageOutputStream extends OutputStream {
+            private final int opCode;
+            private final ByteBuffer buffer;
+            private boolean isFirstFrame = true;
+            private boolean isClosed;
+
+            private MessageOutputStream(int opCode) {
+                this.opCode = opCode;
+                // Without a maximum frame size, use a fragment size that fits a TLS record.
+                this.buffer = pool.acquire(maxFrameSize > 0 ? maxFrameSize : RecordAlignedFrameSize);
+                buffer.limit(maxFrameSize > 0 ? maxFrameSize : RecordAlignedFrameSize);
+            }
+
+            private void ensureOpen() throws IOException {
+                if (isClosed) throw new IOException("Message stream is closed");
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                ensureOpen();
+                // Only send a full buffer when there's more data, since the last fragment is sent on close.
+                if (!buffer.hasRemaining()) sendFragment(false);
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (off < 0 || len < 0 || off > b.length - len) throw new IndexOutOfBoundsException();
+                ensureOpen();
+                while (len > 0) {
+                    if (!buffer.hasRemaining()) sendFragment(false);
+                    int count = Math.min(len, buffer.remaining());
+                    buffer.put(b, off, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+
+            /**
+             * Sends buffered data, if any, as a fragment, and flushes coalesced frames.
+             */
+            @Override
+            public void flush() throws IOException {
+                ensureOpen();
+                if (buffer.position() > 0) sendFragment(false);
+                FrameWriter.this.flush();
+            }
+
+            /**
+             * Sends the final fragment and ends the message, which lets other senders send messages.
+             */
+            @Override
+            public void close() throws IOException {
+                if (isClosed) return;
+                isClosed = true;
+                try {
+                    sendFragment(true);
+                } finally {
+                    pool.release(buffer);
+                    isStreaming = false;
+                    messageLock.unlock();
+                }
+            }
+
+            private void sendFragment(boolean isFinal) throws IOException {
+                int firstByte = isFirstFrame ? opCode : 0;
+                if (isFinal) firstByte |= 128; // FIN
+                writeFrame(firstByte, buffer.array(), 0, buffer.position());
+                isFirstFrame = false;
+                buffer.clear();
+                buffer.limit(maxFrameSize > 0 ? maxFrameSize : RecordAlignedFrameSize);
+            }
+        }
+
+        /**
+         * A writer for a streamed text message, which encodes characters as UTF-8 into a message stream without
+         * intermediate buffers.
+         */
+        static class TextMessageWriter extends Writer {
+            private final MessageOutputStream out;
+            private char highSurrogate; // pending high surrogate of a pair split across writes, or 0
+
+            TextMessageWriter(MessageOutputStream out) {
+                this.out = out;
+            }
+
+            @Override
+            public void write(int c) throws IOException {
+                writeChar((char) c);
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                if (off < 0 || len < 0 || off > cbuf.length - len) throw new IndexOutOfBoundsException();
+                for (int i = off, j = off + len; i < j; i++) writeChar(cbuf[i]);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                // Writer's implementation copies the string into a char array.
+                append(str, off, off + len);
+            }
+
+            @Override
+            public Writer append(CharSequence csq) throws IOException {
+                CharSequence s = csq != null ? csq : "null";
+                return append(s, 0, s.length());
+            }
+
+            @Override
+            public Writer append(CharSequence csq, int start, int end) throws IOException {
+                CharSequence s = csq != null ? csq : "null";
+                if (start < 0 || start > end || end > s.length()) throw new IndexOutOfBoundsException();
+                for (int i = start; i < end; i++) writeChar(s.charAt(i));
+                return this;
+            }
+
+            private void writeChar(char c) throws IOException {
+                if (highSurrogate != 0) {
+                    if (!Character.isLowSurrogate(c)) throw new MalformedInputException(1);
+                    int codePoint = Character.toCodePoint(highSurrogate, c);
+                    highSurrogate = 0;
+                    out.write(0xf0 | (codePoint >> 18));
+                    out.write(0x80 | ((codePoint >> 12) & 0x3f));
+                    out.write(0x80 | ((codePoint >> 6) & 0x3f));
+                    out.write(0x80 | (codePoint & 0x3f));
+                } else if (c < 0x80) {
+                    out.write(c);
+                } else if (c < 0x800) {
+                    out.write(0xc0 | (c >> 6));
+                    out.write(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c)) {
+                    highSurrogate = c;
+                } else if (Character.isLowSurrogate(c)) {
+                    throw new MalformedInputException(1);
+                } else {
+                    out.write(0xe0 | (c >> 12));
+                    out.write(0x80 | ((c >> 6) & 0x3f));
+                    out.write(0x80 | (c & 0x3f));
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            /**
+             * Ends the message. A pending unpaired high surrogate is reported after the message has been ended.
+             */
+            @Override
+            public void close() throws IOException {
+                boolean isMalformed = highSurrogate != 0;
+                highSurrogate = 0;
+                out.close();
+                if (isMalformed) throw new MalformedInputException(1);
+            }
+        }
+
+        /**
+         * Writes a data frame read from another connection, e.g. a fragment of a message, without decoding or
+         * re-fragmenting it, see {@link RelayHandler}. The payload is masked if this writer masks.
+         */
+        void forwardFrame(int opCode, boolean isFin, byte[] payload, int length) throws IOException {
+            lockMessage();
+            try {
+                if (outbound != null) outbound.awaitWrittenBeforeUnqueued();
+                writeFrame((isFin ? 128 : 0) | opCode, payload, 0, length);
+            } finally {
+                messageLock.unlock();
+            }
+        }
+
+        void writePing(byte[] data) throws IOException {
+            writeFrame(9, data);
+        }
+
+        void writePong(byte[] data) throws IOException {
+            writeFrame(10, data);
+        }
+
+        void writePong(byte[] data, int len) throws IOException {
+            writeFrame(10 | 128, data, 0, len);
+        }
+
+        /**
+         * Encodes a message as complete (possibly fragmented) frames, ready to be written using
+         * {@link #writeEncoded(byte[])}. This makes it possible to encode a message once and write it to multiple
+         * clients.
+         *
+         * @param opCode the opcode of the message
+         * @param buf the message payload
+         * @param maxFrameSize the maximum frame size, 0 for no fragmentation
+         * @return the encoded frames
+         */
+        static byte[] encodeFrames(int opCode, ByteBuffer buf, int maxFrameSize) {
+            return encodeFrames(opCode, buf.array(), 0, buf.limit(), maxFrameSize);
+        }
+
+        /**
+         * Encodes a message whose payload is a region of an array, see {@link #encodeFrames(int, ByteBuffer, int)}.
+         */
+        static byte[] encodeFrames(int opCode, byte[] data, int dataOffset, int bufLen, int maxFrameSize) {
+            int fragmentSize = maxFrameSize == 0 || bufLen <= maxFrameSize ? Math.max(bufLen, 1) : maxFrameSize;
+            int fragmentCount = Math.max(1, (bufLen + fragmentSize - 1) / fragmentSize);
+            int lastFragmentSize = bufLen - (fragmentCount - 1) * fragmentSize;
+            int totalLen = (fragmentCount - 1) * (headerLength(fragmentSize) + fragmentSize) +
+                    headerLength(lastFragmentSize) + lastFragmentSize;
+            byte[] result = new byte[totalLen];
+            int pos = 0;
+            for (int offset = 0; offset == 0 || offset < bufLen; offset += fragmentSize) {
+                int len = Math.min(bufLen - offset, fragmentSize);
+                pos += encodeHeader(firstByte(opCode, bufLen, offset, len), len, result, pos);
+                System.arraycopy(data, dataOffset + offset, result, pos, len);
+                pos += len;
+            }
+            return result;
+        }
+
+        /**
+         * Writes frames encoded using {@link #encodeFrames(int, ByteBuffer)}.
+         *
+         * @param frames the encoded frames
+         * @throws IOException thrown if writing to the socket fails
+         */
+        void writeEncoded(byte[] frames) throws IOException {
+            lockMessage();
+            try {
+                if (outbound != null) {
+                    outbound.offer(null, frames);
+                    return;
+                }
+                writeEncodedFrames(frames);
+            } finally {
+                messageLock.unlock();
+            }
+        }
+
+        /**
+         * Writes encoded frames, see {@link #encodeFrames(int, ByteBuffer, int)}. Since encoded frames aren't masked,
+         * each frame is written separately with a masked payload if this writer masks.
+         */
+        private synchronized void writeEncodedFrames(byte[] frames) throws IOException {
+            if (masking == null) {
+                out.write(frames);
+                frameWritten(frames[0]);
+                return;
+            }
+            int pos = 0;
+            while (pos < frames.length) {
+                int len = frames[pos + 1] & 127;
+                int headerLen = 2;
+                if (len == 126) {
+                    len = (int) Frame.toLong(frames, pos + 2, 2);
+                    headerLen = 4;
+                } else if (len == 127) {
+                    len = (int) Frame.toLong(frames, pos + 2, 8);
+                    headerLen = 10;
+                }
+                writeFrame(frames[pos] & 0xff, frames, pos + headerLen, len);
+                pos += headerLen + len;
+            }
+        }
+
+        /**
+         * A queue of encoded messages with a byte budget, written to the client by a writer task on an executor. A
+         * queued message counts against the budget until it has been written. A message is always admitted to an
+         * empty queue, even if it's larger than the budget.
+         *
+         * A message with a key replaces a queued message with the same key in place, so there is at most one queued
+         * message per key, in the order in which the keys were first queued.
+         */
+        class OutboundQueue {
+            private final SlowConsumerPolicy policy;
+            private final long budget;
+            private final Executor executor;
+            private final Metrics metrics;
+            private final IntConsumer closer;
+            private final ArrayDeque<Pending> queue = new ArrayDeque<>(); // guarded by this
+            private final Map<Object, Pending> keyed = new HashMap<>(); // guarded by this
+            private long queuedBytes; // guarded by this, includes the message being written
+            private boolean isWriting; // guarded by this
+            private boolean isClosed; // guarded by this
+
+            OutboundQueue(SlowConsumerPolicy policy, long budget, Executor executor, Metrics metrics, IntConsumer closer) {
+                this.policy = policy;
+                this.budget = budget;
+                this.executor = executor;
+                this.metrics = metrics;
+                this.closer = closer;
+            }
+
+            synchronized void offer(Object key, byte[] frames) throws IOException {
+                if (isClosed) throw new IOException("Connection is closed");
+                Pending replaced = key != null ? keyed.get(key) : null;
+                if (replaced != null) {
+                    queuedBytes += frames.length - replaced.frames.length;
+                    replaced.frames = frames;
+                    metrics.conflatedMessages.increment();
+                    return;
+                }
+                if (queuedBytes > 0 && queuedBytes + frames.length > budget) {
+                    switch (policy) {
+                        case BLOCK:
+                            metrics.blockedSends.increment();
+                            try {
+                                while (!isClosed && queuedBytes > 0 && queuedBytes + frames.length > budget) wait();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted while waiting for the outbound queue");
+                            }
+                            if (isClosed) throw new IOException("Connection is closed");
+                            break;
+                        case DROP_NEWEST:
+                            metrics.droppedNewestMessages.increment();
+                            return;
+                        case DROP_OLDEST:
+                            // The message being written cannot be dropped.
+                            while (!queue.isEmpty() && queuedBytes + frames.length > budget) {
+                                Pending dropped = queue.removeFirst();
+                                if (dropped.key != null) keyed.remove(dropped.key);
+                                queuedBytes -= dropped.frames.length;
+                                metrics.droppedOldestMessages.increment();
+                            }
+                            break;
+                        default:
+                            metrics.slowConsumerCloses.increment();
+                            close();
+                            closer.accept(policy.closeCode);
+                            throw new IOException("Closing slow client");
+                    }
+                }
+                Pending pending = new Pending(key, frames);
+                queue.addLast(pending);
+                if (key != null) keyed.put(key, pending);
+                queuedBytes += frames.length;
+                if (!isWriting) {
+                    isWriting = true;
+                    executor.execute(this::writeQueued);
+                }
+            }
+
+            /**
+             * Waits until no message is being written, also after the queue has been closed (when the message being
+             * written is the last one).
+             *
+             * @return {@code true} if no message is being written
+             */
+            synchronized boolean awaitNotWriting(long timeoutMillis) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                long remaining;
+                try {
+                    while (isWriting && (remaining = deadline - System.nanoTime()) > 0) wait(Math.max(1, remaining / 1000000));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return !isWriting;
+            }
+
+            /**
+             * Waits until all queued messages have been written, before a message that isn't queued (see
+             * {@link SlowConsumerPolicy}) is written by the sender. The policy applies to the wait: with
+             * {@link SlowConsumerPolicy#BLOCK} the sender waits for as long as it takes, while the close policies
+             * close the connection if the queue hasn't been written within a grace period. Such a message cannot be
+             * dropped, so the drop policies reject it.
+             *
+             * @throws UnsupportedOperationException if the policy drops messages
+             */
+            synchronized void awaitWrittenBeforeUnqueued() throws IOException {
+                switch (policy) {
+                    case BLOCK:
+                        awaitWritten();
+                        break;
+                    case DROP_NEWEST:
+                    case DROP_OLDEST:
+                        throw new UnsupportedOperationException("Cannot send a message that isn't queued with the " +
+                                policy + " policy");
+                    default:
+                        if (isClosed) throw new IOException("Connection is closed");
+                        if (!awaitNotWriting(SlowConsumerCloseGraceMillis)) {
+                            metrics.slowConsumerCloses.increment();
+                            close();
+                            closer.accept(policy.closeCode);
+                            throw new IOException("Closing slow client");
+                        }
+                        if (isClosed) throw new IOException("Connection is closed");
+                }
+            }
+
+            /**
+             * Waits until all queued messages have been written.
+             */
+            synchronized void awaitWritten() throws IOException {
+                try {
+                    while (!isClosed && isWriting) wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the outbound queue");
+                }
+            }
+
+            private void close() {
+                isClosed = true;
+                queue.clear();
+                keyed.clear();
+                notifyAll();
+            }
+
+            private void writeQueued() {
+                while (true) {
+                    byte[] frames;
+                    synchronized (this) {
+                        Pending pending = queue.pollFirst();
+                        if (pending == null) {
+                            isWriting = false;
+                            notifyAll();
+                            return;
+                        }
+                        // Once being written, a message cannot be replaced.
+                        if (pending.key != null) keyed.remove(pending.key);
+                        frames = pending.frames;
+                    }
+                    try {
+                        writeEncodedFrames(frames);
+                    } catch (IOException ex) {
+                        // The connection is broken, which the reading thread will notice.
+                        synchronized (this) {
+                            close();
+                            isWriting = false;
+                        }
+                        return;
+                    }
+                    synchronized (this) {
+                        queuedBytes -= frames.length;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * A queued message.
+         */
+        private static class Pending {
+            final Object key; // null if the message cannot be replaced
+            byte[] frames;
+
+            Pending(Object key, byte[] frames) {
+                this.key = key;
+                this.frames = frames;
+            }
+        }
+
+        private void writePossiblyFragmentedFrames(int opCode, byte[] data, int offset, int length) throws IOException {
+            // https://tools.ietf.org/html/rfc6455#section-5.6 implies that a single frame may contain an UTF-8
+            // sequence that by itself is invalid, as long as the entire message text is valid UTF-8.
+            if (maxFrameSize == 0 || length <= maxFrameSize) {
+                writeFrame(opCode | 128, data, offset, length);
+            } else {
+                int written = 0;
+                while (written < length) {
+                    int len = Math.min(length - written, maxFrameSize);
+                    writeFrame(firstByte(opCode, length, written, len), data, offset + written, len);
+                    written += len;
+                }
+            }
+        }
+
+        /**
+         * Writes a message whose payload is written by the given payload writer, frame by frame.
+         */
+        private void writePossiblyFragmentedFrames(int opCode, long length, PayloadWriter payload) throws IOException {
+            // Without a maximum frame size, only a payload that exceeds the maximum frame length is fragmented.
+            int fragmentSize = maxFrameSize == 0 ? Integer.MAX_VALUE : maxFrameSize;
+            long written = 0;
+            do {
+                int len = (int) Math.min(length - written, fragmentSize);
+                writeFrame(firstByte(opCode, length, written, len), len, payload, written);
+                written += len;
+            } while (written < length);
+        }
+
+        private void writeFrame(int opCode, byte[] data) throws IOException {
+            writeFrame(opCode | 128, data, 0, data != null ? data.length : 0);
+        }
+
+        /**
+         * Writes a frame to the output stream. Since FrameWriter is handed out to potentially different threads,
+         * this method is synchronized.
+         *
+         * @param firstByte the first byte of the frame, i.e. FIN and the opcode
+         * @param data array that contains frame data
+         * @param offset offset in the {@code data} array where the frame data starts
+         * @param len length of frame data
+         * @throws IOException thrown if writing to the socket fails
+         */
+        synchronized private void writeFrame(int firstByte, byte[] data, int offset, int len) throws IOException {
+            writeHeader(firstByte, len);
+            if (data != null) out.write(data, offset, len);
+            frameWritten(firstByte);
+        }
+
+        /**
+         * Writes a frame header, with a masking key if this writer masks, in which case the next {@code len} bytes
+         * written are masked.
+         */
+        private void writeHeader(int firstByte, int len) throws IOException {
+            int headerLen = encodeHeader(firstByte, len, headerBytes, 0);
+            if (masking == null) {
+                if (coalescing == null) {
+                    // Not via the output stream of the transport, which would wrap the array in a new buffer.
+                    headerBuffer.clear().limit(headerLen);
+                    transport.write(headerBuffer);
+                } else {
+                    out.write(headerBytes, 0, headerLen);
+                }
+                return;
+            }
+            headerBytes[1] |= (byte) 128;
+            int maskingKey = masking.nextMaskingKey();
+            for (int i = 0; i < MaskingKeyLength; i++) headerBytes[headerLen + i] = (byte) (maskingKey >>> (24 - 8 * i));
+            out.write(headerBytes, 0, headerLen + MaskingKeyLength);
+            masking.maskPayload(maskingKey, len);
+        }
+
+        /**
+         * Writes a frame whose data are written by a payload writer. See {@link #writeFrame(int, byte[], int, int)}.
+         *
+         * @param offset offset of the frame data in the message
+         */
+        synchronized private void writeFrame(int firstByte, int len, PayloadWriter payload, long offset) throws IOException {
+            writeHeader(firstByte, len);
+            if (len > 0) {
+                // The payload writer writes to the transport, after the header and any coalesced frames. A masked
+                // payload is written via the masking stream, and thus after the coalesced frames anyway.
+                if (coalescing != null && masking == null) coalescing.drain();
+                payload.write(offset, len);
+            }
+            out.flush();
+        }
+
+        /**
+         * Flushes a frame that has been written, unless frames are coalesced. A coalesced frame is flushed when
+         * the coalescing buffer is full enough, or else by a delayed flush. Control frames are always flushed right
+         * away. A frame that is written while a delayed flush is pending is flushed by that flush, so no frame is
+         * held for longer than the coalescing delay.
+         */
+        private void frameWritten(int firstByte) throws IOException {
+            if (coalescing == null || (firstByte & 8) != 0 || coalescing.size() >= coalescingBytes) {
+                out.flush();
+            } else if (!isFlushScheduled) {
+                isFlushScheduled = true;
+                FlushTimer.Instance.schedule(this::scheduleFlush, coalescingDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void scheduleFlush() {
+            // A flush blocks while the client isn't reading, so it must not run on the timer thread.
+            try {
+                flushExecutor.execute(this::delayedFlush);
+            } catch (RejectedExecutionException ex) {
+                delayedFlush();
+            }
+        }
+
+        private synchronized void delayedFlush() {
+            isFlushScheduled = false;
+            try {
+                if (coalescing.size() > 0) out.flush();
+            } catch (IOException ex) {
+                // The connection is broken, which the reading thread will notice.
+            }
+        }
+
+        /**
+         * Writes coalesced frames, if any, to the client.
+         */
+        synchronized void flush() throws IOException {
+            if (coalescing != null && coalescing.size() > 0) out.flush();
+        }
+
+        private interface PayloadWriter {
+            /**
+             * Writes {@code len} bytes of the message payload, starting at {@code offset} in the message.
+             */
+            void write(long offset, int len) throws IOException;
+        }
+
+        private static int firstByte(int opCode, long totalLen, long offset, int len) {
+            boolean isFirstFrame = offset == 0;
+            boolean isFinalFrame = offset + len == totalLen;
+
+            int firstByte = isFirstFrame ? opCode : 0;
+            if (isFinalFrame) firstByte |= 128; // FIN
+            return firstByte;
+        }
+
+        private static int headerLength(int len) {
+            return len < 126 ? 2 : len < 65536 ? 4 : 10;
+        }
+
+        /**
+         * Encodes an unmasked frame header into the given array.
+         *
+         * @return the header length
+         */
+        private static int encodeHeader(int firstByte, int len, byte[] target, int offset) {
+            target[offset] = (byte) firstByte;
+            int extraLengthBytes = headerLength(len) - 2;
+            if (extraLengthBytes == 0) {
+                target[offset + 1] = (byte) len;
+            } else {
+                target[offset + 1] = (byte) (extraLengthBytes == 2 ? 126 : 127);
+                writeNumber(len, extraLengthBytes, target, offset + 2);
+            }
+            return 2 + extraLengthBytes;
+        }
+    }
+
+    /**
+     * An output stream that collects written frames in a buffer, so that a burst of small messages is written to the
+     * underlying stream in one go, which means fewer TCP segments and (on SSL) fewer TLS records. A write that doesn't
+     * fit in the buffer is passed on without being copied.
+     */
+    static class CoalescingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int count;
+
+        CoalescingOutputStream(OutputStream out, int size) {
+            this.out = out;
+            this.buffer = new byte[size];
+        }
+
+        /**
+         * Returns the number of buffered bytes.
+         */
+        int size() { return count; }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) drain();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.length - count) {
+                drain();
+                if (len >= buffer.length) {
+                    out.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        /**
+         * Writes the buffered bytes to the underlying stream, without flushing it.
+         */
+        void drain() throws IOException {
+            if (count == 0) return;
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+    }
+
+    /**
+     * An output stream that masks the payloads of frames sent by a client (see
+     * <a href="https://tools.ietf.org/html/rfc6455#section-5.3">RFC 6455, section 5.3</a>). The frame writer writes a
+     * frame header with a key from {@link #nextMaskingKey()}, and then announces the payload length using
+     * {@link #maskPayload(int, long)}, after which that many written bytes are masked. Masked bytes are written via a
+     * scratch buffer, so the data of the caller aren't modified.
+     *
+     * Masking keys are drawn from a fast generator seeded per connection from a {@link SecureRandom}, rather than from
+     * the {@code SecureRandom} itself. The keys protect intermediaries from data chosen by a script in a browser,
+     * which cannot observe the keys of a connection anyway.
+     */
+    static class MaskingOutputStream extends OutputStream {
+        private static final SecureRandom SeedSource = new SecureRandom();
+
+        private final OutputStream out;
+        private final byte[] scratch = new byte[8192];
+        private final SplittableRandom keys = new SplittableRandom(SeedSource.nextLong());
+        private final byte[] key = new byte[MaskingKeyLength];
+        private int keyIndex; // index of the key byte that masks the next payload byte
+        private long remaining; // the number of payload bytes left to mask
+
+        MaskingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        int nextMaskingKey() {
+            return keys.nextInt();
+        }
+
+        void maskPayload(int maskingKey, long len) {
+            for (int i = 0; i < MaskingKeyLength; i++) key[i] = (byte) (maskingKey >>> (24 - 8 * i));
+            keyIndex = 0;
+            remaining = len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (remaining > 0) {
+                b ^= key[keyIndex];
+                keyIndex = (keyIndex + 1) & 3;
+                remaining--;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && remaining > 0) {
+                int count = (int) Math.min(Math.min(len, remaining), scratch.length);
+                // As in unmaskIfNeededInPlace, masking four bytes per iteration is faster.
+                byte m0 = key[keyIndex], m1 = key[(keyIndex + 1) & 3], m2 = key[(keyIndex + 2) & 3], m3 = key[(keyIndex + 3) & 3];
+                int roundedLen = count & ~3;
+                int i = 0;
+                for (; i < roundedLen; i += 4) {
+                    scratch[i] = (byte) (b[off + i] ^ m0);
+                    scratch[i + 1] = (byte) (b[off + i + 1] ^ m1);
+                    scratch[i + 2] = (byte) (b[off + i + 2] ^ m2);
+                    scratch[i + 3] = (byte) (b[off + i + 3] ^ m3);
+                }
+                for (; i < count; i++) scratch[i] = (byte) (b[off + i] ^ key[(keyIndex + i) & 3]);
+                keyIndex = (keyIndex + count) & 3;
+                remaining -= count;
+                out.write(scratch, 0, count);
+                off += count;
+                len -= count;
+            }
+            if (len > 0) out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * The timer of delayed flushes of coalesced frames, shared by all servers and connectors, and created when first
+     * needed. The timer thread only hands flushes over to an executor. It also runs the close timeouts of
+     * {@link Connector} connections, which only close a transport.
+     */
+    private static class FlushTimer {
+        static final ScheduledExecutorService Instance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tinyws-flush-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Topic-based publish/subscribe for WebSocket clients. Clients subscribe to topics, and a message published to a
+     * topic is sent to all clients that are subscribed to it. A client is unsubscribed from all its topics when its
+     * connection is closed.
+     *
+     * Publishing is asynchronous: messages are encoded and sent on the pub/sub executor (see
+     * {@link Options#andPubSubExecutor(Executor)}). A message is encoded once, regardless of the number of
+     * subscribers. Messages published to the same topic are sent in publishing order, but there is no ordering
+     * guarantee across topics.
+     *
+     * A subscriber whose endpoint queues messages with a policy that doesn't block (see {@link SlowConsumerPolicy})
+     * gets published messages queued right away. Messages to other subscribers are handed to a per-subscriber queue
+     * and written on the pub/sub executor, so that a subscriber that doesn't read only holds up its own messages.
+     * Such a queue isn't bounded, so use a slow-consumer policy for endpoints with many or large published messages.
+     *
+     * The subscription index doesn't use a global lock, so subscribing and unsubscribing are cheap also with many
+     * topics. All methods can be invoked from any thread.
+     */
+    public class Topics {
+        private final ConcurrentMap<String, Set<WebSocketClientImpl>> subscribers = new ConcurrentHashMap<>();
+        private final PublishStripe[] stripes;
+        private final Executor executor;
+
+        private Topics(Executor executor) {
+            this.executor = executor;
+            // A power of two (for cheap striping) that is at least twice the number of processors.
+            stripes = new PublishStripe[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2];
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new PublishStripe(executor);
+        }
+
+        private WebSocketClientImpl impl(WebSocketClient client) {
+            if (!(client instanceof WebSocketClientImpl)) throw new IllegalArgumentException("Unknown client: " + client);
+            return (WebSocketClientImpl) client;
+        }
+
+        /**
+         * Subscribes a client to a topic. Subscribing more than once has no effect.
+         *
+         * @param topic the non-{@code null} topic
+         * @param client a client obtained from {@link WebSocketHandler#onOpened(WebSocketClient)}
+         */
+        public void subscribe(String topic, WebSocketClient client) {
+            if (topic == null) throw new IllegalArgumentException("Topic cannot be null.");
+            WebSocketClientImpl impl = impl(client);
+            if (!impl.topics.add(topic)) return;
+            // compute locks a single bin, which makes the add atomic with respect to the removal of an empty set in
+            // unsubscribe.
+            subscribers.compute(topic, (t, clients) -> {
+                if (clients == null) clients = ConcurrentHashMap.newKeySet();
+                clients.add(impl);
+                return clients;
+            });
+            // Handle a race with unsubscribeAll for a client whose connection was just closed.
+            if (impl.isUnsubscribed) {
+                impl.topics.remove(topic);
+                removeSubscriber(topic, impl);
+            }
+        }
+
+        /**
+         * Unsubscribes a client from a topic. Does nothing if the client isn't subscribed to the topic.
+         *
+         * @param topic the non-{@code null} topic
+         * @param client a client obtained from {@link WebSocketHandler#onOpened(WebSocketClient)}
+         */
+        public void unsubscribe(String topic, WebSocketClient client) {
+            if (topic == null) throw new IllegalArgumentException("Topic cannot be null.");
+            WebSocketClientImpl impl = impl(client);
+            if (impl.topics.remove(topic)) removeSubscriber(topic, impl);
+        }
+
+        void unsubscribeAll(WebSocketClientImpl client) {
+            client.isUnsubscribed = true;
+            for (String topic : client.topics) {
+                if (client.topics.remove(topic)) removeSubscriber(topic, client);
+            }
+        }
+
+        private void removeSubscriber(String topic, WebSocketClientImpl client) {
+            subscribers.computeIfPresent(topic, (t, clients) -> {
+                clients.remove(client);
+                return clients.isEmpty() ? null : clients;
+            });
+        }
+
+        /**
+         * Returns the number of clients currently subscribed to a topic.
+         *
+         * @param topic the non-{@code null} topic
+         * @return the number of subscribers
+         */
+        public int subscriberCount(String topic) {
+            Set<WebSocketClientImpl> clients = subscribers.get(topic);
+            return clients != null ? clients.size() : 0;
+        }
+
+        /**
+         * Publishes a text message to all clients subscribed to a topic.
+         *
+         * @param topic the non-{@code null} topic
+         * @param text the non-{@code null} text to publish
+         */
+        public void publish(String topic, CharSequence text) {
+            if (text == null) throw new IllegalArgumentException("Cannot publish null text");
+            publish(topic, 1, text);
+        }
+
+        /**
+         * Publishes binary data to all clients subscribed to a topic. The data must not be modified after having
+         * been passed to this method.
+         *
+         * @param topic the non-{@code null} topic
+         * @param data the non-{@code null} data to publish
+         */
+        public void publish(String topic, byte[] data) {
+            if (data == null) throw new IllegalArgumentException("Cannot publish null data");
+            publish(topic, 2, data);
+        }
+
+        private void publish(String topic, int opCode, Object message) {
+            if (topic == null) throw new IllegalArgumentException("Topic cannot be null.");
+            if (!subscribers.containsKey(topic)) return;
+            PublishStripe stripe = stripes[(topic.hashCode() & 0x7fffffff) & (stripes.length - 1)];
+            stripe.execute(() -> stripe.fanOut(topic, opCode, message));
+        }
+
+        /**
+         * Publishing for a subset of the topics is serialized on a stripe, which guarantees per-topic ordering while
+         * letting different topics be published in parallel.
+         */
+        private class PublishStripe extends SerialExecutor {
+            // Only used from the serial task, so it's never used concurrently.
+            private final PayloadCoder payloadCoder = new PayloadCoder();
+
+            PublishStripe(Executor executor) {
+                super(executor);
+            }
+
+            void fanOut(String topic, int opCode, Object message) {
+                Set<WebSocketClientImpl> clients = subscribers.get(topic);
+                if (clients == null || clients.isEmpty()) return;
+                byte[] frames;
+                ByteBuffer payload = null;
+                try {
+                    payload = opCode == 1 ? payloadCoder.encode((CharSequence) message, frameBufferPool) : ByteBuffer.wrap((byte[]) message);
+                    frames = FrameWriter.encodeFrames(opCode, payload, options.outboundFrameSize());
+                } catch (CharacterCodingException ex) {
+                    logger.log(LogLevel.ERROR, "Failed to encode message published to topic " + topic, ex);
+                    return;
+                } finally {
+                    // A binary payload is the array of the caller, which must not be pooled.
+                    if (opCode == 1) PayloadCoder.release((CharSequence) message, payload, frameBufferPool);
+                }
+                for (WebSocketClientImpl client : clients) {
+                    // A write that may block is handed off, so that the stripe isn't held up by a slow subscriber.
+                    if (client.writer.queuesWithoutBlocking()) send(client, topic, frames);
+                    else client.publishQueue(executor).execute(() -> send(client, topic, frames));
+                }
+            }
+        }
+
+        private void send(WebSocketClientImpl client, String topic, byte[] frames) {
+            try {
+                client.writer.writeEncoded(frames);
+            } catch (IOException ex) {
+                // The client's own connection handling takes care of the failure.
+                lazyLog(LogLevel.DEBUG, () -> "Failed to send message published to topic " + topic + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * An executor that runs tasks one at a time, in submission order, on a delegate executor. A task is only
+     * submitted to the delegate when there is work to do, so an idle serial executor doesn't occupy a thread.
+     *
+     * A serial executor can be bounded, in which case {@link #execute(Runnable)} blocks while the maximum number of
+     * tasks are queued or running.
+     */
+    static class SerialExecutor implements Executor {
+        private final Executor delegate;
+        private final Semaphore permits;
+        private final Queue<Runnable> tasks = new ArrayDeque<>(); // guarded by this
+        private boolean isRunning; // guarded by this
+
+        SerialExecutor(Executor delegate) {
+            this(delegate, 0);
+        }
+
+        /**
+         * @param delegate the executor that runs the tasks
+         * @param maxQueued the maximum number of queued (including running) tasks, or 0 for no limit
+         */
+        SerialExecutor(Executor delegate, int maxQueued) {
+            this.delegate = delegate;
+            this.permits = maxQueued > 0 ? new Semaphore(maxQueued) : null;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (permits != null) permits.acquireUninterruptibly();
+            synchronized (this) {
+                tasks.add(task);
+                if (isRunning) return;
+                isRunning = true;
+            }
+            try {
+                delegate.execute(this::runTasks);
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    if (permits != null) permits.release(tasks.size());
+                    tasks.clear();
+                    isRunning = false;
+                }
+                throw ex;
+            }
+        }
+
+        private void runTasks() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        isRunning = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ignore) {
+                    // A task is responsible for its own error handling, but a failing task mustn't stop the others.
+                } finally {
+                    if (permits != null) permits.release();
+                }
+            }
+        }
+    }
+
+    private static class WebSocketClientImpl implements WebSocketClient {
+
+        private final FrameWriter writer;
+        private final BiConsumer<Integer, String> closeCallback; // a null code means the default close
+        private final Consumer<Boolean> readingPausedCallback;
+        private final Headers headers;
+        private final Map<String, String> pathParameters;
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private volatile boolean isUnsubscribed;
+        private volatile SerialExecutor publishQueue; // created when first needed, see Topics
+
+        WebSocketClientImpl(FrameWriter writer, BiConsumer<Integer, String> closeCallback, Consumer<Boolean> readingPausedCallback,
+                            Headers headers, Map<String, String> pathParameters) {
+            this.writer = writer;
+            this.closeCallback = closeCallback;
+            this.readingPausedCallback = readingPausedCallback;
+            this.headers = headers;
+            this.pathParameters = pathParameters;
+        }
+
+        /**
+         * Returns the queue of published messages that are written to this client on the given executor.
+         */
+        SerialExecutor publishQueue(Executor executor) {
+            SerialExecutor queue = publishQueue;
+            if (queue != null) return queue;
+            synchronized (this) {
+                if (publishQueue == null) publishQueue = new SerialExecutor(executor);
+                return publishQueue;
+            }
+        }
+
+        public void ping() throws IOException {
+            writer.writePing(null);
+        }
+
+        public void pauseReading() {
+            readingPausedCallback.accept(true);
+        }
+
+        public void resumeReading() {
+            readingPausedCallback.accept(false);
+        }
+
+        public void close() {
+            closeCallback.accept(null, null);
+        }
+
+        public void close(int code, String reason) {
+            if (new CloseData(code, reason).hasInvalidCode())
+                throw new IllegalArgumentException("Invalid close code: " + code);
+            if (reason != null && PayloadCoder.utf8Length(reason) > MaxCloseReasonLength)
+                throw new IllegalArgumentException("Close reason is longer than " + MaxCloseReasonLength + " bytes");
+            closeCallback.accept(code, reason);
+        }
+
+        public void sendTextMessage(CharSequence text) throws IOException {
+            if (text == null) throw new IllegalArgumentException("Cannot send null text");
+            writer.writeText(text);
+        }
+
+        public void sendBinaryData(byte[] data) throws IOException {
+            if (data == null) throw new IllegalArgumentException("Cannot send null data");
+            writer.writeBinary(data);
+        }
+
+        public void sendTextMessage(Object key, CharSequence text) throws IOException {
+            if (key == null) throw new IllegalArgumentException("Cannot send with null key");
+            if (text == null) throw new IllegalArgumentException("Cannot send null text");
+            writer.writeText(key, text);
+        }
+
+        public void sendBinaryData(Object key, byte[] data) throws IOException {
+            if (key == null) throw new IllegalArgumentException("Cannot send with null key");
+            if (data == null) throw new IllegalArgumentException("Cannot send null data");
+            writer.writeKeyed(key, 2, data, data.length);
+        }
+
+        public void sendBinaryData(byte[] data, int offset, int length) throws IOException {
+            if (data == null) throw new IllegalArgumentException("Cannot send null data");
+            if (offset < 0 || length < 0 || offset > data.length - length)
+                throw new IllegalArgumentException("Invalid offset and length for data of length " + data.length);
+            writer.writeBinary(data, offset, length);
+        }
+
+        public void sendBinaryData(ByteBuffer data) throws IOException {
+            if (data == null) throw new IllegalArgumentException("Cannot send null data");
+            writer.writeBinary(data);
+        }
+
+        public OutputStream openBinaryMessage() {
+            return writer.openMessage(2);
+        }
+
+        public Writer openTextMessage() {
+            return new FrameWriter.TextMessageWriter(writer.openMessage(1));
+        }
+
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        public void sendBinaryData(FileChannel file, long position, long count) throws IOException {
+            if (file == null) throw new IllegalArgumentException("File must be non-null");
+            if (position < 0 || count < 0) throw new IllegalArgumentException("Position and count must be >= 0");
+            if (position + count > file.size()) throw new EOFException("File region exceeds the file size " + file.size());
+            writer.writeBinary(file, position, count);
+        }
+
+        public String userAgent() { return headers.userAgent(); }
+        public String host() { return headers.host(); }
+        public String query() { return headers.query; }
+        public String fragment() { return headers.fragment; }
+
+        @Override
+        public Map<String, String> pathParameters() { return pathParameters; }
+    }
+
+    static byte[] numberToBytes(int number, int len, byte[] target) {
+        assert target == null || target.length >= len : "numberToBytes target is too small";
+        byte[] array = target != null ? target : new byte[len];
+        writeNumber(number, len, array, 0);
+        return array;
+    }
+
+    private static void writeNumber(int number, int len, byte[] target, int offset) {
+        // Start from the end (network byte order). Leading bytes become zero since the number is non-negative.
+        for (int i = offset + len - 1; i >= offset; i--) {
+            target[i] = (byte) (number & 0xff);
+            number = number >> 8;
+        }
+    }
+
+    static String createResponseKey(String key) throws NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] rawBytes = (key + HANDSHAKE_GUID).getBytes();
+        byte[] result = sha1.digest(rawBytes);
+        return Base64.getEncoder().encodeToString(result);
+    }
+
+    private static void doIgnoringExceptions(RunnableThatThrows runnable) {
+        try {
+            runnable.run();
+        } catch (Exception ex) {
+            // ignore
+        }
+    }
+    private interface RunnableThatThrows {
+        void run() throws Exception;
+    }
+
+    /**
+     * The receiving side of a connection, i.e. a {@link ClientHandler} or a connector connection. See
+     * {@link #handleResultFrame}.
+     */
+    private interface MessageReceiver {
+        void invokeHandler(BiConsumer<WebSocketHandler, Object> fun, Object arg);
+
+        /**
+         * Handles a valid close frame from the peer.
+         *
+         * @param code the close code, 1000 (normal close) if the frame has none
+         * @return {@code false}, unless the receiver throws a {@link WebSocketClosure} instead
+         */
+        boolean closeReceived(int code, String reason) throws IOException;
+    }
+
+    /**
+     * Handles a control frame or a complete message. Both sides of a connection handle frames the same way, except
+     * for a close frame, which is handed to {@link MessageReceiver#closeReceived}.
+     *
+     * @return {@code false} if the connection has been closed by a close frame
+     */
+    private static boolean handleResultFrame(Frame result, MessageReceiver receiver, FrameWriter frameWriter,
+                                             PayloadCoder payloadCoder, Logger logger) throws IOException {
+        switch (result.opCode) {
+            case 1:
+                receiver.invokeHandler(TextMessageCall, Utf8Text.validate(result.payloadCopy()));
+                return true;
+            case 2:
+                receiver.invokeHandler(BinaryDataCall, result.payloadCopy());
+                return true;
+            case 8:
+                CloseData cd = result.toCloseData(payloadCoder);
+                if (cd.hasInvalidCode()) throw WebSocketClosure.protocolError("Invalid close frame code: " + cd.code);
+                return receiver.closeReceived(cd.code != null ? cd.code : 1000, cd.reason);
+            case 9:
+                // Ping, send pong!
+                logger.log(LogLevel.TRACE, "Got ping frame, sending pong.", null);
+                frameWriter.writePong(result.payloadData, result.payloadLength);
+                return true;
+            case 10:
+                // Pong is ignored
+                logger.log(LogLevel.TRACE, "Ignoring unsolicited pong frame.", null);
+                return true;
+            default:
+                throw WebSocketClosure.protocolError("Invalid opcode: " + result.opCode);
+        }
+    }
+
+    static byte[] unmaskIfNeededInPlace(byte[] bytes, byte[] maskingKey) {
+        return unmaskIfNeededInPlace(bytes, bytes.length, maskingKey);
+    }
+
+    static byte[] unmaskIfNeededInPlace(byte[] bytes, int length, byte[] maskingKey) {
+        if (maskingKey != null) {
+            // Performance note: This code is up to 4 times faster than using only the last loop by itself.
+            // Using an IntBuffer is not faster.
+            byte m0 = maskingKey[0], m1 = maskingKey[1], m2 = maskingKey[2], m3 = maskingKey[3];
+            int roundedLen = 4 * (length / 4);
+            int i = 0;
+            for (; i < roundedLen; i += 4) {
+                bytes[i] = (byte) (bytes[i] ^ m0);
+                bytes[i+1] = (byte) (bytes[i+1] ^ m1);
+                bytes[i+2] = (byte) (bytes[i+2] ^ m2);
+                bytes[i+3] = (byte) (bytes[i+3] ^ m3);
+            }
+            for (; i < length; i++) {
+                int j = i % 4;
+                bytes[i] = (byte) (bytes[i] ^ maskingKey[j]);
+            }
+        }
+        return bytes;
+    }
+
+    static class MethodNotAllowedException extends IllegalArgumentException {
+        final String method;
+        public MethodNotAllowedException(String method) {
+            this.method = method;
+        }
+    }
+
+    static class ServiceUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String endpoint;
+        ServiceUnavailableException(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * Maps request paths to values using a trie of path segments. A segment of a route can be a literal, a parameter
+     * ("{name}") that matches any non-empty segment, or, as the last segment, a wildcard ("*") that matches the rest
+     * of the path. At each segment, a literal is tried before a parameter, which is tried before a wildcard. Matching
+     * walks the path segment by segment without regular expressions, so it's proportional to the path length except
+     * when a preferred branch doesn't lead to a match and the next alternative has to be tried.
+     *
+     * Routes must be added before the router is used for matching; matching may then be done concurrently.
+     */
+    static class Router<T> {
+        private final Node<T> root = new Node<>();
+
+        void add(String route, T value) {
+            if (route == null || !route.startsWith("/")) throw new IllegalArgumentException("Endpoint must start with '/': " + route);
+            String[] segments = route.substring(1).split("/", -1);
+            Node<T> node = root;
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if ("*".equals(segment)) {
+                    if (i < segments.length - 1) throw new IllegalArgumentException("Wildcard must be the last segment: " + route);
+                    if (node.wildcard == null) node.wildcard = new Node<>();
+                    node = node.wildcard;
+                } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                    String name = segment.substring(1, segment.length() - 1);
+                    if (name.isEmpty() || "*".equals(name)) throw new IllegalArgumentException("Invalid parameter name: " + route);
+                    if (node.parameter == null) {
+                        node.parameter = new Node<>();
+                        node.parameterName = name;
+                    } else if (!name.equals(node.parameterName)) {
+                        throw new IllegalArgumentException(String.format("Parameter {%s} conflicts with {%s}: %s",
+                                name, node.parameterName, route));
+                    }
+                    node = node.parameter;
+                } else {
+                    node = node.literals.computeIfAbsent(segment, s -> new Node<>());
+                }
+            }
+            node.route = route;
+            node.value = value;
+        }
+
+        /**
+         * Finds the route that matches a path.
+         *
+         * @param path the (decoded) path
+         * @return the match, or {@code null} if no route matches the path
+         */
+        Match<T> match(String path) {
+            if (path == null || !path.startsWith("/")) return null;
+            List<String> parameters = new ArrayList<>();
+            Node<T> node = match(root, path, 1, parameters);
+            if (node == null) return null;
+            Map<String, String> parameterMap = Collections.emptyMap();
+            if (!parameters.isEmpty()) {
+                parameterMap = new LinkedHashMap<>();
+                for (int i = 0; i < parameters.size(); i += 2) parameterMap.put(parameters.get(i), parameters.get(i + 1));
+                parameterMap = Collections.unmodifiableMap(parameterMap);
+            }
+            return new Match<>(node.route, node.value, parameterMap);
+        }
+
+        // Parameters are collected as name-value pairs, and removed again when backtracking.
+        private Node<T> match(Node<T> node, String path, int start, List<String> parameters) {
+            int end = path.indexOf('/', start);
+            boolean isLast = end < 0;
+            if (isLast) end = path.length();
+            String segment = path.substring(start, end);
+
+            Node<T> found;
+            Node<T> literal = node.literals.get(segment);
+            if (literal != null && (found = isLast ? terminal(literal) : match(literal, path, end + 1, parameters)) != null)
+                return found;
+
+            if (node.parameter != null && !segment.isEmpty()) {
+                parameters.add(node.parameterName);
+                parameters.add(segment);
+                if ((found = isLast ? terminal(node.parameter) : match(node.parameter, path, end + 1, parameters)) != null)
+                    return found;
+                parameters.remove(parameters.size() - 1);
+                parameters.remove(parameters.size() - 1);
+            }
+
+            if (node.wildcard != null && node.wildcard.value != null) {
+                parameters.add("*");
+                parameters.add(path.substring(start));
+                return node.wildcard;
+            }
+            return null;
+        }
+
+        private static <T> Node<T> terminal(Node<T> node) {
+            return node.value != null ? node : null;
+        }
+
+        private static class Node<T> {
+            final Map<String, Node<T>> literals = new HashMap<>();
+            Node<T> parameter;
+            String parameterName;
+            Node<T> wildcard;
+            String route;
+            T value;
+        }
+
+        static class Match<T> {
+            final String route;
+            final T value;
+            final Map<String, String> parameters;
+
+            Match(String route, T value, Map<String, String> parameters) {
+                this.route = route;
+                this.value = value;
+                this.parameters = parameters;
+            }
+        }
+    }
+
+    /**
+     * Counts connections per key (e.g. remote address or endpoint) without a global lock. An entry is removed when
+     * its count drops to zero, so the map only contains keys with live connections. A removed counter is marked with
+     * -1 so that a concurrent increment retries with a fresh counter instead of counting against the removed one.
+     */
+    static class KeyedCounter<K> {
+        private final ConcurrentMap<K, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        boolean tryIncrement(K key, int max) {
+            while (true) {
+                AtomicInteger count = counts.computeIfAbsent(key, k -> new AtomicInteger());
+                int current = count.get();
+                if (current < 0) continue; // being removed, retry
+                if (current >= max) return false;
+                if (count.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void decrement(K key) {
+            AtomicInteger count = counts.get(key);
+            if (count == null) return;
+            if (count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) counts.remove(key, count);
+        }
+
+        int get(K key) {
+            AtomicInteger count = counts.get(key);
+            return count != null ? Math.max(0, count.get()) : 0;
+        }
+    }
+
+    /**
+     * Opens WebSocket connections to servers, e.g. for relaying messages between servers or for generating load. A
+     * connection uses the same frame engine as the server, and masks the frames that it sends, as a client must. It
+     * is handled by a {@link WebSocketHandler}, just like a connection accepted by the server, and the
+     * {@link WebSocketClient} passed to the handler represents the connection, so sending to it sends to the server.
+     * Since the roles are swapped, {@link WebSocketHandler#onClosedByServer(int, String)} is invoked when the server
+     * closes the connection, and {@link WebSocketHandler#onClosedByClient(int, String)} when the connection is
+     * closed because of an error detected on this side (e.g. a protocol error). Closing the connection using
+     * {@link WebSocketClient#close()} sends a close frame with code 1000 (Normal Closure) and closes the connection
+     * when the server responds, or after a timeout.
+     *
+     * Like a server connection, a connection uses blocking I/O, with a task on the executor that reads from the
+     * server and invokes the handler. The options that apply are the logger, the maximum frame size, the SSL context
+     * (used for "wss" URIs, otherwise the default SSL context is used), the connect timeout, write coalescing and the
+     * buffer pool options.
+     * All methods can be invoked from any thread.
+     */
+    public static class Connector {
+        // How long to wait for the server to respond to a close frame
+        private static final long CloseTimeoutMillis = 5000;
+
+        private final Executor executor;
+        private final Options options;
+        private final Logger logger;
+        private final Metrics metrics = new Metrics();
+        private final BufferPool frameBufferPool;
+        private BufferPool sslBufferPool; // guarded by this, created on the first SSL connection
+
+        /**
+         * Constructs a new connector.
+         *
+         * @param executor the {@link Executor} that runs a reading task for each connection. Please note that each
+         *                 task uses blocking I/O, so use an appropriate executor.
+         * @param options connector options, see {@link Options#forConnector()}
+         */
+        public Connector(Executor executor, Options options) {
+            this.executor = executor;
+            this.options = options;
+            this.logger = guardedLogger(options);
+            this.frameBufferPool = new BufferPool(false, FrameBufferClasses, options.bufferPoolCapacity,
+                    options.bufferLeakTracking, metrics.frameBufferPool, logger);
+        }
+
+        /**
+         * Returns the metrics of this connector, such as SSL handshake counts and buffer pool usage.
+         *
+         * @return metrics, updated continuously
+         */
+        public Metrics metrics() {
+            return metrics;
+        }
+
+        /**
+         * Opens a WebSocket connection. The TCP connection, any SSL handshake and the WebSocket handshake happen on
+         * the calling thread, within the connect timeout (see {@link Options#andConnectTimeout(int)}). Once the
+         * handshake has completed, {@link WebSocketHandler#onOpened(WebSocketClient)} is invoked on the calling
+         * thread as well, and then frames are read from the server by a task on the executor.
+         *
+         * @param uri the URI of the endpoint, with scheme "ws" or "wss"
+         * @param handler the handler of the connection
+         * @return the connection
+         * @throws IllegalArgumentException if the URI doesn't have a supported scheme or a host
+         * @throws SocketTimeoutException if the connection isn't open within the connect timeout
+         * @throws IOException if connecting fails, or if the server doesn't accept the WebSocket upgrade
+         */
+        public WebSocketClient connect(URI uri, WebSocketHandler handler) throws IOException {
+            if (handler == null) throw new IllegalArgumentException("Handler cannot be null.");
+            String scheme = uri.getScheme();
+            boolean isSSL = "wss".equalsIgnoreCase(scheme);
+            if (!isSSL && !"ws".equalsIgnoreCase(scheme)) throw new IllegalArgumentException("Unsupported scheme: " + scheme);
+            if (uri.getHost() == null) throw new IllegalArgumentException("URI has no host: " + uri);
+            int port = uri.getPort() > 0 ? uri.getPort() : isSSL ? 443 : 80;
+
+            SocketChannel channel = SocketChannel.open();
+            // Closing the channel fails a blocked connect, or a blocked read or write of a handshake.
+            // Set by whichever comes first: the deadline or a completed (or failed) connect.
+            AtomicBoolean settled = new AtomicBoolean();
+            ScheduledFuture<?> deadline = options.connectTimeoutMillis > 0
+                    ? FlushTimer.Instance.schedule(() -> {
+                        if (settled.compareAndSet(false, true)) doIgnoringExceptions(channel::close);
+                    }, options.connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                    : null;
+            try {
+                // See acceptInLoop
+                channel.socket().setTcpNoDelay(true);
+                channel.connect(new InetSocketAddress(uri.getHost(), port));
+                Transport transport = isSSL ? createSSLTransport(channel, uri.getHost(), port) : new PlainTransport(channel);
+                ConnectorConnection connection = new ConnectorConnection(transport, handler);
+                try {
+                    connection.open(uri);
+                    // If the deadline got here first, the channel is being closed.
+                    if (!settled.compareAndSet(false, true)) throw new ClosedChannelException();
+                    if (deadline != null) deadline.cancel(false);
+                    connection.invokeHandler(h -> h.onOpened(connection.client));
+                    executor.execute(connection);
+                } catch (IOException | RuntimeException ex) {
+                    transport.release();
+                    throw ex;
+                }
+                return connection.client;
+            } catch (IOException | RuntimeException ex) {
+                boolean timedOut = !settled.compareAndSet(false, true);
+                if (deadline != null) deadline.cancel(false);
+                doIgnoringExceptions(channel::close);
+                if (timedOut && ex instanceof IOException) {
+                    SocketTimeoutException timeout = new SocketTimeoutException(String.format("Connecting to %s timed out after %d ms",
+                            uri, options.connectTimeoutMillis));
+                    timeout.initCause(ex);
+                    throw timeout;
+                }
+                throw ex;
+            }
+        }
+
+        private Transport createSSLTransport(SocketChannel channel, String host, int port) throws IOException {
+            SSLContext sslContext;
+            try {
+                sslContext = options.sslContext != null ? options.sslContext : SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new SSLException("No default SSL context", ex);
+            }
+            SSLEngine engine = sslContext.createSSLEngine(host, port);
+            // Verify that the certificate of the server matches the host name.
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+            BufferPool pool;
+            synchronized (this) {
+                if (sslBufferPool == null) {
+                    sslBufferPool = new BufferPool(true, new int[] { engine.getSession().getPacketBufferSize() },
+                            options.bufferPoolCapacity, options.bufferLeakTracking, metrics.sslBufferPool, logger);
+                }
+                pool = sslBufferPool;
+            }
+            return new SSLTransport(channel, engine, true, pool, metrics);
+        }
+
+        /**
+         * A connection opened by the connector. The counterpart of {@link ClientHandler}, with the roles swapped.
+         */
+        private class ConnectorConnection implements Runnable, MessageReceiver {
+            private final Transport transport;
+            private final InputStream in;
+            private final PayloadCoder payloadCoder = new PayloadCoder();
+            private final FrameWriter frameWriter;
+            private final WebSocketHandler handler;
+            private final FrameHandler frameHandler; // the handler, if it takes data frames one by one
+            private boolean isInPassedMessage; // whether a fragmented message is being passed to the frame handler
+            private final byte[] frameHeader = new byte[8];
+            private WebSocketClientImpl client;
+            private volatile boolean isClosed; // potentially set from handler thread
+            private volatile boolean closeFrameSent;
+            private boolean isReadingPaused; // guarded by this
+
+            ConnectorConnection(Transport transport, WebSocketHandler handler) {
+                this.transport = transport;
+                this.in = transport.inputStream();
+                this.handler = handler;
+                this.frameHandler = handler instanceof FrameHandler ? (FrameHandler) handler : null;
+                frameWriter = new FrameWriter(transport, payloadCoder, options.maxFrameSize, frameBufferPool,
+                        options.coalescingBytes, options.coalescingDelayNanos, executor, true);
+            }
+
+            /**
+             * Performs the opening handshake. The handler is invoked by {@link Connector#connect}.
+             */
+            void open(URI uri) throws IOException {
+                transport.handshake();
+
+                byte[] nonce = new byte[16];
+                ThreadLocalRandom.current().nextBytes(nonce);
+                String key = Base64.getEncoder().encodeToString(nonce);
+                String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) +
+                        (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+                Map<String, String> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                requestHeaders.put("Host", uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost());
+                requestHeaders.put("Upgrade", "websocket");
+                requestHeaders.put("Connection", "Upgrade");
+                requestHeaders.put("Sec-WebSocket-Key", key);
+                requestHeaders.put("Sec-WebSocket-Version", Integer.toString(SupportedVersion));
+                requestHeaders.put("User-Agent", String.format("%s %s", ServerName, ServerVersion));
+
+                StringBuilder request = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\n");
+                for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+                    request.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+                }
+                request.append("\r\n");
+                OutputStream out = transport.outputStream();
+                out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                Headers response = Headers.readResponse(in, uri);
+                if (!response.isProperUpgrade()) throw new IOException("Handshake response has malformed upgrade.");
+                String expectedAccept;
+                try {
+                    expectedAccept = createResponseKey(key);
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new IOException("Cannot compute the expected response key", ex);
+                }
+                if (!expectedAccept.equals(response.accept())) throw new IOException("Handshake response has a bad Sec-WebSocket-Accept.");
+
+                lazyLog(logger, LogLevel.INFO, () -> String.format("Connected to WebSocket server at %s.", uri));
+
+                client = new WebSocketClientImpl(frameWriter, this::closeFromHandler, this::setReadingPaused,
+                        new Headers(requestHeaders, uri, "GET"), Collections.emptyMap());
+            }
+
+            private void invokeHandler(Consumer<WebSocketHandler> fun) {
+                try {
+                    fun.accept(handler);
+                } catch (Exception ex) {
+                    logger.log(LogLevel.ERROR, "Handler invocation error.", ex);
+                }
+            }
+
+            @Override
+            public void invokeHandler(BiConsumer<WebSocketHandler, Object> fun, Object arg) {
+                try {
+                    fun.accept(handler, arg);
+                } catch (Exception ex) {
+                    logger.log(LogLevel.ERROR, "Handler invocation error.", ex);
+                }
+            }
+
+            @Override
+            public void run() {
+                List<Frame> frameBatch = new ArrayList<>();
+                try {
+                    Frame frame;
+                    while ((frame = readFrame()) != null) {
+                        frameBatch.add(frame);
+                        // See ClientHandler.communicate about holding a frame while reading is paused.
+                        awaitReadingResumed();
+                        if (frameHandler != null) {
+                            if (!passFrame(frameBatch.remove(0))) break;
+                            continue;
+                        }
+                        Frame result = Frame.takeComplete(frameBatch, frameBufferPool);
+                        if (result != null && !handleAndRelease(result)) break;
+                    }
+                } catch (WebSocketClosure ex) {
+                    lazyLog(logger, LogLevel.DEBUG, () -> String.format("Closing with code %d (%s)%s", ex.code, ex.reason,
+                            ex.debugDetails != null ? (" because: " + ex.debugDetails) : ""));
+                    if (!closeFrameSent) {
+                        closeFrameSent = true;
+                        doIgnoringExceptions(() -> frameWriter.writeClose(ex.code, ex.reason));
+                    }
+                    invokeHandler(h -> h.onClosedByClient(ex.code, ex.reason));
+                } catch (Exception ex) {
+                    // An I/O error after we closed the connection is expected.
+                    if (!isClosed || !(ex instanceof IOException)) {
+                        logger.log(LogLevel.ERROR, "Server communication error.", ex);
+                        invokeHandler(h -> h.onFailure(ex));
+                    }
+                } finally {
+                    // Fragments of an incomplete message
+                    for (Frame frame : frameBatch) frame.release(frameBufferPool);
+                }
+                abort();
+                transport.release();
+            }
+
+            private Frame readFrame() throws IOException {
+                try {
+                    return Frame.read(in, frameHeader, frameBufferPool, frameHandler != null);
+                } catch (WebSocketClosure ex) {
+                    throw ex;
+                } catch (IOException ex) {
+                    // The server may close the connection instead of responding to our close frame.
+                    if (closeFrameSent) return null;
+                    throw ex;
+                }
+            }
+
+            private boolean handleAndRelease(Frame frame) throws IOException {
+                try {
+                    return handleResultFrame(frame, this, frameWriter, payloadCoder, logger);
+                } finally {
+                    frame.release(frameBufferPool);
+                }
+            }
+
+            /**
+             * Passes a data frame to the frame handler as is, or handles a control frame.
+             *
+             * @return {@code false} if the connection has been closed by a close frame
+             */
+            private boolean passFrame(Frame frame) throws IOException {
+                try {
+                    if (frame.isControl()) return handleResultFrame(frame, this, frameWriter, payloadCoder, logger);
+                    isInPassedMessage = Frame.checkSequence(frame, isInPassedMessage);
+                    frame.passTo(frameHandler, logger);
+                    return true;
+                } finally {
+                    frame.release(frameBufferPool);
+                }
+            }
+
+            @Override
+            public boolean closeReceived(int code, String reason) {
+                // The server responded to a close frame that we sent.
+                if (closeFrameSent) return false;
+                invokeHandler(h -> h.onClosedByServer(code, reason));
+                closeFrameSent = true;
+                doIgnoringExceptions(() -> frameWriter.writeClose(code, ""));
+                return false;
+            }
+
+            /**
+             * Starts the closing handshake on request of the handler, see {@link WebSocketClient#close(int, String)}.
+             * The reading task reads until the server responds, and the connection is aborted if that takes too long.
+             *
+             * @param code the close code, or {@code null} for 1000 (Normal Closure)
+             */
+            private void closeFromHandler(Integer code, String reason) {
+                synchronized (this) {
+                    if (isClosed || closeFrameSent) return;
+                    closeFrameSent = true;
+                    // Wake up a paused reader, since we need to read the server's close frame.
+                    notifyAll();
+                }
+                if (code != null) doIgnoringExceptions(() -> frameWriter.writeClose(code, reason));
+                else doIgnoringExceptions(() -> frameWriter.writeClose(1000, "Normal Closure"));
+                // Aborting a connection that has been closed already does nothing. The abort does I/O, so it runs on
+                // the executor rather than on the timer thread that is shared by all connections.
+                FlushTimer.Instance.schedule(() -> executor.execute(this::abort), CloseTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            /**
+             * Pauses or resumes reading from the server, see {@link WebSocketClient#pauseReading()}.
+             */
+            private synchronized void setReadingPaused(boolean paused) {
+                isReadingPaused = paused;
+                if (!paused) notifyAll();
+            }
+
+            private synchronized void awaitReadingResumed() throws InterruptedIOException {
+                try {
+                    while (isReadingPaused && !isClosed && !closeFrameSent) wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading was paused");
+                }
+            }
+
+            private void abort() {
+                if (isClosed) return;
+                isClosed = true;
+                doIgnoringExceptions(transport::close);
+                synchronized (this) {
+                    // Wake up a paused reader
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Server options, configured using a fluent interface. Start with {@code Options.withPort(int)} since port is
+     * required, or with {@code Options.forConnector()} for a {@link Connector}.
+     */
+    public static class Options {
+        Integer backlog;
+        int port;
+        Logger logger;
+        InetAddress address;
+        int maxFrameSize;
+        SSLContext sslContext;
+        int maxConnections;
+        int maxConnectionsPerAddress;
+        int maxConnectionsPerEndpoint;
+        int drainBatchSize = 100;
+        boolean recordAlignedFrames;
+        boolean httpKeepAlive = true;
+        long bufferPoolCapacity = 32L * 1024 * 1024;
+        boolean bufferLeakTracking;
+        Executor pubSubExecutor;
+        Executor handlerExecutor;
+        int maxQueuedHandlerInvocations;
+        Integer sslSessionCacheSize;
+        Integer sslSessionTimeout;
+        int coalescingBytes;
+        long coalescingDelayNanos;
+        int connectTimeoutMillis = 10000;
+        Path unixDomainSocketPath;
+
+        private boolean shouldUseSSL() { return sslContext != null; }
+
+        /**
+         * The maximum payload size of frames sent to clients, 0 for no fragmentation.
+         */
+        int outboundFrameSize() {
+            if (!recordAlignedFrames || !shouldUseSSL()) return maxFrameSize;
+            return maxFrameSize == 0 ? RecordAlignedFrameSize : Math.min(maxFrameSize, RecordAlignedFrameSize);
+        }
+
+        private Options(int port) {
+            this.port = port;
+        }
+
+        /**
+         * Creates new options with the given port.
+         *
+         * @param port the port to use when listening for WebSocket clients
+         * @return this options instance
+         */
+        public static Options withPort(int port) {
+            return new Options(port);
+        }
+
+        /**
+         * Creates new options for listening on a Unix domain socket instead of a TCP port, e.g. for clients on the
+         * same host such as a sidecar proxy. Connections use the same handshake and frame engine as TCP connections,
+         * without the overhead of the TCP stack. The socket file is created when the server is started and is
+         * deleted when it's stopped. The address ({@link #andAddress(InetAddress)}) doesn't apply, and all clients
+         * count as the loopback address for {@link #andMaxConnectionsPerAddress(int)}. Requires Java 16 or later.
+         *
+         * @param path the path of the socket file, which must not exist when the server is started
+         * @return this options instance
+         * @throws UnsupportedOperationException if Unix domain sockets aren't supported by the Java runtime
+         */
+        public static Options withUnixDomainSocket(Path path) {
+            if (path == null) throw new IllegalArgumentException("Path must not be null.");
+            if (!UnixDomainSockets.isSupported()) throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later.");
+            Options options = new Options(0);
+            options.unixDomainSocketPath = path;
+            return options;
+        }
+
+        /**
+         * Creates new options for a {@link Connector}, which doesn't listen on a port. See {@link Connector} for
+         * the options that apply.
+         *
+         * @return this options instance
+         */
+        public static Options forConnector() {
+            return new Options(0);
+        }
+
+        /**
+         * Specifies the backlog size, i.e. the size of the client connection queue. If the queue is full, a client
+         * connection is rejected.
+         *
+         * @param backlog the backlog size, which must be greater than 0
+         * @return this options instance
+         */
+        public Options andBacklog(int backlog) {
+            if (backlog <= 0) throw new IllegalArgumentException("Backlog must be > 0");
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Specifies a logger.
+         *
+         * @param logger the logger instance
+         * @return this options instance
+         */
+        public Options andLogger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        /**
+         * Specifies the address to use when creating the server socket.
+         *
+         * @param address the address to bind to
+         * @return this options instance
+         */
+        public Options andAddress(InetAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum frame size. The maximum frame size must be at least 126, as it doesn't make much
+         * sense to create frame fragments smaller than that.
+         *
+         * @param size maximum frame size
+         * @return this options instance
+         */
+        public Options andMaxFrameSize(int size) {
+            if (size <= 125) throw new IllegalArgumentException("Max frame size must be at least 126.");
+            this.maxFrameSize = size;
+            return this;
+        }
+
+        /**
+         * Configures the server for SSL. The SSL handshake is performed on the thread that handles the connection,
+         * before the HTTP request is read, and blocks that thread like other reads and writes do.
+         *
+         * @param sslContext the SSL context that creates the SSL engine of each connection
+         * @return this options instance
+         */
+        public Options andSSL(SSLContext sslContext) {
+            if (sslContext == null) throw new IllegalArgumentException("SSL context cannot be null.");
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        /**
+         * Enables or disables TLS record alignment of outgoing frames, for SSL only. If enabled, large messages are
+         * fragmented so that each frame, including its header, fills exactly one TLS record (16 KB of plaintext).
+         * The client can then start processing a message as soon as the first record has arrived, and no TLS record
+         * contains only the tail of a frame. If a maximum frame size has been specified and it's smaller than the
+         * aligned frame size, it's used instead. Disabled by default.
+         *
+         * @param enabled whether outgoing frames should be aligned with TLS records
+         * @return this options instance
+         */
+        public Options andRecordAlignedFrames(boolean enabled) {
+            this.recordAlignedFrames = enabled;
+            return this;
+        }
+
+        /**
+         * Configures the server-side SSL session cache, which makes it possible for a reconnecting client to resume
+         * its session instead of doing a full (CPU intensive) handshake. The settings are applied to the server
+         * session context of the SSL context passed to {@link #andSSL(SSLContext)} when the server is started. By
+         * default, the JDK defaults are used (20480 sessions and 24 hours on recent JDKs).
+         *
+         * Stateless resumption using session tickets (JDK 13+) can't be configured here. The JDK reads the system
+         * property {@code jdk.tls.server.enableSessionTicketExtension} when an {@link SSLContext} is created, so set
+         * it before creating the context that is passed to {@link #andSSL(SSLContext)}.
+         *
+         * @param size the maximum number of cached sessions, 0 for no limit
+         * @param timeoutSeconds the time a cached session can be resumed, in seconds, 0 for no limit
+         * @return this options instance
+         * @see SSLSessionContext
+         */
+        public Options andSSLSessionCache(int size, int timeoutSeconds) {
+            if (size < 0) throw new IllegalArgumentException("SSL session cache size must be >= 0");
+            if (timeoutSeconds < 0) throw new IllegalArgumentException("SSL session timeout must be >= 0");
+            this.sslSessionCacheSize = size;
+            this.sslSessionTimeout = timeoutSeconds;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of concurrent client connections, regardless of endpoint. A client connection
+         * that exceeds the limit is rejected right after it has been accepted, before any request data are read. By
+         * default, there is no limit.
+         *
+         * @param max the maximum number of connections, which must be greater than 0
+         * @return this options instance
+         */
+        public Options andMaxConnections(int max) {
+            if (max <= 0) throw new IllegalArgumentException("Max connections must be > 0");
+            this.maxConnections = max;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of concurrent client connections from a single remote address. A client
+         * connection that exceeds the limit is rejected right after it has been accepted. By default, there is no
+         * limit.
+         *
+         * @param max the maximum number of connections per remote address, which must be greater than 0
+         * @return this options instance
+         */
+        public Options andMaxConnectionsPerAddress(int max) {
+            if (max <= 0) throw new IllegalArgumentException("Max connections per address must be > 0");
+            this.maxConnectionsPerAddress = max;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of concurrent client connections to a single WebSocket endpoint. Since the
+         * endpoint isn't known until the request has been read, a client that exceeds the limit receives a 503
+         * response before the endpoint handler factory is invoked. The limit doesn't apply to endpoints served by the
+         * fallback handler. By default, there is no limit.
+         *
+         * @param max the maximum number of connections per endpoint, which must be greater than 0
+         * @return this options instance
+         */
+        public Options andMaxConnectionsPerEndpoint(int max) {
+            if (max <= 0) throw new IllegalArgumentException("Max connections per endpoint must be > 0");
+            this.maxConnectionsPerEndpoint = max;
+            return this;
+        }
+
+        /**
+         * Specifies how many WebSocket clients to close at a time when draining connections using
+         * {@link Server#stopGracefully(Duration)}. The default batch size is 100.
+         *
+         * @param size the batch size, which must be greater than 0
+         * @return this options instance
+         */
+        public Options andDrainBatchSize(int size) {
+            if (size <= 0) throw new IllegalArgumentException("Drain batch size must be > 0");
+            this.drainBatchSize = size;
+            return this;
+        }
+
+        /**
+         * Enables or disables persistent HTTP/1.1 connections for requests handled by the fallback handler. If
+         * enabled (the default), a connection is kept open for another request (which may be a WebSocket upgrade)
+         * as long as the request and the response have bodies delimited by Content-Length, and neither the client
+         * nor the fallback handler asks for the connection to be closed.
+         *
+         * @param enabled whether persistent connections should be enabled
+         * @return this options instance
+         */
+        public Options andHttpKeepAlive(boolean enabled) {
+            this.httpKeepAlive = enabled;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of bytes kept by each buffer pool of the server when the buffers aren't in
+         * use. Frame payloads and encoded messages are read and written using pooled heap buffers, and SSL
+         * connections use pooled direct buffers for network data. A buffer that is released when its pool is full is
+         * left to the garbage collector. The default is 32 MB per pool. Use the pool metrics (see
+         * {@link Metrics#frameBufferPool()}) to size the pools; the hit rate should be close to 1 under steady load.
+         *
+         * @param bytes the maximum number of pooled bytes per pool, which must be non-negative; 0 disables pooling
+         * @return this options instance
+         */
+        public Options andBufferPoolCapacity(long bytes) {
+            if (bytes < 0) throw new IllegalArgumentException("Buffer pool capacity must be >= 0");
+            this.bufferPoolCapacity = bytes;
+            return this;
+        }
+
+        /**
+         * Enables tracking of pooled buffers, to find buffers that aren't released to their pool. A buffer that is
+         * garbage collected without having been released is logged at WARN level together with the place where it
+         * was acquired, and is counted by {@link BufferPoolMetrics#leaks()}. Tracking is expensive, so it should
+         * only be enabled for testing. By default, tracking is disabled.
+         *
+         * @param enabled whether to track pooled buffers
+         * @return this options instance
+         */
+        public Options andBufferLeakTracking(boolean enabled) {
+            this.bufferLeakTracking = enabled;
+            return this;
+        }
+
+        /**
+         * Enables coalescing of outgoing frames. By default, each frame is flushed to the socket as soon as it has
+         * been written, so a handler that sends a burst of small messages causes a burst of small TCP segments (and
+         * on SSL, small TLS records that are encrypted one by one). With coalescing, frames are collected in a
+         * per-connection buffer, which is flushed when it holds at least {@code maxBytes} bytes, or when
+         * {@code maxDelayMicros} microseconds have passed since an unflushed frame was written, whichever comes first.
+         * Control frames are flushed right away. A handler can flush the buffer explicitly using
+         * {@link WebSocketClient#flush()}, e.g. after a latency-critical message. Delayed flushes run on the main
+         * executor. Disabled by default.
+         *
+         * @param maxBytes the buffer size at which frames are flushed, which must be greater than 0
+         * @param maxDelayMicros the maximum time that a frame is held before being flushed, in microseconds, which
+         *                       must be greater than 0
+         * @return this options instance
+         */
+        public Options andWriteCoalescing(int maxBytes, long maxDelayMicros) {
+            if (maxBytes <= 0) throw new IllegalArgumentException("Coalescing buffer size must be > 0");
+            if (maxDelayMicros <= 0) throw new IllegalArgumentException("Coalescing delay must be > 0");
+            this.coalescingBytes = maxBytes;
+            this.coalescingDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+            return this;
+        }
+
+        /**
+         * Specifies how long a {@link Connector} waits for a connection to open, including the TCP connection, any
+         * SSL handshake and the WebSocket handshake. When the time runs out, the connection is closed and
+         * {@link Connector#connect(URI, WebSocketHandler)} fails with a {@link SocketTimeoutException}, so that an
+         * upstream server that accepts connections but never responds doesn't block the caller (e.g. the reading
+         * thread of a {@link RelayHandler} connection) forever. The default is 10 seconds.
+         *
+         * @param timeoutMillis the timeout in milliseconds, 0 for no timeout
+         * @return this options instance
+         */
+        public Options andConnectTimeout(int timeoutMillis) {
+            if (timeoutMillis < 0) throw new IllegalArgumentException("Connect timeout must be >= 0");
+            this.connectTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * Specifies the executor used for fanning out messages published through {@link Server#topics()}. Writing
+         * to a client without a slow-consumer policy blocks while the client isn't reading, which occupies a thread
+         * of the executor per such client (see {@link Topics}), so use an appropriate executor. If no executor is
+         * specified, the main executor passed to the {@code Server} constructor is used.
+         *
+         * @param executor the pub/sub executor
+         * @return this options instance
+         */
+        public Options andPubSubExecutor(Executor executor) {
+            if (executor == null) throw new IllegalArgumentException("Pub/sub executor cannot be null.");
+            this.pubSubExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Specifies an executor for invoking {@link WebSocketHandler} methods, so that a slow handler doesn't stop
+         * the server from reading from the client (and responding to pings). Handler invocations for a single
+         * connection are queued and run one at a time, in order, so a handler never sees concurrent or reordered
+         * invocations. Different connections are dispatched independently.
+         *
+         * When the queue of a connection is full, the server stops reading from that client until the handler has
+         * caught up, which propagates backpressure to the client via TCP.
+         *
+         * By default, handlers are invoked on the thread that reads from the client.
+         *
+         * @param executor the handler executor
+         * @param maxQueuedPerConnection the maximum number of queued handler invocations per connection, which must
+         *                               be greater than 0
+         * @return this options instance
+         */
+        public Options andHandlerExecutor(Executor executor, int maxQueuedPerConnection) {
+            if (executor == null) throw new IllegalArgumentException("Handler executor cannot be null.");
+            if (maxQueuedPerConnection <= 0) throw new IllegalArgumentException("Max queued handler invocations must be > 0");
+            this.handlerExecutor = executor;
+            this.maxQueuedHandlerInvocations = maxQueuedPerConnection;
+            return this;
+        }
+    }
+
+    /**
+     * Server metrics. All counters are cumulative since the server was created, and can be read from any thread.
+     */
+    public static class Metrics {
+        final LongAdder fullHandshakes = new LongAdder();
+        final LongAdder resumedHandshakes = new LongAdder();
+        final BufferPoolMetrics frameBufferPool = new BufferPoolMetrics();
+        final BufferPoolMetrics sslBufferPool = new BufferPoolMetrics();
+        final LongAdder blockedSends = new LongAdder();
+        final LongAdder droppedNewestMessages = new LongAdder();
+        final LongAdder droppedOldestMessages = new LongAdder();
+        final LongAdder slowConsumerCloses = new LongAdder();
+        final LongAdder conflatedMessages = new LongAdder();
+
+        private Metrics() {}
+
+        /**
+         * Returns the number of sends that blocked because a client with the {@link SlowConsumerPolicy#BLOCK} policy
+         * had used up its outbound budget.
+         *
+         * @return the number of blocked sends
+         */
+        public long blockedSends() { return blockedSends.sum(); }
+
+        /**
+         * Returns the number of messages that weren't sent because of the {@link SlowConsumerPolicy#DROP_NEWEST}
+         * policy.
+         *
+         * @return the number of dropped new messages
+         */
+        public long droppedNewestMessages() { return droppedNewestMessages.sum(); }
+
+        /**
+         * Returns the number of queued messages that were dropped because of the
+         * {@link SlowConsumerPolicy#DROP_OLDEST} policy.
+         *
+         * @return the number of dropped queued messages
+         */
+        public long droppedOldestMessages() { return droppedOldestMessages.sum(); }
+
+        /**
+         * Returns the number of connections closed because of the {@link SlowConsumerPolicy#CLOSE_POLICY_VIOLATION}
+         * or {@link SlowConsumerPolicy#CLOSE_TRY_AGAIN_LATER} policy.
+         *
+         * @return the number of closed slow connections
+         */
+        public long slowConsumerCloses() { return slowConsumerCloses.sum(); }
+
+        /**
+         * Returns the number of queued messages that were replaced by a newer message with the same key, see
+         * {@link WebSocketClient#sendTextMessage(Object, CharSequence)}.
+         *
+         * @return the number of replaced messages
+         */
+        public long conflatedMessages() { return conflatedMessages.sum(); }
+
+        /**
+         * Returns the number of completed SSL handshakes that established a new session.
+         *
+         * @return the number of full handshakes
+         */
+        public long fullSSLHandshakes() { return fullHandshakes.sum(); }
+
+        /**
+         * Returns the number of completed SSL handshakes that resumed a cached session (or a session from a session
+         * ticket), which is much cheaper than a full handshake.
+         *
+         * @return the number of resumed handshakes
+         */
+        public long resumedSSLHandshakes() { return resumedHandshakes.sum(); }
+
+        /**
+         * Returns the metrics of the pool of heap buffers used for reading and writing frames.
+         *
+         * @return frame buffer pool metrics
+         */
+        public BufferPoolMetrics frameBufferPool() { return frameBufferPool; }
+
+        /**
+         * Returns the metrics of the pool of direct buffers used for SSL network data. The pool is only used if the
+         * server uses SSL.
+         *
+         * @return SSL buffer pool metrics
+         */
+        public BufferPoolMetrics sslBufferPool() { return sslBufferPool; }
+    }
+
+    /**
+     * Metrics of a buffer pool (see {@link Options#andBufferPoolCapacity(long)}). Can be read from any thread.
+     */
+    public static class BufferPoolMetrics {
+        final AtomicLong pooledBytes = new AtomicLong();
+        final LongAdder outstanding = new LongAdder();
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder oversized = new LongAdder();
+        final LongAdder leaks = new LongAdder();
+        volatile long capacity;
+
+        BufferPoolMetrics() {}
+
+        /**
+         * Returns the maximum number of bytes that the pool keeps.
+         *
+         * @return the pool capacity in bytes
+         */
+        public long capacity() { return capacity; }
+
+        /**
+         * Returns the number of bytes currently kept by the pool, i.e. the total size of the buffers that are ready
+         * to be reused.
+         *
+         * @return the pool occupancy in bytes
+         */
+        public long pooledBytes() { return pooledBytes.get(); }
+
+        /**
+         * Returns the number of buffers that have been acquired from the pool and not yet released. A number that
+         * keeps growing although the load is steady indicates a leak.
+         *
+         * @return the number of buffers in use
+         */
+        public long outstandingBuffers() { return outstanding.sum(); }
+
+        /**
+         * Returns the number of acquisitions that reused a pooled buffer.
+         *
+         * @return the number of hits
+         */
+        public long hits() { return hits.sum(); }
+
+        /**
+         * Returns the number of acquisitions that allocated a new buffer because there was no pooled buffer of the
+         * right size class.
+         *
+         * @return the number of misses
+         */
+        public long misses() { return misses.sum(); }
+
+        /**
+         * Returns the fraction of acquisitions that reused a pooled buffer.
+         *
+         * @return the hit rate between 0 and 1, or 0 if no buffer has been acquired
+         */
+        public double hitRate() {
+            long h = hits(), total = h + misses();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        /**
+         * Returns the number of acquisitions that were larger than the largest size class and thus were allocated
+         * without pooling.
+         *
+         * @return the number of oversized acquisitions
+         */
+        public long oversizedAllocations() { return oversized.sum(); }
+
+        /**
+         * Returns the number of buffers that were garbage collected without having been released. Only counted if
+         * leak tracking is enabled, see {@link Options#andBufferLeakTracking(boolean)}.
+         *
+         * @return the number of leaked buffers
+         */
+        public long leaks() { return leaks.sum(); }
+    }
+
+    /**
+     * Log level for logging.
+     */
+    public enum LogLevel {
+        TRACE(0),
+        DEBUG(10),
+        INFO(20),
+        WARN(50),
+        ERROR(100);
+
+        /**
+         * Numeric level corresponding to this log level. ERROR has the highest level and TRACE has the lowest.
+         */
+        public final int level;
+
+        LogLevel(int level) {
+            this.level = level;
+        }
+    }
+
+    /**
+     * A simple interface for logging.
+     */
+    public interface Logger {
+        /**
+         * Logs a message at a certain level. Note that this method is not called if {@link #isEnabledAt(LogLevel)}
+         * returns {@code false} for the given level.
+         *
+         * @param level the log level
+         * @param message the message to log
+         * @param error an optional error
+         */
+        void log(LogLevel level, String message, Throwable error);
+
+        /**
+         * Determines if logging is enabled for the given level.
+         *
+         * @param level a log level
+         * @return {@code true} if logging is enabled at the level, {@code false} otherwise
+         */
+        boolean isEnabledAt(LogLevel level);
+    }
+
+    /**
+     * A logger that passes messages on to another logger on a background thread, so that a slow logger (e.g. one
+     * that writes to the console) doesn't stall the threads that log, such as the threads that read from clients.
+     * Messages are put in a ring buffer that is allocated up front. When the ring buffer is full, messages are
+     * dropped rather than blocking the logging thread; see {@link #droppedMessages()}. Use e.g.
+     * {@code Options.andLogger(new AsyncLogger(logger, 8192))}.
+     *
+     * {@link #isEnabledAt(LogLevel)} is passed on to the other logger on the calling thread, whereas
+     * {@link #log(LogLevel, String, Throwable)} of the other logger is only invoked on the background thread, which
+     * is a daemon thread. Use {@link #close()} to log the remaining messages and stop the background thread.
+     */
+    public static class AsyncLogger implements Logger, AutoCloseable {
+        private final Logger target;
+        private final int mask;
+        private final LogLevel[] levels;
+        private final String[] messages;
+        private final Throwable[] errors;
+        private final AtomicLongArray published; // sequence number + 1 of the message in each slot, once written
+        private final AtomicLong claimed = new AtomicLong(); // sequence number of the next message to put
+        private volatile long consumed; // sequence number of the next message to take
+        private final LongAdder dropped = new LongAdder();
+        private final Thread thread;
+        private volatile boolean isParked;
+        private volatile boolean isClosed;
+
+        /**
+         * Creates a new logger and starts its background thread.
+         *
+         * @param target the logger to pass messages on to
+         * @param capacity the size of the ring buffer, which must be a power of two
+         */
+        public AsyncLogger(Logger target, int capacity) {
+            if (target == null) throw new IllegalArgumentException("Target logger must not be null.");
+            if (capacity <= 0 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two.");
+            this.target = target;
+            mask = capacity - 1;
+            levels = new LogLevel[capacity];
+            messages = new String[capacity];
+            errors = new Throwable[capacity];
+            published = new AtomicLongArray(capacity);
+            thread = new Thread(this::drain, "tinyws-async-logger");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void log(LogLevel level, String message, Throwable error) {
+            long seq;
+            do {
+                seq = claimed.get();
+                if (isClosed || seq - consumed >= levels.length) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!claimed.compareAndSet(seq, seq + 1));
+            int i = (int) seq & mask;
+            levels[i] = level;
+            messages[i] = message;
+            errors[i] = error;
+            // The volatile write publishes the message to the background thread.
+            published.set(i, seq + 1);
+            if (isParked) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public boolean isEnabledAt(LogLevel level) {
+            return target.isEnabledAt(level);
+        }
+
+        /**
+         * Returns the number of messages that have been dropped because the ring buffer was full (or the logger
+         * was closed).
+         *
+         * @return the number of dropped messages
+         */
+        public long droppedMessages() {
+            return dropped.sum();
+        }
+
+        /**
+         * Logs the remaining messages and stops the background thread. Blocks until the background thread is done.
+         * Messages logged after this method has been invoked are dropped.
+         */
+        @Override
+        public void close() {
+            isClosed = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void drain() {
+            long seq = 0;
+            while (true) {
+                int i = (int) seq & mask;
+                if (published.get(i) != seq + 1) {
+                    // A message may have been claimed but not yet published, so compare with the claimed count.
+                    if (isClosed && claimed.get() == seq) return;
+                    // The logging thread checks isParked after publishing, and we check for a message after setting
+                    // it, so either we see the message or the logging thread sees that it must unpark us.
+                    isParked = true;
+                    if (published.get(i) != seq + 1 && !isClosed) LockSupport.park(this);
+                    isParked = false;
+                    continue;
+                }
+                LogLevel level = levels[i];
+                String message = messages[i];
+                Throwable error = errors[i];
+                messages[i] = null;
+                errors[i] = null;
+                consumed = ++seq;
+                try {
+                    target.log(level, message, error);
+                } catch (Exception ignore) {
+                    // ignore logging errors
+                }
+            }
+        }
+    }
+
+    /**
+     * What to do when the queued outgoing messages of a client exceed its outbound budget, i.e. when the client
+     * doesn't read as fast as messages are sent to it. Set per endpoint, see
+     * {@link Server#addHandlerFactory(String, Supplier, SlowConsumerPolicy, long)}. Messages are dropped whole, never
+     * single fragments. How often each policy applies is reported by {@link Server#metrics()}.
+     *
+     * Streamed messages (see {@link WebSocketClient#openBinaryMessage()}), direct buffers, file regions and relayed
+     * frames aren't queued, since they aren't copied, and they don't count against the budget. They're written by the
+     * sender after all queued messages have been written. With {@link #BLOCK}, the sender waits for that. With the
+     * close policies, the connection is closed if the queued messages haven't been written within a second, and the
+     * sender gets an {@link IOException}. The drop policies cannot drop such messages, so sending them fails with
+     * an {@link UnsupportedOperationException}.
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * The sender blocks until there is room in the budget.
+         */
+        BLOCK(0),
+        /**
+         * The message that is being sent is dropped.
+         */
+        DROP_NEWEST(0),
+        /**
+         * The oldest queued messages are dropped to make room for the message that is being sent.
+         */
+        DROP_OLDEST(0),
+        /**
+         * The connection is closed with code 1008 (Policy Violation), and the sender gets an {@link IOException}.
+         */
+        CLOSE_POLICY_VIOLATION(1008),
+        /**
+         * The connection is closed with code 1013 (Try Again Later), and the sender gets an {@link IOException}.
+         */
+        CLOSE_TRY_AGAIN_LATER(1013);
+
+        final int closeCode;
+
+        SlowConsumerPolicy(int closeCode) {
+            this.closeCode = closeCode;
+        }
+    }
+
+    /**
+     * Represents a WebSocket client and exposes methods that makes it possible to interact with the client, as well
+     * as methods for getting information about the client and how it requested the handled resource.
+     *
+     * Methods on this interface can be invoked from any thread.
+     */
+    public interface WebSocketClient {
+        /**
+         * Sends a ping to the client. This can be used to send keep-alive messages to the client.
+         *
+         * @throws IOException on I/O failure while sending the ping
+         */
+        void ping() throws IOException;
+
+        /**
+         * Performs a clean close of the connection to the client.
+         */
+        void close();
+
+        /**
+         * Closes the connection like {@link #close()}, but with the given close code and reason, e.g. an
+         * application-specific code in the range 4000-4999.
+         *
+         * @param code the close code
+         * @param reason the close reason, or {@code null} for none
+         * @throws IllegalArgumentException if the code may not be sent in a close frame, or if the reason is longer
+         *                                  than 123 bytes as UTF-8
+         */
+        void close(int code, String reason);
+
+        /**
+         * Stops reading from the client until {@link #resumeReading()} is called. No more frames are passed to the
+         * handler while reading is paused, except frames that already are being handled or (when a handler executor
+         * is used) are queued. At most one frame is read and held until reading is resumed. Data sent by the client
+         * then fill up the socket buffers, after which TCP flow control prevents the client from sending more. Note
+         * that ping frames aren't answered while reading is paused. Reading is resumed automatically if the server
+         * closes the connection, e.g. when draining, to be able to read the client's close frame.
+         *
+         * This method can be called from any thread, also from a handler callback. Calling it when reading is
+         * already paused has no effect.
+         */
+        void pauseReading();
+
+        /**
+         * Resumes reading from the client after {@link #pauseReading()}. This method can be called from any thread.
+         * Calling it when reading isn't paused has no effect.
+         */
+        void resumeReading();
+
+        /**
+         * Sends a text message to the client.
+         *
+         * @param text the text to send
+         * @throws IOException on I/O failure while sending
+         */
+        void sendTextMessage(CharSequence text) throws IOException;
+
+        /**
+         * Sends a text message that replaces a queued message with the same key, for last-value-wins streams such
+         * as price updates per instrument. If a message with the same key hasn't been written to the client yet, it's
+         * replaced in place, so a client that doesn't keep up gets the latest value per key, and the number of queued
+         * messages is bounded by the number of keys. Messages are written in the order in which their keys were first
+         * queued. A message that is replaced doesn't count as dropped.
+         *
+         * Messages are only queued if the endpoint has a slow-consumer policy (see
+         * {@link Server#addHandlerFactory(String, Supplier, SlowConsumerPolicy, long)}), which applies to messages
+         * with new keys. Otherwise, the message is written right away, like {@link #sendTextMessage(CharSequence)}.
+         *
+         * @param key the non-{@code null} key, compared using {@code equals}
+         * @param text the text to send
+         * @throws IOException on I/O failure while sending
+         */
+        void sendTextMessage(Object key, CharSequence text) throws IOException;
+
+        /**
+         * Sends binary data that replace a queued message with the same key. See
+         * {@link #sendTextMessage(Object, CharSequence)}.
+         *
+         * @param key the non-{@code null} key, compared using {@code equals}
+         * @param data the data to send
+         * @throws IOException on I/O failure while sending
+         */
+        void sendBinaryData(Object key, byte[] data) throws IOException;
+
+        /**
+         * Sends binary data to the client.
+         *
+         * @param data the data to send
+         * @throws IOException on I/O failure while sending
+         */
+        void sendBinaryData(byte[] data) throws IOException;
+
+        /**
+         * Sends a region of an array as binary data to the client, without copying the data.
+         *
+         * @param data the array that contains the data to send
+         * @param offset the offset of the data in the array
+         * @param length the number of bytes to send
+         * @throws IOException on I/O failure while sending
+         */
+        void sendBinaryData(byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Sends the remaining data of a buffer (between its position and its limit) as binary data to the client.
+         * The position of the buffer isn't changed, so the same buffer can be sent to several clients. The data of
+         * a direct buffer are written to the socket without being copied to the heap, unless the connection uses
+         * SSL.
+         *
+         * @param data the buffer that contains the data to send
+         * @throws IOException on I/O failure while sending
+         * @throws UnsupportedOperationException if the endpoint drops messages for slow clients, see
+         *                                       {@link SlowConsumerPolicy}
+         */
+        void sendBinaryData(ByteBuffer data) throws IOException;
+
+        /**
+         * Sends a region of a file as binary data to the client, fragmented according to the maximum frame size
+         * (see {@link Options#andMaxFrameSize(int)}). Unless the connection uses SSL, the data are sent using
+         * {@link FileChannel#transferTo}, so that they never enter the heap. The file must not be truncated while it's
+         * being sent, since the connection cannot be used after an incomplete frame.
+         *
+         * @param file the file to send data from
+         * @param position the position in the file of the first byte to send
+         * @param count the number of bytes to send
+         * @throws IOException on I/O failure while sending, or (as {@link EOFException}) if the region exceeds the
+         *                     file
+         * @throws UnsupportedOperationException if the endpoint drops messages for slow clients, see
+         *                                       {@link SlowConsumerPolicy}
+         */
+        void sendBinaryData(FileChannel file, long position, long count) throws IOException;
+
+        /**
+         * Opens a binary message whose payload is written to the returned stream, for sending a message that is
+         * generated on the fly without holding all of it in memory. Written data are buffered, and each time the
+         * buffer fills up (at the maximum frame size, see {@link Options#andMaxFrameSize(int)}, or just below 16 KB
+         * if there is no maximum), the data are sent as a fragment. Flushing the stream sends buffered data as a fragment. The
+         * message ends when the stream is closed.
+         *
+         * The message is atomic with respect to other messages sent on the connection: until the stream is closed,
+         * other threads that send messages to the client block. The stream must be written to and closed by the thread
+         * that opened it, and that thread cannot send another message before closing the stream. Always close the
+         * stream, e.g. using try-with-resources.
+         *
+         * @return the payload stream of the message
+         * @throws IllegalStateException if the calling thread already has a streamed message open
+         * @throws UnsupportedOperationException if the endpoint drops messages for slow clients, see
+         *                                       {@link SlowConsumerPolicy}
+         */
+        OutputStream openBinaryMessage();
+
+        /**
+         * Opens a text message whose payload is written to the returned writer. Characters are encoded as UTF-8
+         * directly into the message buffer. See {@link #openBinaryMessage()} for how data are sent and for the rules
+         * that apply. Writing an unpaired surrogate results in a {@link CharacterCodingException}.
+         *
+         * @return the payload writer of the message
+         * @throws IllegalStateException if the calling thread already has a streamed message open
+         * @throws UnsupportedOperationException if the endpoint drops messages for slow clients, see
+         *                                       {@link SlowConsumerPolicy}
+         */
+        Writer openTextMessage();
+
+        /**
+         * Writes coalesced frames to the client right away, instead of waiting for the coalescing buffer to fill up
+         * or for the coalescing delay to pass (see {@link Options#andWriteCoalescing(int, long)}). Does nothing if
+         * coalescing is disabled.
+         *
+         * @throws IOException on I/O failure while writing
+         */
+        void flush() throws IOException;
+
+        /**
+         * Returns the value of the User-Agent header passed by the client when requesting a Websocket connection. If no
+         * User-Agent header was present, returns {@code null}.
+         *
+         * @return the Host header value, or {@code null}
+         */
+        String userAgent();
+
+        /**
+         * Returns the value of the Host header passed by the client when requesting a Websocket connection. If no
+         * Host header was present, returns {@code null}.
+         *
+         * @return the Host header value, or {@code null}
+         */
+        String host();
+
+        /**
+         * Returns the query (part after '?', not including the fragment) used by the client when requesting a WebSocket
+         * connection. If no query was specified, returns {@code null}. If an empty query was specified, returns the
+         * empty string. The '?' character is never included.
+         *
+         * @return a query string, or {@code null}
+         * @see <a href="https://tools.ietf.org/html/rfc3986#section-3">Uniform Resource Identifier (URI): Generic Syntax</a>
+         */
+        String query();
+
+        /**
+         * Returns the fragment (part after '#') used by the client when requesting a WebSocket connection. If no
+         * fragment was specified, returns {@code null}. If an empty fragment was specified, returns the empty string.
+         * The '#' character is never included.
+         *
+         * @return a fragment string, or {@code null}
+         * @see <a href="https://tools.ietf.org/html/rfc3986#section-3">Uniform Resource Identifier (URI): Generic Syntax</a>
+         */
+        String fragment();
+
+        /**
+         * Returns the values of the parameters in the endpoint that the client connected to, keyed by parameter name
+         * (see {@link Server#addHandlerFactory(String, Supplier)}). The value of a wildcard is keyed by "*". For
+         * example, if the endpoint "/rooms/{id}/*" was registered, a client that requests "/rooms/42/a/b" gets the
+         * parameters id=42 and *=a/b.
+         *
+         * @return an unmodifiable map, which is empty if the endpoint has no parameters
+         */
+        Map<String, String> pathParameters();
+    }
+
+    /**
+     * A request to a non-WebSocket endpoint. The underlying connection is reused for the next request from the same
+     * client if the request body and the response body are both delimited by Content-Length (see
+     * {@link Options#andHttpKeepAlive(boolean)}).
+     */
+    public interface Connection {
+        /**
+         * The method (e.g. GET or POST) that the client used to request the endpoint.
+         */
+        String method();
+
+        /**
+         * The URI of the endpoint, including any Host header sent by the client.
+         */
+        URI uri();
+
+        /**
+         * The input stream through which a fallback handler can read data sent by the client. If the request has a
+         * Content-Length header, the stream ends after the request body. Body data that the fallback handler doesn't
+         * read are skipped before the next request is read.
+         */
+        InputStream inputStream();
+
+        /**
+         * The output stream through which a fallback handler can send data to the client. Closing the stream closes
+         * the connection once the fallback handler returns.
+         */
+        OutputStream outputStream();
+
+        /**
+         * Sends a region of a file to the client, as (part of) the response body, after the response has been sent
+         * using {@link #sendResponse(int, String, Map)}. This is more efficient than copying the file to the output
+         * stream, since the file data are transferred directly to the socket if the connection doesn't use SSL.
+         *
+         * @param file the file to send data from; the position of the channel isn't changed
+         * @param position the file position of the first byte to send
+         * @param count the number of bytes to send
+         * @throws EOFException if the file ends before {@code count} bytes have been sent
+         * @throws IOException if an I/O error occurs
+         */
+        void sendFile(FileChannel file, long position, long count) throws IOException;
+
+        /**
+         * All header names sent by the client.
+         */
+        Iterable<String> headerNames();
+
+        /**
+         * The value (if present) of a header sent by the client.
+         *
+         * @param name case-insensitive, non-{@code null} header name
+         * @return an {@code Optional} with the header value if the specified header was sent by the client,
+         * otherwise an empty {@code Optional}
+         */
+        Optional<String> header(String name);
+
+        /**
+         * Sends an HTTP response to the client. The server will add a 'Server' header, but otherwise the fallback
+         * handler needs to set all headers correctly (e.g. Content-Length). The connection is only reused if the
+         * response has a Content-Length header (except for a response to a HEAD request or a 204 or 304 response)
+         * and the fallback handler writes exactly that many bytes to the output stream.
+         *
+         * @param statusCode the status code
+         * @param reason the status message/reason (e.g. "OK" in "200 OK"); {@code null} is treated as the empty string
+         * @param headers headers to send to the client, can be {@code null} to send no headers (except Server)
+         */
+        void sendResponse(int statusCode, String reason, Map<String, String> headers);
+    }
+
+    /**
+     * A fallback handler deals with a connection to an unknown endpoint. This makes it possible to let non-WebSocket
+     * endpoints be regular HTTP endpoints, for example.
+     */
+    public interface FallbackHandler {
+        /**
+         * Handles the connection to an endpoint for which a WebSocket handler hasn't been registered.
+         *
+         * @param connection an object that provides access to connection details
+         * @throws IOException if an I/O error occurs
+         */
+        void handle(Connection connection) throws IOException;
     }
 
-    private static class WebSocketClientImpl implements WebSocketClient {
-
-        private final FrameWriter writer;
-        private final Runnable closeCallback;
-        private final Headers headers;
-
-        WebSocketClientImpl(FrameWriter writer, Runnable closeCallback, Headers headers) {
-            this.writer = writer;
-            this.closeCallback = closeCallback;
-            this.headers = headers;
+    static class DefaultFallbackHandler implements FallbackHandler {
+        @Override
+        public void handle(Connection connection) throws IOException {
+            throw new FileNotFoundException("Unknown endpoint: " + connection.uri().getPath());
         }
+    }
 
-        public void ping() throws IOException {
-            writer.writePing(null);
+    /**
+     * A fallback handler that serves static files from a directory, for GET and HEAD requests. A request for a
+     * directory serves its index.html file. Unknown files result in 404 Not Found.
+     *
+     * Responses have an ETag based on the size and the modification time of the file, and a request with a matching
+     * If-None-Match header gets 304 Not Modified. A single byte range can be requested using the Range header.
+     * Small files are cached in memory, in a cache with a maximum total size from which the least recently used files
+     * are evicted. Other files are sent using {@link Connection#sendFile(FileChannel, long, long)}, i.e. without
+     * copying the data if the connection doesn't use SSL.
+     */
+    public static class StaticFileHandler implements FallbackHandler {
+        private static final Map<String, String> ContentTypes = new HashMap<>();
+        static {
+            ContentTypes.put("html", "text/html; charset=utf-8");
+            ContentTypes.put("htm", "text/html; charset=utf-8");
+            ContentTypes.put("js", "application/javascript; charset=utf-8");
+            ContentTypes.put("mjs", "application/javascript; charset=utf-8");
+            ContentTypes.put("css", "text/css; charset=utf-8");
+            ContentTypes.put("json", "application/json");
+            ContentTypes.put("map", "application/json");
+            ContentTypes.put("txt", "text/plain; charset=utf-8");
+            ContentTypes.put("svg", "image/svg+xml");
+            ContentTypes.put("png", "image/png");
+            ContentTypes.put("jpg", "image/jpeg");
+            ContentTypes.put("jpeg", "image/jpeg");
+            ContentTypes.put("gif", "image/gif");
+            ContentTypes.put("ico", "image/x-icon");
+            ContentTypes.put("wasm", "application/wasm");
+            ContentTypes.put("woff", "font/woff");
+            ContentTypes.put("woff2", "font/woff2");
         }
 
-        public void close() {
-            doIgnoringExceptions(() -> {
-                writer.writeClose(1001, "Going Away");
-                closeCallback.run();
-            });
-        }
+        private final Path root;
+        private final long maxCacheSize;
+        private final long maxCachedFileSize;
+        private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private long cachedBytes;
 
-        public void sendTextMessage(CharSequence text) throws IOException {
-            if (text == null) throw new IllegalArgumentException("Cannot send null text");
-            writer.writeText(text);
+        /**
+         * Creates a handler that serves files from the given directory, with a 16 MB cache for files of at most 1 MB.
+         *
+         * @param root the directory to serve files from
+         */
+        public StaticFileHandler(Path root) {
+            this(root, 16 * 1024 * 1024, 1024 * 1024);
         }
 
-        public void sendBinaryData(byte[] data) throws IOException {
-            if (data == null) throw new IllegalArgumentException("Cannot send null data");
-            writer.writeBinary(data);
+        /**
+         * Creates a handler that serves files from the given directory.
+         *
+         * @param root the directory to serve files from
+         * @param maxCacheSize the maximum total size in bytes of cached files, 0 to disable caching
+         * @param maxCachedFileSize the maximum size in bytes of a file that is cached
+         */
+        public StaticFileHandler(Path root, long maxCacheSize, long maxCachedFileSize) {
+            if (root == null) throw new IllegalArgumentException("Root directory must be non-null");
+            if (maxCacheSize < 0) throw new IllegalArgumentException("Max cache size must be >= 0");
+            if (maxCachedFileSize < 0) throw new IllegalArgumentException("Max cached file size must be >= 0");
+            this.root = root.toAbsolutePath().normalize();
+            this.maxCacheSize = maxCacheSize;
+            this.maxCachedFileSize = Math.min(maxCacheSize, maxCachedFileSize);
         }
 
-        public String userAgent() { return headers.userAgent(); }
-        public String host() { return headers.host(); }
-        public String query() { return headers.query; }
-        public String fragment() { return headers.fragment; }
-    }
-
-    static byte[] numberToBytes(int number, int len, byte[] target) {
-        assert target == null || target.length >= len : "numberToBytes target is too small";
-        byte[] array = target != null ? target : new byte[len];
-        // Start from the end (network byte order), assume array is filled with zeros.
-        for (int i = len - 1; i >= 0; i--) {
-            array[i] = (byte) (number & 0xff);
-            number = number >> 8;
-        }
-        return array;
-    }
+        @Override
+        public void handle(Connection connection) throws IOException {
+            String method = connection.method();
+            boolean isHead = "HEAD".equals(method);
+            if (!isHead && !"GET".equals(method)) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Allow", "GET, HEAD");
+                headers.put("Content-Length", "0");
+                connection.sendResponse(405, "Method Not Allowed", headers);
+                return;
+            }
 
-    static String createResponseKey(String key) throws NoSuchAlgorithmException {
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        byte[] rawBytes = (key + HANDSHAKE_GUID).getBytes();
-        byte[] result = sha1.digest(rawBytes);
-        return Base64.getEncoder().encodeToString(result);
-    }
+            Path file = resolve(connection.uri().getPath());
+            BasicFileAttributes attrs = readAttributes(file);
+            if (attrs.isDirectory()) {
+                file = file.resolve("index.html");
+                attrs = readAttributes(file);
+            }
+            if (!attrs.isRegularFile()) throw new FileNotFoundException("Not a file: " + connection.uri().getPath());
+
+            long size = attrs.size();
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            byte[] content = isHead ? null : cachedContent(file, size, lastModified);
+
+            // https://tools.ietf.org/html/rfc7232#section-2.3
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("ETag", etag);
+            headers.put("Accept-Ranges", "bytes");
+            if (Headers.containsToken(connection.header("If-None-Match").orElse(null), etag) ||
+                    "*".equals(connection.header("If-None-Match").orElse(null))) {
+                connection.sendResponse(304, "Not Modified", headers);
+                return;
+            }
+            headers.put("Content-Type", contentType(file));
+
+            int statusCode = 200;
+            String reason = "OK";
+            long start = 0, length = size;
+            // https://tools.ietf.org/html/rfc7233#section-3.1 - If-Range makes the range conditional.
+            String range = connection.header("Range").orElse(null);
+            if (range != null && connection.header("If-Range").map(etag::equals).orElse(true)) {
+                long[] firstAndLast = parseRange(range, size);
+                if (firstAndLast != null && firstAndLast.length == 0) {
+                    headers.put("Content-Range", "bytes */" + size);
+                    headers.put("Content-Length", "0");
+                    connection.sendResponse(416, "Range Not Satisfiable", headers);
+                    return;
+                } else if (firstAndLast != null) {
+                    statusCode = 206;
+                    reason = "Partial Content";
+                    start = firstAndLast[0];
+                    length = firstAndLast[1] - start + 1;
+                    headers.put("Content-Range", "bytes " + start + "-" + firstAndLast[1] + "/" + size);
+                }
+            }
+            headers.put("Content-Length", Long.toString(length));
+            connection.sendResponse(statusCode, reason, headers);
+            if (isHead) return;
 
-    private static void doIgnoringExceptions(RunnableThatThrows runnable) {
-        try {
-            runnable.run();
-        } catch (Exception ex) {
-            // ignore
+            if (content != null) {
+                connection.outputStream().write(content, (int) start, (int) length);
+            } else {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    connection.sendFile(channel, start, length);
+                }
+            }
         }
-    }
-    private interface RunnableThatThrows {
-        void run() throws Exception;
-    }
 
-    static byte[] unmaskIfNeededInPlace(byte[] bytes, byte[] maskingKey) {
-        if (maskingKey != null) {
-            // Performance note: This code is up to 4 times faster than using only the last loop by itself.
-            // Using an IntBuffer is not faster.
-            byte m0 = maskingKey[0], m1 = maskingKey[1], m2 = maskingKey[2], m3 = maskingKey[3];
-            int roundedLen = 4 * (bytes.length / 4);
-            int i = 0;
-            for (; i < roundedLen; i += 4) {
-                bytes[i] = (byte) (bytes[i] ^ m0);
-                bytes[i+1] = (byte) (bytes[i+1] ^ m1);
-                bytes[i+2] = (byte) (bytes[i+2] ^ m2);
-                bytes[i+3] = (byte) (bytes[i+3] ^ m3);
-            }
-            for (; i < bytes.length; i++) {
-                int j = i % 4;
-                bytes[i] = (byte) (bytes[i] ^ maskingKey[j]);
+        private Path resolve(String path) throws FileNotFoundException {
+            try {
+                // The path of the URI is already decoded.
+                Path file = root.resolve(path == null ? "" : path.replaceFirst("^/+", "")).normalize();
+                if (file.startsWith(root)) return file;
+            } catch (InvalidPathException ignore) {
+                // handled below
             }
+            throw new FileNotFoundException("Invalid path: " + path);
         }
-        return bytes;
-    }
 
-    static class MethodNotAllowedException extends IllegalArgumentException {
-        final String method;
-        public MethodNotAllowedException(String method) {
-            this.method = method;
+        private static BasicFileAttributes readAttributes(Path file) throws IOException {
+            try {
+                return Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
+                throw new FileNotFoundException("No such file: " + file);
+            }
         }
-    }
-
-    /**
-     * Server options, configured using a fluent interface. Start with {@code Options.withPort(int)} since port is
-     * required.
-     */
-    public static class Options {
-        Integer backlog;
-        int port;
-        Logger logger;
-        InetAddress address;
-        int maxFrameSize;
-        SSLContext sslContext;
-
-        private boolean shouldUseSSL() { return sslContext != null; }
 
-        private Options(int port) {
-            this.port = port;
+        private static String contentType(Path file) {
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            String contentType = dot >= 0 ? ContentTypes.get(name.substring(dot + 1).toLowerCase(Locale.ROOT)) : null;
+            return contentType != null ? contentType : "application/octet-stream";
         }
 
         /**
-         * Creates new options with the given port.
+         * Returns the content of a file from the cache, reading the file into the cache if it isn't cached or has
+         * been modified since it was cached.
          *
-         * @param port the port to use when listening for WebSocket clients
-         * @return this options instance
+         * @return the file content, or {@code null} if the file is too large to be cached
          */
-        public static Options withPort(int port) {
-            return new Options(port);
+        private byte[] cachedContent(Path file, long size, long lastModified) throws IOException {
+            if (size > maxCachedFileSize) return null;
+            synchronized (cache) {
+                CachedFile cached = cache.get(file);
+                if (cached != null && cached.lastModified == lastModified && cached.content.length == size)
+                    return cached.content;
+            }
+            byte[] content = Files.readAllBytes(file);
+            // The file changed while we read it, so don't cache it.
+            if (content.length != size) return null;
+            synchronized (cache) {
+                CachedFile previous = cache.put(file, new CachedFile(content, lastModified));
+                if (previous != null) cachedBytes -= previous.content.length;
+                cachedBytes += content.length;
+                // Evict least recently used files
+                Iterator<CachedFile> it = cache.values().iterator();
+                while (cachedBytes > maxCacheSize && it.hasNext()) {
+                    cachedBytes -= it.next().content.length;
+                    it.remove();
+                }
+            }
+            return content;
         }
 
         /**
-         * Specifies the backlog size, i.e. the size of the client connection queue. If the queue is full, a client
-         * connection is rejected.
+         * Parses the value of a Range header, see https://tools.ietf.org/html/rfc7233#section-2.1. Only a single
+         * byte range is supported.
          *
-         * @param backlog the backlog size, which must be greater than 0
-         * @return this options instance
+         * @return the first and the last byte position of the range, an empty array if the range isn't satisfiable,
+         * or {@code null} if the header should be ignored
          */
-        public Options andBacklog(int backlog) {
-            if (backlog <= 0) throw new IllegalArgumentException("Backlog must be > 0");
-            this.backlog = backlog;
-            return this;
+        static long[] parseRange(String value, long size) {
+            if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) return null;
+            String spec = value.substring(6).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            try {
+                String firstPos = spec.substring(0, dash).trim();
+                String lastPos = spec.substring(dash + 1).trim();
+                long first, last;
+                if (firstPos.isEmpty()) {
+                    // Suffix range, i.e. the last N bytes
+                    long suffixLength = Long.parseLong(lastPos);
+                    if (suffixLength < 0) return null;
+                    if (suffixLength == 0 || size == 0) return new long[0];
+                    first = Math.max(0, size - suffixLength);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(firstPos);
+                    last = lastPos.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPos);
+                    if (last < first) return null;
+                    if (first >= size) return new long[0];
+                    last = Math.min(last, size - 1);
+                }
+                return new long[] { first, last };
+            } catch (NumberFormatException ex) {
+                return null;
+            }
         }
 
-        /**
-         * Specifies a logger.
-         *
-         * @param logger the logger instance
-         * @return this options instance
-         */
-        public Options andLogger(Logger logger) {
-            this.logger = logger;
-            return this;
+        private static class CachedFile {
+            final byte[] content;
+            final long lastModified;
+
+            CachedFile(byte[] content, long lastModified) {
+                this.content = content;
+                this.lastModified = lastModified;
+            }
         }
+    }
 
+    /**
+     * A handler for a WebSocket client connection. A new handler instance will be created for each connected client.
+     * Handlers are invoked on the thread that reads from the client, or on the handler executor if one has been
+     * specified using {@link Options#andHandlerExecutor(Executor, int)}. In both cases, invocations for a single
+     * client happen one at a time and in order.
+     */
+    public interface WebSocketHandler {
         /**
-         * Specifies the address to use when creating the server socket.
+         * Invoked right after construction.
          *
-         * @param address the address to bind to
-         * @return this options instance
+         * @param client instance for interacting with the client
          */
-        public Options andAddress(InetAddress address) {
-            this.address = address;
-            return this;
-        }
+        void onOpened(WebSocketClient client);
 
         /**
-         * Specifies the maximum frame size. The maximum frame size must be at least 126, as it doesn't make much
-         * sense to create frame fragments smaller than that.
+         * Invoked when the client closes the connection in an orderly fashion.
          *
-         * @param size maximum frame size
-         * @return this options instance
+         * @param code the close code the client used, if any, otherwise 1000 (Normal Closure).
+         * @param reason the close reason the client used, if any. May be {@code null}.
          */
-        public Options andMaxFrameSize(int size) {
-            if (size <= 125) throw new IllegalArgumentException("Max frame size must be at least 126.");
-            this.maxFrameSize = size;
-            return this;
-        }
+        void onClosedByClient(int code, String reason);
 
         /**
-         * Configures the server for SSL.
+         * Invoked when the server closes the connection in an orderly fashion, but must likely because of an error.
          *
-         * @param sslContext the SSL context that creates an SSL socket
-         * @return this options instance
+         * @param code the close code sent to the client
+         * @param reason the close reason sent to the client
          */
-        public Options andSSL(SSLContext sslContext) {
-            if (sslContext == null) throw new IllegalArgumentException("SSL context cannot be null.");
-            this.sslContext = sslContext;
-            return this;
-        }
-    }
-
-    /**
-     * Log level for logging.
-     */
-    public enum LogLevel {
-        TRACE(0),
-        DEBUG(10),
-        INFO(20),
-        WARN(50),
-        ERROR(100);
+        void onClosedByServer(int code, String reason);
 
         /**
-         * Numeric level corresponding to this log level. ERROR has the highest level and TRACE has the lowest.
+         * Invoked when the connection is closed abruptly because of an error.
+         *
+         * @param t the error that occurred
          */
-        public final int level;
-
-        LogLevel(int level) {
-            this.level = level;
-        }
-    }
+        void onFailure(Throwable t);
 
-    /**
-     * A simple interface for logging.
-     */
-    public interface Logger {
         /**
-         * Logs a message at a certain level. Note that this method is not called if {@link #isEnabledAt(LogLevel)}
-         * returns {@code false} for the given level.
+         * Invoked when the client sends a text message.
          *
-         * @param level the log level
-         * @param message the message to log
-         * @param error an optional error
+         * @param text the message, a {@link Utf8Text} that is decoded lazily
          */
-        void log(LogLevel level, String message, Throwable error);
+        void onTextMessage(CharSequence text);
 
         /**
-         * Determines if logging is enabled for the given level.
+         * Invoked when the client sends binary data.
          *
-         * @param level a log level
-         * @return {@code true} if logging is enabled at the level, {@code false} otherwise
+         * @param data the data
          */
-        boolean isEnabledAt(LogLevel level);
+        void onBinaryData(byte[] data);
     }
 
     /**
-     * Represents a WebSocket client and exposes methods that makes it possible to interact with the client, as well
-     * as methods for getting information about the client and how it requested the handled resource.
+     * A lower-level handler that receives the data frames of a connection one by one, as they are read, instead of
+     * complete messages. Fragments aren't combined and text isn't decoded (or validated as UTF-8), so there's no
+     * per-message work besides reading the frame, e.g. for custom binary protocols. The text and binary callbacks of
+     * {@link WebSocketHandler} aren't invoked.
      *
-     * Methods on this interface can be invoked from any thread.
+     * The server still enforces the protocol rules for frames: reserved bits must be zero, control frames must not be
+     * fragmented or longer than 125 bytes, and continuation frames must continue a fragmented message. Control
+     * frames are handled as for other handlers, i.e. pings are answered and a close frame results in
+     * {@link #onClosedByClient(int, String)}.
+     *
+     * A frame handler is always invoked on the reading thread, also if a handler executor is used (see
+     * {@link Options#andHandlerExecutor(Executor, int)}), since the payload of a frame is only valid during the
+     * invocation.
      */
-    public interface WebSocketClient {
+    public interface FrameHandler extends WebSocketHandler {
         /**
-         * Sends a ping to the client. This can be used to send keep-alive messages to the client.
+         * Invoked with a data frame. The payload array is only valid until the method returns, since it's reused
+         * for other frames, and may be longer than the payload.
          *
-         * @throws IOException on I/O failure while sending the ping
-         */
-        void ping() throws IOException;
-
-        /**
-         * Performs a clean close of the connection to the client.
+         * @param opCode the opcode of the frame: 1 for text, 2 for binary and 0 for a continuation frame
+         * @param isFin whether the frame is the final frame of a message
+         * @param payload the payload, which has been unmasked
+         * @param length the payload length
          */
-        void close();
+        void onFrame(int opCode, boolean isFin, byte[] payload, int length);
 
         /**
-         * Sends a text message to the client.
-         *
-         * @param text the text to send
-         * @throws IOException on I/O failure while sending
+         * Not invoked for a frame handler.
          */
-        void sendTextMessage(CharSequence text) throws IOException;
+        @Override
+        default void onTextMessage(CharSequence text) {}
 
         /**
-         * Sends binary data to the client.
-         *
-         * @param data the data to send
-         * @throws IOException on I/O failure while sending
+         * Not invoked for a frame handler.
          */
-        void sendBinaryData(byte[] data) throws IOException;
+        @Override
+        default void onBinaryData(byte[] data) {}
+    }
 
-        /**
-         * Returns the value of the User-Agent header passed by the client when requesting a Websocket connection. If no
-         * User-Agent header was present, returns {@code null}.
+    /**
+     * A subscriber of a {@link Publisher}, in the style of Reactive Streams (defined here to avoid a dependency).
+     * Signals are never sent concurrently to a subscriber.
+     *
+     * @param <T> the element type
+     */
+    public interface Subscriber<T> {
+        /**
+         * Invoked once, before any other signal. No elements are sent until demand is signalled using
+         * {@link Subscription#request(long)}.
          *
-         * @return the Host header value, or {@code null}
+         * @param subscription the subscription
          */
-        String userAgent();
+        void onSubscribe(Subscription subscription);
 
         /**
-         * Returns the value of the Host header passed by the client when requesting a Websocket connection. If no
-         * Host header was present, returns {@code null}.
+         * Invoked for each element, never more times than requested.
          *
-         * @return the Host header value, or {@code null}
+         * @param item the element
          */
-        String host();
+        void onNext(T item);
 
         /**
-         * Returns the query (part after '?', not including the fragment) used by the client when requesting a WebSocket
-         * connection. If no query was specified, returns {@code null}. If an empty query was specified, returns the
-         * empty string. The '?' character is never included.
+         * Invoked when the publisher fails. No more signals follow.
          *
-         * @return a query string, or {@code null}
-         * @see <a href="https://tools.ietf.org/html/rfc3986#section-3">Uniform Resource Identifier (URI): Generic Syntax</a>
+         * @param t the error
          */
-        String query();
+        void onError(Throwable t);
 
         /**
-         * Returns the fragment (part after '#') used by the client when requesting a WebSocket connection. If no
-         * fragment was specified, returns {@code null}. If an empty fragment was specified, returns the empty string.
-         * The '#' character is never included.
-         *
-         * @return a fragment string, or {@code null}
-         * @see <a href="https://tools.ietf.org/html/rfc3986#section-3">Uniform Resource Identifier (URI): Generic Syntax</a>
+         * Invoked when the publisher has no more elements. No more signals follow.
          */
-        String fragment();
+        void onComplete();
     }
 
     /**
-     * A connection to a non-WebSocket endpoint.
+     * The link between a {@link Publisher} and a {@link Subscriber}. Methods can be invoked from any thread.
      */
-    public interface Connection {
+    public interface Subscription {
         /**
-         * The method (e.g. GET or POST) that the client used to request the endpoint.
+         * Signals demand for {@code n} more elements. A non-positive {@code n} results in
+         * {@link Subscriber#onError(Throwable)} with an {@link IllegalArgumentException}.
+         *
+         * @param n the number of additional elements to deliver; {@code Long.MAX_VALUE} means unbounded
          */
-        String method();
+        void request(long n);
 
         /**
-         * The URI of the endpoint, including any Host header sent by the client.
+         * Stops the delivery of elements.
          */
-        URI uri();
+        void cancel();
+    }
 
+    /**
+     * A publisher of elements to a subscriber, with demand signalled by the subscriber.
+     *
+     * @param <T> the element type
+     */
+    public interface Publisher<T> {
         /**
-         * The input stream through which a fallback handler can read data sent by the client.
+         * Subscribes to the elements of this publisher.
+         *
+         * @param subscriber the non-{@code null} subscriber
          */
-        InputStream inputStream();
+        void subscribe(Subscriber<? super T> subscriber);
+    }
 
-        /**
-         * The output stream through which a fallback handler can send data to the client.
-         */
-        OutputStream outputStream();
+    /**
+     * The text of a received text message, which is what {@link WebSocketHandler#onTextMessage(CharSequence)} gets.
+     * The message is validated as UTF-8 when it's received, but its characters are only decoded when needed. Reading
+     * the length, or characters in the leading ASCII part of the text (e.g. to route a message by a prefix), doesn't
+     * decode the text. Other access decodes the whole text once, and the result is kept.
+     *
+     * The UTF-8 bytes of the text are available through {@link #utf8()}, e.g. for forwarding the message without
+     * encoding it again. A {@code Utf8Text} that is sent as a text message is written without being encoded.
+     *
+     * Two instances are equal if they contain the same text.
+     */
+    public static final class Utf8Text implements CharSequence {
+        private final byte[] bytes;
+        private final int length;
+        private final int asciiPrefixLength;
+        private String decoded;
+
+        private Utf8Text(byte[] bytes, int length, int asciiPrefixLength) {
+            this.bytes = bytes;
+            this.length = length;
+            this.asciiPrefixLength = asciiPrefixLength;
+        }
 
         /**
-         * All header names sent by the client.
+         * Validates the given bytes as UTF-8, and returns a text that uses them.
+         *
+         * @param bytes the bytes, which must not be modified afterwards
+         * @return the text
+         * @throws WebSocketClosure (1007) if the bytes aren't valid UTF-8
          */
-        Iterable<String> headerNames();
+        static Utf8Text validate(byte[] bytes) throws WebSocketClosure {
+            int end = bytes.length;
+            int i = 0;
+            while (i < end && bytes[i] >= 0) i++;
+            int asciiPrefixLength = i;
+            int length = i;
+            while (i < end) {
+                int b = bytes[i] & 0xff;
+                if (b < 0x80) {
+                    i++;
+                    length++;
+                    continue;
+                }
+                // Rejects overlong encodings, surrogates and code points above U+10FFFF, like the JDK decoder.
+                int count, min, max;
+                if (b < 0xc2) throw WebSocketClosure.invalidFramePayloadData();
+                else if (b < 0xe0) { count = 1; min = 0x80; max = 0xbf; }
+                else if (b < 0xf0) { count = 2; min = b == 0xe0 ? 0xa0 : 0x80; max = b == 0xed ? 0x9f : 0xbf; }
+                else if (b < 0xf5) { count = 3; min = b == 0xf0 ? 0x90 : 0x80; max = b == 0xf4 ? 0x8f : 0xbf; }
+                else throw WebSocketClosure.invalidFramePayloadData();
+                if (end - i <= count) throw WebSocketClosure.invalidFramePayloadData();
+                int second = bytes[i + 1] & 0xff;
+                if (second < min || second > max) throw WebSocketClosure.invalidFramePayloadData();
+                for (int j = 2; j <= count; j++) {
+                    if ((bytes[i + j] & 0xc0) != 0x80) throw WebSocketClosure.invalidFramePayloadData();
+                }
+                i += count + 1;
+                // A code point above U+FFFF is a surrogate pair in UTF-16.
+                length += count == 3 ? 2 : 1;
+            }
+            return new Utf8Text(bytes, length, asciiPrefixLength);
+        }
 
         /**
-         * The value (if present) of a header sent by the client.
+         * Returns the UTF-8 bytes of the text, as a read-only buffer that shares the bytes of this instance.
          *
-         * @param name case-insensitive, non-{@code null} header name
-         * @return an {@code Optional} with the header value if the specified header was sent by the client,
-         * otherwise an empty {@code Optional}
+         * @return the bytes
          */
-        Optional<String> header(String name);
+        public ByteBuffer utf8() {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
 
         /**
-         * Sends an HTTP response to the client. The server will add a 'Server' header, but otherwise the fallback
-         * handler needs to set all headers correctly (e.g. Content-Length).
+         * Returns the number of UTF-8 bytes of the text.
          *
-         * @param statusCode the status code
-         * @param reason the status message/reason (e.g. "OK" in "200 OK"); {@code null} is treated as the empty string
-         * @param headers headers to send to the client, can be {@code null} to send no headers (except Server)
+         * @return the number of bytes
          */
-        void sendResponse(int statusCode, String reason, Map<String, String> headers);
+        public int utf8Length() {
+            return bytes.length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= 0 && index < asciiPrefixLength) return (char) bytes[index];
+            return toString().charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            // Decoding is idempotent, so a race between threads only means that the text is decoded more than once.
+            String s = decoded;
+            if (s == null) decoded = s = new String(bytes, StandardCharsets.UTF_8);
+            return s;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Utf8Text && Arrays.equals(bytes, ((Utf8Text) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
     }
 
     /**
-     * A fallback handler deals with a connection to an unknown endpoint. This makes it possible to let non-WebSocket
-     * endpoints be regular HTTP endpoints, for example.
+     * A WebSocket message, either text or binary.
      */
-    public interface FallbackHandler {
+    public static final class Message {
+        private final CharSequence text;
+        private final byte[] data;
+
+        private Message(CharSequence text, byte[] data) {
+            this.text = text;
+            this.data = data;
+        }
+
         /**
-         * Handles the connection to an endpoint for which a WebSocket handler hasn't been registered.
+         * Creates a text message.
          *
-         * @param connection an object that provides access to connection details
-         * @throws IOException if an I/O error occurs
+         * @param text the non-{@code null} text
+         * @return a text message
          */
-        void handle(Connection connection) throws IOException;
-    }
+        public static Message text(CharSequence text) {
+            if (text == null) throw new IllegalArgumentException("Text cannot be null.");
+            return new Message(text, null);
+        }
 
-    static class DefaultFallbackHandler implements FallbackHandler {
-        @Override
-        public void handle(Connection connection) throws IOException {
-            throw new FileNotFoundException("Unknown endpoint: " + connection.uri().getPath());
+        /**
+         * Creates a binary message.
+         *
+         * @param data the non-{@code null} data
+         * @return a binary message
+         */
+        public static Message binary(byte[] data) {
+            if (data == null) throw new IllegalArgumentException("Data cannot be null.");
+            return new Message(null, data);
+        }
+
+        /**
+         * Returns {@code true} for a text message, {@code false} for a binary message.
+         */
+        public boolean isText() { return text != null; }
+
+        /**
+         * Returns the text of a text message, or {@code null} for a binary message.
+         */
+        public CharSequence text() { return text; }
+
+        /**
+         * Returns the data of a binary message, or {@code null} for a text message.
+         */
+        public byte[] data() { return data; }
+
+        public String toString() {
+            return isText() ? "Message[text, length=" + text.length() + "]" : "Message[binary, length=" + data.length + "]";
         }
     }
 
     /**
-     * A handler for a WebSocket client connection. A new handler instance will be created for each connected client.
-     * Handlers are invoked on the handler executor passed to the {@code Server} constructor.
+     * A handler that adapts a WebSocket connection to demand-driven streams of messages, for integration with
+     * reactive libraries. Create one handler per connection, using a handler factory. Once the connection is open,
+     * the connection callback receives the handler, through which it can subscribe to the inbound messages
+     * ({@link #inbound()}) and subscribe the outbound sink ({@link #outbound()}) to a publisher of messages to send.
+     *
+     * Inbound messages are only read from the client while the inbound subscriber has outstanding demand: reading is
+     * paused (see {@link WebSocketClient#pauseReading()}) when demand runs out, so that TCP flow control pushes back
+     * on the client. Cancelling the inbound subscription closes the connection. The inbound subscriber is completed
+     * when the connection is closed, or gets an error if the connection fails. Note that a close frame from the client
+     * is only read when there is demand.
+     *
+     * The outbound sink requests a window of messages and writes them one at a time on the write executor. Another
+     * message is requested each time a message has been written, so the demand follows the writability of the
+     * socket: a blocked write (when the client doesn't read) stops the demand. When the outbound publisher completes
+     * or fails, the connection is closed after pending messages have been written.
      */
-    public interface WebSocketHandler {
+    public static class ReactiveHandler implements WebSocketHandler {
+        private final Consumer<ReactiveHandler> onConnection;
+        private final Executor writeExecutor;
+        private final int writeWindow;
+        private final InboundPublisher inbound = new InboundPublisher();
+        private final OutboundSink outbound = new OutboundSink();
+        private volatile WebSocketClient client;
+
         /**
-         * Invoked right after construction.
+         * Creates a new handler with a write window of 16 messages.
          *
-         * @param client instance for interacting with the client
+         * @param onConnection invoked when the connection is open, with this handler
+         * @param writeExecutor the executor used for writing outbound messages, which blocks while the client isn't
+         *                      reading
          */
-        void onOpened(WebSocketClient client);
+        public ReactiveHandler(Consumer<ReactiveHandler> onConnection, Executor writeExecutor) {
+            this(onConnection, writeExecutor, 16);
+        }
 
         /**
-         * Invoked when the client closes the connection in an orderly fashion.
+         * Creates a new handler.
          *
-         * @param code the close code the client used, if any, otherwise 1000 (Normal Closure).
-         * @param reason the close reason the client used, if any. May be {@code null}.
+         * @param onConnection invoked when the connection is open, with this handler
+         * @param writeExecutor the executor used for writing outbound messages, which blocks while the client isn't
+         *                      reading
+         * @param writeWindow the maximum number of outbound messages requested but not yet written, which must be
+         *                    greater than 0
          */
-        void onClosedByClient(int code, String reason);
+        public ReactiveHandler(Consumer<ReactiveHandler> onConnection, Executor writeExecutor, int writeWindow) {
+            if (onConnection == null) throw new IllegalArgumentException("Connection callback cannot be null.");
+            if (writeExecutor == null) throw new IllegalArgumentException("Write executor cannot be null.");
+            if (writeWindow <= 0) throw new IllegalArgumentException("Write window must be > 0");
+            this.onConnection = onConnection;
+            this.writeExecutor = new SerialExecutor(writeExecutor);
+            this.writeWindow = writeWindow;
+        }
 
         /**
-         * Invoked when the server closes the connection in an orderly fashion, but must likely because of an error.
+         * Returns the client, or {@code null} if the connection isn't open yet.
          *
-         * @param code the close code sent to the client
-         * @param reason the close reason sent to the client
+         * @return the client
          */
-        void onClosedByServer(int code, String reason);
+        public WebSocketClient client() { return client; }
 
         /**
-         * Invoked when the connection is closed abruptly because of an error.
+         * Returns the publisher of messages sent by the client. Only one subscriber is allowed.
          *
-         * @param t the error that occurred
+         * @return the inbound publisher
          */
-        void onFailure(Throwable t);
+        public Publisher<Message> inbound() { return inbound; }
 
         /**
-         * Invoked when the client sends a text message.
+         * Returns the sink for messages to send to the client. It should be subscribed to one publisher.
          *
-         * @param text the message
+         * @return the outbound sink
          */
-        void onTextMessage(CharSequence text);
+        public Subscriber<Message> outbound() { return outbound; }
+
+        @Override
+        public void onOpened(WebSocketClient client) {
+            this.client = client;
+            // No demand yet
+            client.pauseReading();
+            onConnection.accept(this);
+        }
+
+        @Override
+        public void onClosedByClient(int code, String reason) {
+            terminate(null);
+        }
+
+        @Override
+        public void onClosedByServer(int code, String reason) {
+            terminate(null);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            terminate(t);
+        }
+
+        @Override
+        public void onTextMessage(CharSequence text) {
+            inbound.offer(Message.text(text));
+        }
+
+        @Override
+        public void onBinaryData(byte[] data) {
+            inbound.offer(Message.binary(data));
+        }
+
+        private void terminate(Throwable error) {
+            inbound.terminate(error);
+            outbound.cancelUpstream();
+        }
+
+        private void close() {
+            client.close();
+            // Closing from the handler doesn't result in a callback.
+            terminate(null);
+        }
+
+        private class InboundPublisher implements Publisher<Message>, Subscription {
+            private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+            private final AtomicReference<Subscriber<? super Message>> subscriber = new AtomicReference<>();
+            private volatile boolean isTerminated;
+            private volatile Throwable error;
+            private volatile boolean isCancelled;
+            private boolean isDone; // only accessed in drain
+
+            @Override
+            public void subscribe(Subscriber<? super Message> s) {
+                if (s == null) throw new IllegalArgumentException("Subscriber cannot be null.");
+                if (!subscriber.compareAndSet(null, s)) {
+                    s.onSubscribe(NoSubscription);
+                    s.onError(new IllegalStateException("Only one subscriber is allowed."));
+                    return;
+                }
+                s.onSubscribe(this);
+                drain();
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    terminate(new IllegalArgumentException("Requested number of elements must be > 0, was " + n));
+                    // The subscription is cancelled as well, but cancel() doesn't close once terminated.
+                    close();
+                    return;
+                }
+                demand.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                if (isCancelled) return;
+                isCancelled = true;
+                queue.clear();
+                if (!isTerminated) close();
+            }
+
+            void offer(Message message) {
+                if (isCancelled) return;
+                queue.add(message);
+                drain();
+            }
+
+            void terminate(Throwable t) {
+                if (isTerminated) return;
+                error = t;
+                isTerminated = true;
+                drain();
+            }
+
+            /**
+             * Delivers queued messages and terminal signals to the subscriber, on one thread at a time, and pauses
+             * or resumes reading based on the remaining demand.
+             */
+            private void drain() {
+                if (wip.getAndIncrement() != 0) return;
+                int missed = 1;
+                while (true) {
+                    Subscriber<? super Message> s = subscriber.get();
+                    if (s != null && !isCancelled && !isDone) {
+                        Message message;
+                        while (demand.get() > 0 && (message = queue.poll()) != null) {
+                            if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                            s.onNext(message);
+                        }
+                        if (isTerminated && queue.isEmpty()) {
+                            isDone = true;
+                            if (error != null) s.onError(error);
+                            else s.onComplete();
+                        }
+                    }
+                    WebSocketClient c = client;
+                    if (c != null && !isTerminated && !isCancelled) {
+                        if (demand.get() > 0) c.resumeReading();
+                        else c.pauseReading();
+                    }
+                    missed = wip.addAndGet(-missed);
+                    if (missed == 0) return;
+                }
+            }
+        }
+
+        private class OutboundSink implements Subscriber<Message> {
+            private final AtomicReference<Subscription> upstream = new AtomicReference<>();
+            private volatile boolean isCancelled;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                if (isCancelled || !upstream.compareAndSet(null, subscription)) {
+                    subscription.cancel();
+                    return;
+                }
+                subscription.request(writeWindow);
+            }
+
+            @Override
+            public void onNext(Message message) {
+                writeExecutor.execute(() -> write(message));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                writeExecutor.execute(ReactiveHandler.this::close);
+            }
+
+            @Override
+            public void onComplete() {
+                writeExecutor.execute(ReactiveHandler.this::close);
+            }
+
+            private void write(Message message) {
+                if (isCancelled) return;
+                try {
+                    if (message.isText()) client.sendTextMessage(message.text());
+                    else client.sendBinaryData(message.data());
+                } catch (IOException ex) {
+                    // The connection is failing, which the client handler reports.
+                    cancelUpstream();
+                    return;
+                }
+                Subscription s = upstream.get();
+                if (s != null) s.request(1);
+            }
+
+            void cancelUpstream() {
+                isCancelled = true;
+                Subscription s = upstream.get();
+                if (s != null) s.cancel();
+            }
+        }
+
+        private static final Subscription NoSubscription = new Subscription() {
+            @Override
+            public void request(long n) {}
+
+            @Override
+            public void cancel() {}
+        };
+    }
+
+    /**
+     * A handler that relays each connection to an upstream WebSocket server, frame by frame. When a client connects,
+     * the handler opens a connection to the upstream server using a {@link Connector}. Data frames are then passed
+     * on in both directions as they are read, one fragment at a time, without combining fragments or decoding text.
+     * Thus, the only work per frame is unmasking frames from the client and masking frames to the upstream server.
+     * Control frames are handled on each connection: pings are answered, and when one of the connections is closed
+     * or fails, the other one is closed as well. The code and reason of a close are passed on to the other side.
+     *
+     * A relayed connection applies backpressure: when one side doesn't read, writes to it block, and frames are no
+     * longer read from the other side. Relayed frames aren't queued, so the endpoint of a relay must not use a policy
+     * that drops messages (see {@link SlowConsumerPolicy}), and the handler executor doesn't apply to relayed
+     * frames. Text isn't validated as UTF-8 by the relay, which is left to the receiving side.
+     *
+     * Create one handler per connection, e.g.
+     * {@code server.addHandlerFactory("/feed", () -> new RelayHandler(connector, upstreamUri))}.
+     */
+    public static class RelayHandler implements FrameHandler {
+        private final Connector connector;
+        private final URI upstreamUri;
+        private volatile WebSocketClientImpl client;
+        private volatile WebSocketClientImpl upstream;
 
         /**
-         * Invoked when the client sends binary data.
+         * Creates a new handler.
          *
-         * @param data the data
+         * @param connector the connector used for connecting to the upstream server
+         * @param upstreamUri the URI of the upstream server
          */
-        void onBinaryData(byte[] data);
+        public RelayHandler(Connector connector, URI upstreamUri) {
+            this.connector = Objects.requireNonNull(connector, "connector");
+            this.upstreamUri = Objects.requireNonNull(upstreamUri, "upstreamUri");
+        }
+
+        @Override
+        public void onOpened(WebSocketClient client) {
+            this.client = (WebSocketClientImpl) client;
+            try {
+                connector.connect(upstreamUri, new UpstreamHandler());
+            } catch (IOException ex) {
+                client.close();
+                throw new UncheckedIOException("Failed to connect to " + upstreamUri, ex);
+            }
+        }
+
+        @Override
+        public void onFrame(int opCode, boolean isFin, byte[] payload, int length) {
+            forward(opCode, isFin, payload, length, client, upstream);
+        }
+
+        @Override
+        public void onClosedByClient(int code, String reason) {
+            WebSocketClient upstream = this.upstream;
+            if (upstream != null) upstream.close(code, reason);
+        }
+
+        @Override
+        public void onClosedByServer(int code, String reason) {
+            WebSocketClient upstream = this.upstream;
+            if (upstream != null) upstream.close(code, reason);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            WebSocketClient upstream = this.upstream;
+            if (upstream != null) upstream.close();
+        }
+
+        private static void forward(int opCode, boolean isFin, byte[] payload, int length, WebSocketClientImpl source,
+                                    WebSocketClientImpl target) {
+            // Frames that arrive before the other connection exists, or after it's gone, are dropped, since both
+            // connections are closed in that case.
+            if (target == null) return;
+            try {
+                target.writer.forwardFrame(opCode, isFin, payload, length);
+            } catch (IOException | UnsupportedOperationException ex) {
+                target.close();
+                source.close();
+            }
+        }
+
+        /**
+         * Handles the connection to the upstream server.
+         */
+        private class UpstreamHandler implements FrameHandler {
+            @Override
+            public void onOpened(WebSocketClient upstreamClient) {
+                upstream = (WebSocketClientImpl) upstreamClient;
+            }
+
+            @Override
+            public void onFrame(int opCode, boolean isFin, byte[] payload, int length) {
+                forward(opCode, isFin, payload, length, upstream, client);
+            }
+
+            @Override
+            public void onClosedByClient(int code, String reason) {
+                client.close(code, reason);
+            }
+
+            @Override
+            public void onClosedByServer(int code, String reason) {
+                client.close(code, reason);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                client.close();
+            }
+        }
     }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2017, Per Rovegård <per@rovegard.se>
+ *
+ * Distributed under the MIT License (license terms are at http://per.mit-license.org, or in the LICENSE file at
+ * https://github.com/provegard/tinyws/blob/master/LICENSE).
+ */
+
+package com.programmaticallyspeaking.tinyws;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Creates Unix domain socket channels, see {@link Server.Options#withUnixDomainSocket(Path)}. Unix domain socket
+ * channels require Java 16, so this is the version for older Java versions, which doesn't support them. The JAR is a
+ * multi-release JAR that contains the Java 16 version (src/main/java16) in META-INF/versions/16.
+ */
+final class UnixDomainSockets {
+    private UnixDomainSockets() {}
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ServerSocketChannel openServerChannel(Path path, int backlog) throws IOException {
+        throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later.");
+    }
+}
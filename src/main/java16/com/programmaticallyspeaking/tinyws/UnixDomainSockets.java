@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017, Per Rovegård <per@rovegard.se>
+ *
+ * Distributed under the MIT License (license terms are at http://per.mit-license.org, or in the LICENSE file at
+ * https://github.com/provegard/tinyws/blob/master/LICENSE).
+ */
+
+package com.programmaticallyspeaking.tinyws;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Creates Unix domain socket channels, see {@link Server.Options#withUnixDomainSocket(Path)}. This is the Java 16
+ * version, which replaces the version in src/main/java when running on Java 16 or later.
+ */
+final class UnixDomainSockets {
+    private UnixDomainSockets() {}
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ServerSocketChannel openServerChannel(Path path, int backlog) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(path), backlog);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+}
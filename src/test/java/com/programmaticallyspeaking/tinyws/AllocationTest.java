@@ -0,0 +1,271 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.BufferPool;
+import com.programmaticallyspeaking.tinyws.Server.Frame;
+import com.programmaticallyspeaking.tinyws.Server.FrameWriter;
+import com.programmaticallyspeaking.tinyws.Server.PayloadCoder;
+import com.programmaticallyspeaking.tinyws.Server.Utf8Text;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Guards the allocation budgets of the hot paths of echoing messages. Allocated bytes are measured per message using
+ * the per-thread allocation counter of {@link com.sun.management.ThreadMXBean}, after a warmup so that the JIT compiler
+ * has compiled the hot paths, and don't include the payload arrays that the API hands out. The budgets are the
+ * measured steady-state allocation with some headroom; a failing test means that a change added allocation to a hot
+ * path. If that is intended, record a new budget.
+ */
+public class AllocationTest {
+    private static final int Warmup = 20000;
+    private static final int Iterations = 20000;
+    private static final int PayloadSize = 100;
+
+    // Budgets in bytes per message (or frame), excluding payload arrays. Measured on Java 17 (64-bit, compressed
+    // oops), where a Frame and a Utf8Text are 32 bytes each and a ByteBuffer wrapper is 48 bytes.
+    private static final long FrameReadBudget = 48; // the frame
+    private static final long HandleBatchBudget = 48; // the merged frame, on top of reading the fragments
+    private static final long WriteFrameBudget = 0;
+    private static final long PayloadCoderBudget = 160; // encoding a String and sending on a received Utf8Text
+    // A payload array that is echoed is wrapped in a new buffer for writing, since the array isn't owned by the
+    // channel stream and must not be retained by it.
+    private static final long EchoTextBudget = 280;
+    private static final long EchoBinaryBudget = 192;
+    private static final long EchoFragmentedBudget = 608;
+    private static final long EchoPingBudget = 120;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private ExecutorService executor;
+    private Server server;
+    private int port;
+    private volatile Thread serverThread;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) ||
+                !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Per-thread allocation cannot be measured in this JVM.");
+        }
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        port = Benchmarks.freePort();
+        executor = Executors.newCachedThreadPool();
+        server = new Server(executor, Server.Options.withPort(port).andAddress(InetAddress.getLoopbackAddress())
+                .andLogger(Benchmarks.silentLogger()));
+        server.addHandlerFactory("/", () -> new EchoHandler() {
+            @Override
+            public void onOpened(Server.WebSocketClient client) {
+                // The handler is invoked on the thread that reads from the client.
+                serverThread = Thread.currentThread();
+                super.onOpened(client);
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public void teardown() {
+        if (server != null) server.stop();
+        if (executor != null) executor.shutdownNow();
+    }
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private long allocatedPerOperation(Operation op) throws Exception {
+        return allocatedPerOperation(Thread.currentThread(), op);
+    }
+
+    /**
+     * Returns the number of bytes that the given thread allocates per invocation of the operation, after a warmup.
+     * The smallest of a few rounds is used, to be robust against one-off allocations such as class loading.
+     */
+    private long allocatedPerOperation(Thread thread, Operation op) throws Exception {
+        for (int i = 0; i < Warmup; i++) op.run();
+        long min = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long before = threadBean.getThreadAllocatedBytes(thread.getId());
+            for (int i = 0; i < Iterations; i++) op.run();
+            min = Math.min(min, (threadBean.getThreadAllocatedBytes(thread.getId()) - before) / Iterations);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the size of a byte array on a 64-bit HotSpot JVM with compressed class pointers.
+     */
+    private static long arraySize(int length) {
+        return (16 + length + 7) & ~7;
+    }
+
+    private static byte[] maskedFrame(int firstByte, byte[] payload) {
+        // A zero mask leaves the payload as is.
+        byte[] frame = new byte[6 + payload.length];
+        frame[0] = (byte) firstByte;
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(payload, 0, frame, 6, payload.length);
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) out.write(array, 0, array.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+        return payload;
+    }
+
+    private static BufferPool pool() {
+        return new BufferPool(false, BufferPool.powerOfTwoClasses(256, 65536), 1 << 20, false,
+                new Server.BufferPoolMetrics(), null);
+    }
+
+    private static final OutputStream Discard = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    @Test
+    public void Frame_read_should_stay_within_its_budget() throws Exception {
+        BufferPool pool = pool();
+        byte[] buf = new byte[8];
+        ByteArrayInputStream in = new ByteArrayInputStream(maskedFrame(0x81, payload(PayloadSize)));
+        long bytes = allocatedPerOperation(() -> {
+            in.reset();
+            Frame.read(in, buf, pool).release(pool);
+        });
+        assertThat(bytes).isLessThanOrEqualTo(FrameReadBudget);
+    }
+
+    @Test
+    public void Merging_fragments_should_stay_within_the_handleBatch_budget() throws Exception {
+        // Mirrors the reading loop: each frame is added to the batch, and a complete message is taken from it.
+        BufferPool pool = pool();
+        byte[] buf = new byte[8];
+        byte[] fragment = payload(PayloadSize / 4);
+        ByteArrayInputStream in = new ByteArrayInputStream(concat(maskedFrame(0x01, fragment), maskedFrame(0x00, fragment),
+                maskedFrame(0x00, fragment), maskedFrame(0x80, fragment)));
+        List<Frame> frameBatch = new ArrayList<>();
+        long readBytes = allocatedPerOperation(() -> {
+            in.reset();
+            for (int i = 0; i < 4; i++) Frame.read(in, buf, pool).release(pool);
+        });
+        long bytes = allocatedPerOperation(() -> {
+            in.reset();
+            Frame result;
+            do {
+                frameBatch.add(Frame.read(in, buf, pool));
+                result = Frame.takeComplete(frameBatch, pool);
+            } while (result == null);
+            result.release(pool);
+        }) - readBytes;
+        assertThat(bytes).isLessThanOrEqualTo(HandleBatchBudget);
+    }
+
+    @Test
+    public void Writing_frames_should_stay_within_the_writeFrame_budget() throws Exception {
+        FrameWriter writer = new FrameWriter(Server.Transport.forStream(Discard), new PayloadCoder(), 0, pool());
+        byte[] data = payload(PayloadSize);
+        long bytes = allocatedPerOperation(() -> {
+            writer.writeBinary(data);
+            writer.writePong(data, 10);
+        });
+        assertThat(bytes).isLessThanOrEqualTo(WriteFrameBudget);
+    }
+
+    @Test
+    public void Encoding_and_decoding_text_should_stay_within_the_PayloadCoder_budget() throws Exception {
+        PayloadCoder coder = new PayloadCoder();
+        BufferPool pool = pool();
+        String text = new String(payload(PayloadSize), StandardCharsets.US_ASCII);
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        long bytes = allocatedPerOperation(() -> {
+            ByteBuffer encoded = coder.encode(text, pool);
+            PayloadCoder.release(text, encoded, pool);
+            Utf8Text received = Utf8Text.validate(utf8);
+            PayloadCoder.release(received, coder.encode(received, pool), pool);
+        });
+        assertThat(bytes).isLessThanOrEqualTo(PayloadCoderBudget);
+    }
+
+    /**
+     * Sends the given frames to the echo server over and over, and returns the number of bytes that the server thread
+     * allocates per round trip, minus the given payload arrays. Each round trip expects one echoed frame.
+     */
+    private long echoAllocation(byte[] frames, long payloadArrays) throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            serverThread = null;
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            Server.Headers.readResponse(in, new URI("ws://localhost/"));
+            Thread thread = serverThread;
+            assertThat(thread).isNotNull();
+
+            byte[] response = new byte[65536];
+            return allocatedPerOperation(thread, () -> {
+                out.write(frames);
+                in.readFully(response, 0, 2);
+                in.readFully(response, 0, response[1] & 127);
+            }) - payloadArrays;
+        }
+    }
+
+    @Test
+    public void Echoing_a_text_message_should_stay_within_its_budget() throws Exception {
+        long bytes = echoAllocation(maskedFrame(0x81, payload(PayloadSize)), arraySize(PayloadSize));
+        assertThat(bytes).isLessThanOrEqualTo(EchoTextBudget);
+    }
+
+    @Test
+    public void Echoing_a_binary_message_should_stay_within_its_budget() throws Exception {
+        long bytes = echoAllocation(maskedFrame(0x82, payload(PayloadSize)), arraySize(PayloadSize));
+        assertThat(bytes).isLessThanOrEqualTo(EchoBinaryBudget);
+    }
+
+    @Test
+    public void Echoing_a_fragmented_message_should_stay_within_its_budget() throws Exception {
+        byte[] fragment = payload(PayloadSize / 4);
+        byte[] frames = concat(maskedFrame(0x01, fragment), maskedFrame(0x00, fragment), maskedFrame(0x00, fragment),
+                maskedFrame(0x80, fragment));
+        long bytes = echoAllocation(frames, arraySize(PayloadSize));
+        assertThat(bytes).isLessThanOrEqualTo(EchoFragmentedBudget);
+    }
+
+    @Test
+    public void Answering_a_ping_should_stay_within_its_budget() throws Exception {
+        long bytes = echoAllocation(maskedFrame(0x89, payload(10)), 0);
+        assertThat(bytes).isLessThanOrEqualTo(EchoPingBudget);
+    }
+}
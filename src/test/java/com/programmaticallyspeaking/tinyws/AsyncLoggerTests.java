@@ -0,0 +1,97 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.AsyncLogger;
+import com.programmaticallyspeaking.tinyws.Server.LogLevel;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AsyncLoggerTests {
+
+    /**
+     * Records messages and the threads that logged them, optionally blocking on the first message.
+     */
+    static class RecordingLogger implements Server.Logger {
+        final List<String> messages = new CopyOnWriteArrayList<>();
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed;
+
+        RecordingLogger(boolean block) {
+            proceed = new CountDownLatch(block ? 1 : 0);
+        }
+
+        @Override
+        public void log(LogLevel level, String message, Throwable error) {
+            entered.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if ("fail".equals(message)) throw new IllegalStateException("logging failed");
+            messages.add(level + " " + message);
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public boolean isEnabledAt(LogLevel level) {
+            return level != LogLevel.TRACE;
+        }
+    }
+
+    @Test
+    public void Messages_should_be_logged_in_order_on_the_background_thread() {
+        RecordingLogger target = new RecordingLogger(false);
+        AsyncLogger logger = new AsyncLogger(target, 16);
+        for (int i = 0; i < 1000; i++) logger.log(LogLevel.INFO, "m" + i, null);
+        logger.close();
+        assertThat(target.messages).hasSize(1000 - (int) logger.droppedMessages());
+        assertThat(target.messages).startsWith("INFO m0");
+        assertThat(target.messages).isSortedAccordingTo((a, b) -> Integer.compare(Integer.parseInt(a.substring(6)), Integer.parseInt(b.substring(6))));
+        assertThat(target.threads).doesNotContain(Thread.currentThread());
+    }
+
+    @Test
+    public void A_full_buffer_should_drop_messages_instead_of_blocking() throws Exception {
+        RecordingLogger target = new RecordingLogger(true);
+        AsyncLogger logger = new AsyncLogger(target, 4);
+        logger.log(LogLevel.INFO, "first", null);
+        assertThat(target.entered.await(2, TimeUnit.SECONDS)).isTrue();
+        // The first message has been taken from the buffer, so four more fit.
+        for (int i = 0; i < 10; i++) logger.log(LogLevel.INFO, "m" + i, null);
+        assertThat(logger.droppedMessages()).isEqualTo(6);
+        target.proceed.countDown();
+        logger.close();
+        assertThat(target.messages).containsExactly("INFO first", "INFO m0", "INFO m1", "INFO m2", "INFO m3");
+    }
+
+    @Test
+    public void A_failing_target_should_not_stop_logging() {
+        RecordingLogger target = new RecordingLogger(false);
+        AsyncLogger logger = new AsyncLogger(target, 16);
+        logger.log(LogLevel.INFO, "fail", null);
+        logger.log(LogLevel.INFO, "after", null);
+        logger.close();
+        assertThat(target.messages).containsExactly("INFO after");
+    }
+
+    @Test
+    public void Enabled_levels_should_be_those_of_the_target() {
+        AsyncLogger logger = new AsyncLogger(new RecordingLogger(false), 16);
+        assertThat(logger.isEnabledAt(LogLevel.DEBUG)).isTrue();
+        assertThat(logger.isEnabledAt(LogLevel.TRACE)).isFalse();
+        logger.close();
+    }
+
+    @Test
+    public void The_capacity_should_be_a_power_of_two() {
+        assertThatThrownBy(() -> new AsyncLogger(new RecordingLogger(false), 12)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,32 @@
+package com.programmaticallyspeaking.tinyws;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * Helpers for the benchmarks (classes named *Benchmark, with a main method) in the test sources.
+ */
+class Benchmarks {
+
+    private Benchmarks() {}
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns a logger that ignores everything, e.g. errors caused by clients disconnecting abruptly when a benchmark
+     * is done.
+     */
+    static Server.Logger silentLogger() {
+        return new Server.Logger() {
+            public void log(Server.LogLevel level, String message, Throwable error) {}
+
+            public boolean isEnabledAt(Server.LogLevel level) {
+                return false;
+            }
+        };
+    }
+}
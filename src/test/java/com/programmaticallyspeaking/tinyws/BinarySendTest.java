@@ -0,0 +1,142 @@
+package com.programmaticallyspeaking.tinyws;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BinarySendTest extends ClientTestBase {
+
+    private final byte[] content = new byte[3000];
+    private Path file;
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andMaxFrameSize(1000);
+    }
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        new Random(42).nextBytes(content);
+        try {
+            file = Files.createTempFile("tinyws", ".bin");
+            Files.write(file, content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @AfterClass
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    protected Server.WebSocketHandler createHandler() {
+        return new EchoHandler() {
+            private Server.WebSocketClient client;
+
+            @Override
+            public void onOpened(Server.WebSocketClient client) {
+                this.client = client;
+            }
+
+            @Override
+            public void onTextMessage(CharSequence text) {
+                try {
+                    if ("file".contentEquals(text)) {
+                        try (FileChannel channel = FileChannel.open(file)) {
+                            client.sendBinaryData(channel, 100, 2500);
+                        }
+                    } else if ("buffer".contentEquals(text)) {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+                        buffer.put(content).flip();
+                        buffer.position(100);
+                        client.sendBinaryData(buffer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new IOException("Unexpected end of stream");
+        return b;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setSoTimeout(2000);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        InputStream in = socket.getInputStream();
+        // Skip the response headers
+        for (int matched = 0; matched < 4; ) matched = readByte(in) == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : 0;
+        return socket;
+    }
+
+    // Sends a masked text frame with an all-zero mask
+    private void sendText(Socket socket, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[6 + payload.length];
+        frame[0] = (byte) 0x81;
+        frame[1] = (byte) (128 | payload.length);
+        System.arraycopy(payload, 0, frame, 6, payload.length);
+        socket.getOutputStream().write(frame);
+    }
+
+    // Reads frames until one with FIN set. Returns the payload lengths of the frames, and puts the payloads in data.
+    private List<Integer> readMessage(InputStream in, ByteArrayOutputStream data) throws IOException {
+        List<Integer> lengths = new ArrayList<>();
+        boolean isFinal = false;
+        while (!isFinal) {
+            int b0 = readByte(in), b1 = readByte(in);
+            isFinal = (b0 & 128) != 0;
+            int len = b1 == 126 ? (readByte(in) << 8) | readByte(in) : b1;
+            for (int i = 0; i < len; i++) data.write(readByte(in));
+            lengths.add(len);
+        }
+        return lengths;
+    }
+
+    @Test
+    public void A_file_region_should_be_sent_in_fragments() throws Exception {
+        try (Socket socket = connect()) {
+            sendText(socket, "file");
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            assertThat(readMessage(socket.getInputStream(), data)).containsExactly(1000, 1000, 500);
+            assertThat(data.toByteArray()).isEqualTo(Arrays.copyOfRange(content, 100, 2600));
+        }
+    }
+
+    @Test
+    public void A_direct_buffer_should_be_sent_in_fragments() throws Exception {
+        try (Socket socket = connect()) {
+            sendText(socket, "buffer");
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            assertThat(readMessage(socket.getInputStream(), data)).containsExactly(1000, 1000, 900);
+            assertThat(data.toByteArray()).isEqualTo(Arrays.copyOfRange(content, 100, 3000));
+        }
+    }
+}
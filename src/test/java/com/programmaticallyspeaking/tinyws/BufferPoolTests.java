@@ -0,0 +1,156 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.BufferPool;
+import com.programmaticallyspeaking.tinyws.Server.BufferPoolMetrics;
+import com.programmaticallyspeaking.tinyws.Server.LogLevel;
+import com.programmaticallyspeaking.tinyws.Server.Logger;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class BufferPoolTests {
+
+    private final int[] classes = BufferPool.powerOfTwoClasses(256, 1024);
+
+    private BufferPool pool(long capacity, BufferPoolMetrics metrics) {
+        return new BufferPool(false, classes, capacity, false, metrics, null);
+    }
+
+    private static ByteBuffer inOtherThread(java.util.function.Supplier<ByteBuffer> fun) throws InterruptedException {
+        AtomicReference<ByteBuffer> result = new AtomicReference<>();
+        Thread t = new Thread(() -> result.set(fun.get()));
+        t.start();
+        t.join();
+        return result.get();
+    }
+
+    @Test
+    public void Power_of_two_classes_should_include_both_ends() {
+        assertThat(classes).containsExactly(256, 512, 1024);
+    }
+
+    @Test
+    public void A_buffer_should_come_from_the_smallest_class_that_fits() {
+        BufferPool pool = pool(65536, new BufferPoolMetrics());
+        assertThat(pool.acquire(257).capacity()).isEqualTo(512);
+    }
+
+    @Test
+    public void A_released_buffer_should_be_reused() {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        BufferPool pool = pool(65536, metrics);
+        ByteBuffer buf = pool.acquire(300);
+        buf.put((byte) 1);
+        pool.release(buf);
+        ByteBuffer again = pool.acquire(400);
+        assertThat(again).isSameAs(buf);
+        assertThat(again.position()).isEqualTo(0);
+        assertThat(metrics.hitRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void A_released_buffer_should_be_reusable_by_another_thread() throws InterruptedException {
+        BufferPool pool = pool(65536, new BufferPoolMetrics());
+        ByteBuffer first = pool.acquire(256);
+        ByteBuffer second = pool.acquire(256);
+        pool.release(first); // thread cache
+        pool.release(second); // shared
+        assertThat(inOtherThread(() -> pool.acquire(256))).isSameAs(second);
+    }
+
+    @Test
+    public void Occupancy_should_be_tracked() {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        BufferPool pool = pool(65536, metrics);
+        ByteBuffer buf = pool.acquire(1000);
+        assertThat(metrics.outstandingBuffers()).isEqualTo(1);
+        pool.release(buf);
+        assertThat(metrics.outstandingBuffers()).isEqualTo(0);
+        assertThat(metrics.pooledBytes()).isEqualTo(1024);
+    }
+
+    @Test
+    public void The_pool_should_not_keep_more_than_its_capacity() {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        BufferPool pool = pool(256, metrics);
+        ByteBuffer first = pool.acquire(256);
+        ByteBuffer second = pool.acquire(256);
+        pool.release(first);
+        pool.release(second);
+        assertThat(metrics.pooledBytes()).isEqualTo(256);
+    }
+
+    @Test
+    public void An_oversized_buffer_should_not_be_pooled() {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        BufferPool pool = pool(65536, metrics);
+        ByteBuffer buf = pool.acquire(2000);
+        assertThat(buf.capacity()).isEqualTo(2000);
+        pool.release(buf);
+        assertThat(metrics.pooledBytes()).isEqualTo(0);
+        assertThat(metrics.oversizedAllocations()).isEqualTo(1);
+    }
+
+    @Test
+    public void A_buffer_cached_by_a_dead_thread_should_be_reclaimed() throws InterruptedException {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        BufferPool pool = pool(256, metrics);
+        ByteBuffer cached = inOtherThread(() -> {
+            ByteBuffer buf = pool.acquire(256);
+            pool.release(buf);
+            return buf;
+        });
+        // The pool is full, so releasing another buffer triggers reclaiming.
+        pool.release(ByteBuffer.allocate(256));
+        assertThat(pool.acquire(256)).isSameAs(cached);
+    }
+
+    @Test
+    public void A_double_release_should_be_detected_with_leak_tracking() {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        Logger logger = mock(Logger.class);
+        BufferPool pool = new BufferPool(false, classes, 65536, true, metrics, logger);
+        ByteBuffer buf = pool.acquire(256);
+        pool.release(buf);
+        pool.release(buf);
+        assertThat(metrics.pooledBytes()).isEqualTo(256);
+        verify(logger).log(eq(LogLevel.WARN), anyString(), any(Throwable.class));
+    }
+
+    @Test
+    public void A_leaked_buffer_should_be_reported_with_its_acquisition_site() throws InterruptedException {
+        BufferPoolMetrics metrics = new BufferPoolMetrics();
+        Logger logger = mock(Logger.class);
+        BufferPool pool = new BufferPool(false, classes, 65536, true, metrics, logger);
+        pool.acquire(256);
+        for (int i = 0; i < 50 && metrics.leaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.release(pool.acquire(512)); // reports collected buffers
+        }
+        assertThat(metrics.leaks()).isEqualTo(1);
+        assertThat(metrics.outstandingBuffers()).isEqualTo(0);
+        verify(logger).log(eq(LogLevel.WARN), contains("256 bytes"),
+                argThat(t -> Arrays.stream(t.getStackTrace()).anyMatch(e -> e.getMethodName().contains("leaked_buffer"))));
+    }
+
+    @Test
+    public void Text_encoded_into_a_pooled_buffer_should_be_UTF8() throws Exception {
+        BufferPool pool = pool(65536, new BufferPoolMetrics());
+        String text = "hello åäö 😀";
+        ByteBuffer buf = new Server.PayloadCoder().encode(text, pool);
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        assertThat(bytes).isEqualTo(text.getBytes(StandardCharsets.UTF_8));
+        assertThat(Server.PayloadCoder.utf8Length(text)).isEqualTo(bytes.length);
+    }
+}
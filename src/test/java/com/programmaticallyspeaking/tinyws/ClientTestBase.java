@@ -57,6 +57,10 @@ public abstract class ClientTestBase {
 
     protected void onBeforeStart(Server server) {}
 
+    protected Server server() {
+        return server;
+    }
+
     private void attemptToStartServer() throws Exception {
         int attempts = 20;
         while (attempts-- > 0) {
@@ -0,0 +1,151 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.SlowConsumerPolicy;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a price feed with 5000 symbols that publishes ticks to slow readers, and compares keyed (conflated) sends
+ * with unkeyed sends under different slow-consumer policies. Reports the publish rate, the number of messages each
+ * reader got, and the average age of a message when it was read. Run the main method, e.g. using
+ * "gradle benchmark -Pbenchmark=ConflationBenchmark". Optional arguments are the number of readers (default 8) and
+ * the number of messages a reader reads per millisecond (default 2).
+ */
+public class ConflationBenchmark {
+    private static final int Symbols = 5000;
+    private static final long DurationMillis = 5000;
+    private static final long Budget = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        int readerCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int readsPerMilli = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        run(null, true, SlowConsumerPolicy.DROP_NEWEST, readerCount, readsPerMilli); // warmup
+        run("keyed, DROP_NEWEST", true, SlowConsumerPolicy.DROP_NEWEST, readerCount, readsPerMilli);
+        run("unkeyed, DROP_OLDEST", false, SlowConsumerPolicy.DROP_OLDEST, readerCount, readsPerMilli);
+        run("unkeyed, BLOCK", false, SlowConsumerPolicy.BLOCK, readerCount, readsPerMilli);
+    }
+
+    private static void run(String name, boolean keyed, SlowConsumerPolicy policy, int readerCount, int readsPerMilli) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        int port = Benchmarks.freePort();
+        Server server = new Server(executor, Server.Options.withPort(port)
+                .andLogger(Benchmarks.silentLogger())
+                .andAddress(InetAddress.getLoopbackAddress()));
+        List<Server.WebSocketClient> clients = new CopyOnWriteArrayList<>();
+        server.addHandlerFactory("/", () -> new EchoHandler() {
+            @Override
+            public void onOpened(Server.WebSocketClient client) {
+                clients.add(client);
+            }
+        }, policy, Budget);
+        server.start();
+        Reader[] readers = new Reader[readerCount];
+        try {
+            for (int i = 0; i < readerCount; i++) {
+                readers[i] = new Reader(port, readsPerMilli);
+                executor.execute(readers[i]);
+            }
+            while (clients.size() < readerCount) Thread.sleep(10);
+
+            // Publish ticks for random symbols. The message contains the time at which it was published.
+            Random random = new Random(42);
+            String[] symbols = new String[Symbols];
+            for (int i = 0; i < Symbols; i++) symbols[i] = String.format("SYM%04d", i);
+            long ticks = 0;
+            long start = System.nanoTime();
+            long end = start + TimeUnit.MILLISECONDS.toNanos(DurationMillis);
+            StringBuilder message = new StringBuilder();
+            while (System.nanoTime() < end) {
+                String symbol = symbols[random.nextInt(Symbols)];
+                message.setLength(0);
+                message.append(symbol).append(' ').append(System.nanoTime());
+                for (Server.WebSocketClient client : clients) {
+                    if (keyed) client.sendTextMessage(symbol, message);
+                    else client.sendTextMessage(message);
+                }
+                ticks++;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            for (Reader reader : readers) reader.stop();
+
+            long messages = 0, ageNanos = 0;
+            for (Reader reader : readers) {
+                messages += reader.messages;
+                ageNanos += reader.ageNanos;
+            }
+            if (name == null) return;
+            Server.Metrics metrics = server.metrics();
+            System.out.printf("%-21s: %9.0f ticks/s, %9.0f messages/s per reader, average age %8.1f ms, " +
+                            "%d conflated, %d dropped%n", name, ticks / seconds, messages / seconds / readerCount,
+                    messages > 0 ? ageNanos / 1e6 / messages : 0.0, metrics.conflatedMessages(),
+                    metrics.droppedNewestMessages() + metrics.droppedOldestMessages());
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A client that reads text messages at a limited rate, and sums up their ages.
+     */
+    private static class Reader implements Runnable {
+        private final Socket socket;
+        private final int readsPerMilli;
+        private volatile boolean isStopped;
+        volatile long messages;
+        volatile long ageNanos;
+
+        Reader(int port, int readsPerMilli) throws IOException {
+            this.readsPerMilli = readsPerMilli;
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setReceiveBufferSize(65536);
+            socket.getOutputStream().write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void stop() throws IOException {
+            isStopped = true;
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                for (int matched = 0; matched < 4; ) matched = readByte(in) == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : 0;
+                byte[] payload = new byte[125];
+                long count = 0, age = 0;
+                while (!isStopped) {
+                    readByte(in);
+                    int len = readByte(in);
+                    for (int i = 0; i < len; i++) payload[i] = (byte) readByte(in);
+                    String text = new String(payload, 0, len, StandardCharsets.US_ASCII);
+                    age += System.nanoTime() - Long.parseLong(text.substring(text.indexOf(' ') + 1));
+                    messages = ++count;
+                    ageNanos = age;
+                    if (count % readsPerMilli == 0) Thread.sleep(1);
+                }
+            } catch (IOException | InterruptedException e) {
+                // stopped
+            }
+        }
+
+        private static int readByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b < 0) throw new IOException("Unexpected end of stream");
+            return b;
+        }
+    }
+}
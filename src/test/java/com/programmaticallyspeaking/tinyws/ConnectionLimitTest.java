@@ -0,0 +1,85 @@
+package com.programmaticallyspeaking.tinyws;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConnectionLimitTest extends ClientTestBase {
+
+    private URI createURI() throws URISyntaxException {
+        return new URI("ws://" + host + ":" + port);
+    }
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andMaxConnectionsPerAddress(2).andMaxConnectionsPerEndpoint(1);
+    }
+
+    private String readAll(InputStream in) throws IOException {
+        byte[] buf = new byte[1024];
+        int offs = 0, len;
+        while ((len = in.read(buf, offs, buf.length - offs)) > 0) offs += len;
+        return new String(buf, 0, offs, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void Connection_exceeding_the_per_address_limit_should_get_503_without_sending_a_request() throws Exception {
+        // A connection from a previous test may not have been released yet, so the rejected socket may be the
+        // 2nd one or the 3rd one.
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Socket socket = new Socket(host, port);
+                sockets.add(socket);
+                socket.setSoTimeout(500);
+                try {
+                    assertThat(readAll(socket.getInputStream())).startsWith("HTTP/1.1 503");
+                    assertThat(i).isGreaterThan(0);
+                    return;
+                } catch (SocketTimeoutException ex) {
+                    // admitted, the server waits for a request
+                }
+            }
+            throw new AssertionError("No connection was rejected.");
+        } finally {
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+
+    @Test
+    public void Connection_exceeding_the_per_endpoint_limit_should_be_rejected_before_creating_a_handler() throws Exception {
+        SimpleClient first = new SimpleClient(createURI());
+        try {
+            SimpleClient second = new SimpleClient(createURI(), false);
+            assertThat(second.connectBlocking()).isFalse();
+            assertThat(createdHandlers).hasSize(1);
+        } finally {
+            first.closeBlocking();
+        }
+    }
+
+    @Test(dependsOnMethods = "Connection_exceeding_the_per_endpoint_limit_should_be_rejected_before_creating_a_handler")
+    public void Closed_connection_should_not_count_against_the_limit() throws Exception {
+        // The server releases the connection asynchronously, so allow for some retries.
+        int attempts = 50;
+        while (true) {
+            SimpleClient client = new SimpleClient(createURI(), false);
+            if (client.connectBlocking()) {
+                client.closeBlocking();
+                return;
+            }
+            if (--attempts == 0) throw new AssertionError("Failed to connect after closing the previous connection.");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.programmaticallyspeaking.tinyws;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uses a {@link Server.Connector} as a load generator: opens many connections to an echo server, and then lets each
+ * connection send messages one at a time, sending the next message when the previous one has been echoed. Reports
+ * the connection rate and the message throughput. Run the main method, e.g. using
+ * "gradle benchmark -Pbenchmark=ConnectorBenchmark". Optional arguments are the number of connections (default
+ * 2000), the number of messages per connection (default 100) and "ssl" to use SSL.
+ */
+public class ConnectorBenchmark {
+    private static final int ConnectThreads = 16;
+
+    public static void main(String[] args) throws Exception {
+        int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        boolean ssl = args.length > 2 && "ssl".equals(args[2]);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService connectExecutor = Executors.newFixedThreadPool(ConnectThreads);
+        int port = Benchmarks.freePort();
+        Server.Options options = Server.Options.withPort(port)
+                .andLogger(Benchmarks.silentLogger())
+                .andAddress(InetAddress.getLoopbackAddress())
+                .andBacklog(connectionCount);
+        if (ssl) options.andSSL(SSLTesting.createSSLContextForTests(true));
+        Server server = new Server(executor, options);
+        server.addHandlerFactory("/", EchoHandler::new);
+        server.start();
+        Server.Options connectorOptions = Server.Options.forConnector().andLogger(Benchmarks.silentLogger());
+        if (ssl) connectorOptions.andSSL(SSLTesting.createSSLContextForTests(false));
+        Server.Connector connector = new Server.Connector(executor, connectorOptions);
+        URI uri = new URI((ssl ? "wss" : "ws") + "://localhost:" + port + "/");
+        try {
+            CountDownLatch done = new CountDownLatch(connectionCount);
+            List<PingPongHandler> handlers = new ArrayList<>();
+            List<Future<Server.WebSocketClient>> connections = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < connectionCount; i++) {
+                PingPongHandler handler = new PingPongHandler(messageCount, done);
+                handlers.add(handler);
+                connections.add(connectExecutor.submit(() -> connector.connect(uri, handler)));
+            }
+            for (Future<Server.WebSocketClient> connection : connections) connection.get();
+            double connectSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d connections in %.2f s, %.0f connections/s%n", connectionCount, connectSeconds,
+                    connectionCount / connectSeconds);
+
+            start = System.nanoTime();
+            for (PingPongHandler handler : handlers) handler.sendNext();
+            if (!done.await(5, TimeUnit.MINUTES)) throw new IllegalStateException("Timed out");
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d messages echoed in %.2f s, %.0f messages/s%n", (long) connectionCount * messageCount,
+                    seconds, connectionCount * (double) messageCount / seconds);
+
+            for (PingPongHandler handler : handlers) handler.client.close();
+        } finally {
+            server.stop();
+            connectExecutor.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends a message each time the previous one has been echoed.
+     */
+    private static class PingPongHandler extends EchoHandler {
+        private final int messageCount;
+        private final CountDownLatch done;
+        private volatile Server.WebSocketClient client;
+        private int sent;
+
+        PingPongHandler(int messageCount, CountDownLatch done) {
+            this.messageCount = messageCount;
+            this.done = done;
+        }
+
+        @Override
+        public void onOpened(Server.WebSocketClient client) {
+            this.client = client;
+        }
+
+        void sendNext() {
+            try {
+                client.sendTextMessage("message " + sent++);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void onTextMessage(CharSequence text) {
+            if (sent < messageCount) sendNext();
+            else done.countDown();
+        }
+    }
+}
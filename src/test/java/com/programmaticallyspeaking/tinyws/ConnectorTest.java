@@ -0,0 +1,263 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class ConnectorTest extends ClientTestBase {
+
+    private ExecutorService executor;
+    private Server.Connector connector;
+    private volatile NonReadingClient.Flooder flooder;
+
+    @BeforeClass
+    public void createConnector() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        connector = new Server.Connector(executor, configureConnector(Server.Options.forConnector().andMaxFrameSize(1000)));
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    protected Server.Options configureConnector(Server.Options options) throws Exception {
+        return options;
+    }
+
+    protected String scheme() {
+        return "ws";
+    }
+
+    /**
+     * Echoes messages, and closes the connection when the client sends "close".
+     */
+    static class ClosingEchoHandler extends EchoHandler {
+        private Server.WebSocketClient client;
+
+        @Override
+        public void onOpened(Server.WebSocketClient client) {
+            super.onOpened(client);
+            this.client = client;
+        }
+
+        @Override
+        public void onTextMessage(CharSequence text) {
+            String s = text.toString();
+            if (s.equals("close")) client.close();
+            else if (s.startsWith("close ")) client.close(Integer.parseInt(s.substring(6)), "Closed by handler");
+            else super.onTextMessage(text);
+        }
+    }
+
+    @Override
+    protected WebSocketHandler createHandler() {
+        return spy(new ClosingEchoHandler());
+    }
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        server.addHandlerFactory("/slow", () -> flooder = new NonReadingClient.Flooder(),
+                Server.SlowConsumerPolicy.CLOSE_TRY_AGAIN_LATER, 100000);
+    }
+
+    /**
+     * Collects what the server sends.
+     */
+    static class CollectingHandler implements WebSocketHandler {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        final CountDownLatch closedByServer = new CountDownLatch(1);
+        volatile Server.WebSocketClient client;
+        volatile int closeCode;
+        volatile String closeReason;
+
+        @Override
+        public void onOpened(Server.WebSocketClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public void onClosedByClient(int code, String reason) {}
+
+        @Override
+        public void onClosedByServer(int code, String reason) {
+            closeCode = code;
+            closeReason = reason;
+            closedByServer.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            received.add(t);
+        }
+
+        @Override
+        public void onTextMessage(CharSequence text) {
+            received.add(text.toString());
+        }
+
+        @Override
+        public void onBinaryData(byte[] data) {
+            received.add(data);
+        }
+    }
+
+    private Server.WebSocketClient connect(CollectingHandler handler) throws Exception {
+        createdHandlers.clear();
+        return connector.connect(new URI(scheme() + "://" + host + ":" + port + "/"), handler);
+    }
+
+    private WebSocketHandler serverHandler() throws InterruptedException {
+        for (int i = 0; i < 100 && createdHandlers.isEmpty(); i++) Thread.sleep(10);
+        return createdHandlers.peek();
+    }
+
+    @Test
+    public void A_text_message_should_be_echoed() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect(handler);
+        assertThat(handler.client).isSameAs(client);
+        client.sendTextMessage("hello");
+        assertThat(handler.received.poll(2, TimeUnit.SECONDS)).isEqualTo("hello");
+        client.close();
+    }
+
+    @Test
+    public void A_fragmented_binary_message_should_be_echoed() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(42).nextBytes(data);
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect(handler);
+        client.sendBinaryData(data);
+        assertThat((byte[]) handler.received.poll(2, TimeUnit.SECONDS)).isEqualTo(data);
+        client.close();
+    }
+
+    @Test
+    public void Closing_the_connection_should_send_a_normal_close_frame() throws Exception {
+        Server.WebSocketClient client = connect(new CollectingHandler());
+        client.close();
+        verify(serverHandler(), timeout(2000)).onClosedByClient(1000, "Normal Closure");
+    }
+
+    @Test
+    public void Closing_the_connection_with_a_code_should_send_that_code_and_reason() throws Exception {
+        Server.WebSocketClient client = connect(new CollectingHandler());
+        client.close(4001, "Done");
+        verify(serverHandler(), timeout(2000)).onClosedByClient(4001, "Done");
+    }
+
+    @Test
+    public void Closing_the_connection_with_a_reserved_code_should_be_rejected() throws Exception {
+        Server.WebSocketClient client = connect(new CollectingHandler());
+        try {
+            assertThatThrownBy(() -> client.close(1005, null)).isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void A_close_from_the_server_should_invoke_the_handler() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect(handler);
+        client.sendTextMessage("close");
+        assertThat(handler.closedByServer.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.closeCode).isEqualTo(1001);
+        assertThat(handler.received).isEmpty();
+    }
+
+    @Test
+    public void A_slow_consumer_close_from_the_server_should_invoke_the_handler() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connector.connect(new URI(scheme() + "://" + host + ":" + port + "/slow"), handler);
+        // Fall behind until the server closes the connection, then read the messages and the close frame that
+        // follows them.
+        client.pauseReading();
+        assertThat(flooder.sendFailed.await(5, TimeUnit.SECONDS)).isTrue();
+        client.resumeReading();
+        assertThat(handler.closedByServer.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.closeCode).isEqualTo(1013);
+    }
+
+    @Test
+    public void A_refused_upgrade_should_fail_the_connect() {
+        assertThatThrownBy(() -> connector.connect(new URI(scheme() + "://" + host + ":" + port + "/unknown"), new CollectingHandler()))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("404");
+    }
+
+    @Test
+    public void A_server_that_never_responds_should_fail_the_connect_within_the_timeout() throws Exception {
+        // The connection is accepted by the operating system (backlog), but nothing is ever read or written.
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            URI uri = new URI(scheme() + "://" + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort() + "/");
+            Server.Connector timingOutConnector = new Server.Connector(executor,
+                    configureConnector(Server.Options.forConnector().andConnectTimeout(200)));
+            long start = System.nanoTime();
+            assertThatThrownBy(() -> timingOutConnector.connect(uri, new CollectingHandler()))
+                    .isInstanceOf(SocketTimeoutException.class);
+            assertThat((System.nanoTime() - start) / 1000000).isLessThan(2000);
+        }
+    }
+
+    @Test
+    public void Frames_sent_to_the_server_should_be_masked() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            ExecutorService fakeServer = Executors.newSingleThreadExecutor();
+            try {
+                Future<byte[]> frame = fakeServer.submit(() -> {
+                    try (Socket socket = serverSocket.accept()) {
+                        InputStream in = socket.getInputStream();
+                        Server.Headers headers = Server.Headers.read(in, false);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                                "Sec-WebSocket-Accept: " + Server.createResponseKey(headers.key()) + "\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                        byte[] buf = new byte[2 + 4 + 5];
+                        for (int count = 0; count < buf.length; ) count += in.read(buf, count, buf.length - count);
+                        return buf;
+                    }
+                });
+                URI uri = new URI("ws://" + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort() + "/");
+                Server.Connector plainConnector = new Server.Connector(executor, Server.Options.forConnector());
+                Server.WebSocketClient client = plainConnector.connect(uri, new CollectingHandler());
+                client.sendTextMessage("hello");
+                byte[] buf = frame.get(2, TimeUnit.SECONDS);
+                assertThat(buf[0]).isEqualTo((byte) 0x81);
+                assertThat(buf[1]).isEqualTo((byte) (0x80 | 5));
+                byte[] payload = Server.unmaskIfNeededInPlace(Arrays.copyOfRange(buf, 6, 11), Arrays.copyOfRange(buf, 2, 6));
+                assertThat(new String(payload, StandardCharsets.UTF_8)).isEqualTo("hello");
+            } finally {
+                fakeServer.shutdownNow();
+            }
+        }
+    }
+}
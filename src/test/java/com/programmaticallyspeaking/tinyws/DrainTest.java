@@ -0,0 +1,106 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class DrainTest extends ClientTestBase {
+
+    private final List<SimpleClient> clients = new ArrayList<>();
+    private final List<WebSocketHandler> handlers = new ArrayList<>();
+    private boolean drained;
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andDrainBatchSize(1);
+    }
+
+    @Override
+    protected WebSocketHandler createHandler() {
+        WebSocketHandler handler = super.createHandler();
+        handlers.add(handler);
+        return handler;
+    }
+
+    @BeforeClass(dependsOnMethods = "startServer")
+    public void Connect_and_drain() throws Exception {
+        URI uri = new URI("ws://" + host + ":" + port);
+        for (int i = 0; i < 3; i++) clients.add(new SimpleClient(uri));
+        drained = server().stopGracefully(Duration.ofMillis(800));
+    }
+
+    @Test
+    public void All_clients_should_be_drained_before_the_timeout() {
+        assertThat(drained).isTrue();
+    }
+
+    @Test
+    public void Clients_should_be_closed_with_Going_Away() {
+        assertThat(clients).extracting(c -> c.closeCode).containsOnly(1001);
+    }
+
+    @Test
+    public void Batches_should_be_paced_across_the_timeout() {
+        // Three batches of one client each, 200 ms apart.
+        long first = clients.stream().mapToLong(c -> c.closedAt).min().getAsLong();
+        long last = clients.stream().mapToLong(c -> c.closedAt).max().getAsLong();
+        assertThat((last - first) / 1000000).isGreaterThanOrEqualTo(300);
+    }
+
+    @Test
+    public void Handlers_should_be_told_that_the_server_closed_the_connection() {
+        assertThat(handlers).hasSize(3);
+        for (WebSocketHandler handler : handlers) {
+            verify(handler).onClosedByServer(1001, "Going Away");
+            verify(handler, never()).onClosedByClient(anyInt(), any());
+        }
+    }
+
+    @Test
+    public void A_connection_that_waits_for_an_executor_thread_should_be_drained() throws Exception {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        List<Runnable> held = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean isAccepting = new AtomicBoolean();
+        // Runs the accept loop, but holds all other tasks, as if all threads were busy.
+        Executor busy = task -> {
+            if (isAccepting.compareAndSet(false, true)) threads.execute(task);
+            else held.add(task);
+        };
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int port = Benchmarks.freePort();
+        Server server = new Server(busy, Server.Options.withPort(port).andAddress(address).andLogger(Benchmarks.silentLogger()));
+        server.addHandlerFactory("/", () -> mock(WebSocketHandler.class));
+        server.start();
+        try (Socket socket = new Socket(address, port)) {
+            for (int i = 0; i < 100 && held.isEmpty(); i++) Thread.sleep(10);
+            assertThat(held).hasSize(1);
+            // The connection counts as live, and is closed forcibly when the timeout expires.
+            assertThat(server.stopGracefully(Duration.ofMillis(200))).isFalse();
+            socket.setSoTimeout(1000);
+            assertThat(socket.getInputStream().read()).isEqualTo(-1);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void Draining_should_not_exceed_the_timeout_for_a_client_that_doesnt_read() throws Exception {
+        long millis = NonReadingClient.drainWhileBlocked(null, null, Duration.ofSeconds(1));
+        assertThat(millis).isLessThan(2000);
+    }
+}
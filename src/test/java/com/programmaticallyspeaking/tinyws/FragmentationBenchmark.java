@@ -0,0 +1,138 @@
+package com.programmaticallyspeaking.tinyws;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Compares fixed frame sizes with TLS record aligned frames, when sending a large binary message over SSL. Reports
+ * the time until the client has received the first complete frame, and the time until the whole message has been
+ * received. Run the main method, e.g. using "gradle benchmark -Pbenchmark=FragmentationBenchmark". An optional
+ * argument specifies the message size in bytes (default 10 MB).
+ */
+public class FragmentationBenchmark {
+    private static final int Warmup = 5;
+    private static final int Iterations = 20;
+    // A masked text frame containing "go", with an all-zero mask
+    private static final byte[] Go = { (byte) 0x81, (byte) 0x82, 0, 0, 0, 0, 'g', 'o' };
+    // A masked close frame without payload
+    private static final byte[] Close = { (byte) 0x88, (byte) 0x80, 0, 0, 0, 0 };
+
+    public static void main(String[] args) throws Exception {
+        int messageSize = args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1024 * 1024;
+        byte[] message = new byte[messageSize];
+
+        run("no fragmentation", message, o -> o);
+        run("fixed 4096", message, o -> o.andMaxFrameSize(4096));
+        run("fixed 16384", message, o -> o.andMaxFrameSize(16384));
+        run("fixed 65536", message, o -> o.andMaxFrameSize(65536));
+        run("record aligned", message, o -> o.andRecordAlignedFrames(true));
+    }
+
+    private static void run(String name, byte[] message, Function<Server.Options, Server.Options> configure) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        int port = Benchmarks.freePort();
+        Server server = new Server(executor, configure.apply(Server.Options.withPort(port)
+                .andLogger(Benchmarks.silentLogger())
+                .andAddress(InetAddress.getLoopbackAddress())
+                .andSSL(SSLTesting.createSSLContextForTests(true))));
+        server.addHandlerFactory("/", () -> new EchoHandler() {
+            private Server.WebSocketClient client;
+
+            @Override
+            public void onOpened(Server.WebSocketClient client) {
+                this.client = client;
+            }
+
+            @Override
+            public void onTextMessage(CharSequence text) {
+                try {
+                    client.sendBinaryData(message);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        server.start();
+        SSLSocketFactory factory = SSLTesting.createSSLContextForTests(false).getSocketFactory();
+        try (SSLSocket socket = (SSLSocket) factory.createSocket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            skipResponse(in);
+
+            for (int i = 0; i < Warmup; i++) receiveMessage(in, out);
+            long firstFrameNanos = 0, totalNanos = 0;
+            int frames = 0;
+            for (int i = 0; i < Iterations; i++) {
+                long[] result = receiveMessage(in, out);
+                firstFrameNanos += result[0];
+                totalNanos += result[1];
+                frames = (int) result[2];
+            }
+            System.out.printf("%-17s: %5d frame(s), first frame after %7.2f ms, message after %7.2f ms%n", name, frames,
+                    firstFrameNanos / 1e6 / Iterations, totalNanos / 1e6 / Iterations);
+
+            out.write(Close);
+            out.flush();
+            while (in.read(new byte[16]) >= 0) {
+                // read until the server closes the connection
+            }
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void skipResponse(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Unexpected end of stream");
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+        }
+    }
+
+    // Returns the time until the first frame was received, the time until the message was received, and the frame count.
+    private static long[] receiveMessage(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[65536];
+        long before = System.nanoTime();
+        out.write(Go);
+        out.flush();
+        long firstFrame = 0;
+        int frames = 0;
+        boolean isFinal = false;
+        while (!isFinal) {
+            int b0 = readByte(in), b1 = readByte(in) & 127;
+            isFinal = (b0 & 128) != 0;
+            long len = b1;
+            int extra = b1 == 126 ? 2 : b1 == 127 ? 8 : 0;
+            if (extra > 0) {
+                len = 0;
+                for (int i = 0; i < extra; i++) len = (len << 8) | readByte(in);
+            }
+            while (len > 0) {
+                int count = in.read(buf, 0, (int) Math.min(buf.length, len));
+                if (count < 0) throw new IOException("Unexpected end of stream");
+                len -= count;
+            }
+            if (frames++ == 0) firstFrame = System.nanoTime() - before;
+        }
+        return new long[] { firstFrame, System.nanoTime() - before, frames };
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new IOException("Unexpected end of stream");
+        return b;
+    }
+}
@@ -0,0 +1,114 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class FrameHandlerTest extends ClientTestBase {
+
+    /**
+     * Records each frame as "opcode fin payload".
+     */
+    static class RecordingFrameHandler implements Server.FrameHandler {
+        final List<String> frames = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onFrame(int opCode, boolean isFin, byte[] payload, int length) {
+            frames.add(opCode + " " + isFin + " " + new String(payload, 0, length, StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public void onOpened(Server.WebSocketClient client) {}
+
+        @Override
+        public void onClosedByClient(int code, String reason) {}
+
+        @Override
+        public void onClosedByServer(int code, String reason) {}
+
+        @Override
+        public void onFailure(Throwable t) {}
+    }
+
+    @Override
+    protected WebSocketHandler createHandler() {
+        return spy(new RecordingFrameHandler());
+    }
+
+    private SimpleClient connect() throws Exception {
+        return new SimpleClient(new URI("ws://" + host + ":" + port));
+    }
+
+    private RecordingFrameHandler handler() {
+        return (RecordingFrameHandler) createdHandlers.peek();
+    }
+
+    private static void awaitFrames(RecordingFrameHandler handler, int count) throws InterruptedException {
+        for (int i = 0; i < 200 && handler.frames.size() < count; i++) Thread.sleep(10);
+    }
+
+    @Test
+    public void Fragments_should_be_passed_one_by_one() throws Exception {
+        SimpleClient cl = connect();
+        cl.sendRawData(new byte[] { 0x01, 3, 'a', 'b', 'c' });
+        cl.sendRawData(new byte[] { 0x00, 1, 'd' });
+        cl.sendRawData(new byte[] { (byte) 0x80, 2, 'e', 'f' });
+        RecordingFrameHandler handler = handler();
+        awaitFrames(handler, 3);
+        assertThat(handler.frames).containsExactly("1 false abc", "0 false d", "0 true ef");
+        cl.close();
+    }
+
+    @Test
+    public void An_unfragmented_binary_frame_should_be_passed_as_is() throws Exception {
+        SimpleClient cl = connect();
+        cl.sendRawData(new byte[] { (byte) 0x82, 3, 'x', 'y', 'z' });
+        RecordingFrameHandler handler = handler();
+        awaitFrames(handler, 1);
+        assertThat(handler.frames).containsExactly("2 true xyz");
+        cl.close();
+    }
+
+    @Test
+    public void A_continuation_frame_without_a_message_should_close_with_protocol_error() throws Exception {
+        SimpleClient cl = connect();
+        cl.sendRawData(new byte[] { (byte) 0x80, 1, 'a' });
+        verify(handler(), timeout(1000)).onClosedByServer(1002, "Protocol error");
+        assertThat(handler().frames).isEmpty();
+        cl.close();
+    }
+
+    @Test
+    public void A_new_message_before_the_final_fragment_should_close_with_protocol_error() throws Exception {
+        SimpleClient cl = connect();
+        cl.sendRawData(new byte[] { 0x01, 1, 'a' });
+        cl.sendRawData(new byte[] { (byte) 0x81, 1, 'b' });
+        verify(handler(), timeout(1000)).onClosedByServer(1002, "Protocol error");
+        assertThat(handler().frames).containsExactly("1 false a");
+        cl.close();
+    }
+
+    @Test
+    public void A_ping_should_be_answered() throws Exception {
+        SimpleClient cl = connect();
+        assertThat(cl.sendPingAndAwaitPong(1000)).isTrue();
+        assertThat(handler().frames).isEmpty();
+        cl.close();
+    }
+
+    @Test
+    public void A_close_frame_should_invoke_onClosedByClient() throws Exception {
+        SimpleClient cl = connect();
+        cl.sendClose(1000);
+        verify(handler(), timeout(1000)).onClosedByClient(1000, null);
+    }
+}
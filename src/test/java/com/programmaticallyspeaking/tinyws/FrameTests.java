@@ -4,12 +4,24 @@ import com.programmaticallyspeaking.tinyws.Server.Frame;
 import com.programmaticallyspeaking.tinyws.Server.FrameWriter;
 import com.programmaticallyspeaking.tinyws.Server.PayloadCoder;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import static org.testng.internal.junit.ArrayAsserts.assertArrayEquals;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.util.Arrays.asList;
 import static org.testng.Assert.*;
@@ -133,5 +145,430 @@ public abstract class FrameTests {
         }
     }
 
+    public static class A_written_array_region {
+        private Frame frame;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            ByteArrayInputStream in = write(w -> w.writeBinary(new byte[] { 1, 2, 3, 4, 5 }, 1, 3), 0);
+            this.frame = Frame.read(in);
+        }
+
+        @Test
+        public void has_only_the_data_of_the_region() {
+            assertArrayEquals(new byte[]{2, 3, 4}, frame.payloadData);
+        }
+    }
+
+    public static class A_written_direct_buffer {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+        private Frame frame1;
+        private Frame frame2;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            buffer.put(new byte[] { 1, 2, 3, 4, 5 }).flip().position(1);
+            ByteArrayInputStream in = write(w -> w.writeBinary(buffer), 2);
+            this.frame1 = Frame.read(in);
+            this.frame2 = Frame.read(in);
+        }
+
+        @Test
+        public void is_fragmented() {
+            assertEquals(asList(frame1.isFin, frame2.isFin), asList(false, true));
+        }
+
+        @Test
+        public void has_the_remaining_data_of_the_buffer_when_merged() {
+            assertArrayEquals(new byte[]{2, 3, 4, 5}, Frame.merge(asList(frame1, frame2)).payloadData);
+        }
+
+        @Test
+        public void leaves_the_buffer_unchanged() {
+            assertEquals(buffer.position(), 1);
+        }
+    }
+
+    public static class A_written_file_region {
+        private Frame frame1;
+        private Frame frame2;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            Path file = Files.createTempFile("tinyws", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+                channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6 }));
+                ByteArrayInputStream in = write(w -> w.writeBinary(channel, 1, 4), 3);
+                this.frame1 = Frame.read(in);
+                this.frame2 = Frame.read(in);
+            } finally {
+                Files.delete(file);
+            }
+        }
+
+        @Test
+        public void has_correct_opcodes() {
+            assertEquals(asList(frame1.opCode, frame2.opCode), asList(2, 0));
+        }
+
+        @Test
+        public void has_the_data_of_the_region_when_merged() {
+            assertArrayEquals(new byte[]{2, 3, 4, 5}, Frame.merge(asList(frame1, frame2)).payloadData);
+        }
+    }
+
+    public static class A_streamed_binary_message {
+        private Frame frame1;
+        private Frame frame2;
+        private Frame frame3;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            ByteArrayInputStream in = write(w -> {
+                try (OutputStream out = w.openMessage(2)) {
+                    out.write(new byte[] { 1, 2, 3, 4, 5 });
+                    out.write(6);
+                    out.write(new byte[] { 7 });
+                }
+            }, 3);
+            this.frame1 = Frame.read(in);
+            this.frame2 = Frame.read(in);
+            this.frame3 = Frame.read(in);
+        }
+
+        @Test
+        public void is_sent_in_full_fragments() {
+            assertEquals(asList(frame1.payloadLength, frame2.payloadLength, frame3.payloadLength), asList(3, 3, 1));
+        }
+
+        @Test
+        public void has_correct_opcodes() {
+            assertEquals(asList(frame1.opCode, frame2.opCode, frame3.opCode), asList(2, 0, 0));
+        }
+
+        @Test
+        public void has_FIN_only_on_the_last_frame() {
+            assertEquals(asList(frame1.isFin, frame2.isFin, frame3.isFin), asList(false, false, true));
+        }
+
+        @Test
+        public void has_correct_data_when_merged() {
+            assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7}, Frame.merge(asList(frame1, frame2, frame3)).payloadData);
+        }
+    }
 
+    public static class A_streamed_text_message {
+        private final String text = "aåäö€😀 and some more";
+        private final List<Frame> frames = new ArrayList<>();
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            ByteArrayInputStream in = write(w -> {
+                try (Writer writer = new FrameWriter.TextMessageWriter(w.openMessage(1))) {
+                    writer.write(text.substring(0, 6)); // splits the surrogate pair
+                    writer.flush();
+                    writer.append(text, 6, text.length());
+                }
+            }, 5);
+            while (in.available() > 0) frames.add(Frame.read(in));
+        }
+
+        @Test
+        public void has_correct_text_when_merged() {
+            assertEquals(new String(Frame.merge(frames).payloadData, StandardCharsets.UTF_8), text);
+        }
+
+        @Test
+        public void is_sent_up_to_the_flush_before_continuing() {
+            // "aåäö€" is 1 + 2 + 2 + 2 + 3 = 10 bytes, i.e. exactly two full fragments
+            assertEquals(frames.get(1).isFin, false);
+            assertEquals(new String(Frame.merge(frames.subList(0, 2)).payloadData, StandardCharsets.UTF_8), "aåäö€");
+        }
+    }
+
+    public static class A_streamed_message_and_another_sender {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final FrameWriter writer = new FrameWriter(out, new PayloadCoder(), 0);
+
+        @BeforeMethod
+        public void reset() {
+            out.reset();
+        }
+
+        @Test
+        public void should_not_be_interleaved() throws Exception {
+            Thread other;
+            try (OutputStream stream = writer.openMessage(2)) {
+                stream.write(1);
+                stream.flush();
+                other = new Thread(() -> {
+                    try {
+                        writer.writeBinary(new byte[] { 9 });
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                other.start();
+                other.join(100);
+                stream.write(2);
+            }
+            other.join();
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            Frame first = Frame.read(in);
+            Frame last = Frame.read(in);
+            Frame fromOther = Frame.read(in);
+            assertArrayEquals(new byte[]{1, 2}, Frame.merge(asList(first, last)).payloadData);
+            assertArrayEquals(new byte[]{9}, fromOther.payloadData);
+        }
+
+        @Test(expectedExceptions = IllegalStateException.class)
+        public void should_not_be_allowed_on_the_same_thread() throws Exception {
+            OutputStream stream = writer.openMessage(2);
+            try {
+                writer.writeBinary(new byte[] { 9 });
+            } finally {
+                stream.close();
+            }
+        }
+
+        @Test
+        public void should_be_possible_to_interleave_with_control_frames() throws Exception {
+            try (OutputStream stream = writer.openMessage(2)) {
+                stream.write(1);
+                stream.flush();
+                writer.writePing(null);
+            }
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            assertEquals(asList(Frame.read(in).opCode, Frame.read(in).opCode, Frame.read(in).opCode), asList(2, 9, 0));
+        }
+    }
+
+    public static class Pooled_fragmented_text_frames {
+        private final Server.BufferPoolMetrics metrics = new Server.BufferPoolMetrics();
+        private final Server.BufferPool pool = new Server.BufferPool(false, Server.BufferPool.powerOfTwoClasses(256, 1024),
+                65536, false, metrics, null);
+        private Frame frame1;
+        private Frame frame2;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            ByteArrayInputStream in = write(w -> w.writeText("hello world there"), 10);
+            this.frame1 = Frame.read(in, new byte[8], pool);
+            this.frame2 = Frame.read(in, new byte[8], pool);
+        }
+
+        @Test
+        public void have_correct_data_when_merged() {
+            Frame frame = Frame.merge(asList(frame1, frame2), pool);
+            String text = new String(frame.payloadData, 0, frame.payloadLength, StandardCharsets.UTF_8);
+            assertEquals(text, "hello world there");
+        }
+
+        @Test(dependsOnMethods = "have_correct_data_when_merged")
+        public void are_returned_to_the_pool_when_released() {
+            frame1.release(pool);
+            frame2.release(pool);
+            assertEquals(metrics.pooledBytes(), 512);
+        }
+    }
+
+    public static class Pre_encoded_fragmented_frames {
+        private Frame frame1;
+        private Frame frame2;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            byte[] frames = FrameWriter.encodeFrames(2, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), 3);
+            ByteArrayInputStream in = write(w -> w.writeEncoded(frames), 0);
+            this.frame1 = Frame.read(in);
+            this.frame2 = Frame.read(in);
+        }
+
+        @Test
+        public void have_correct_opcodes() {
+            assertEquals(asList(frame1.opCode, frame2.opCode), asList(2, 0));
+        }
+
+        @Test
+        public void have_FIN_only_on_the_last_frame() {
+            assertEquals(asList(frame1.isFin, frame2.isFin), asList(false, true));
+        }
+
+        @Test
+        public void have_correct_data_when_merged() {
+            Frame frame = Frame.merge(asList(frame1, frame2));
+            assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, frame.payloadData);
+        }
+    }
+
+    public static class A_pre_encoded_empty_frame {
+        private Frame frame;
+
+        @BeforeClass
+        public void Write_and_read() throws Throwable {
+            byte[] frames = FrameWriter.encodeFrames(1, ByteBuffer.wrap(new byte[0]), 0);
+            this.frame = Frame.read(write(w -> w.writeEncoded(frames), 0));
+        }
+
+        @Test
+        public void is_final() {
+            assertTrue(frame.isFin);
+        }
+
+        @Test
+        public void has_no_data() {
+            assertEquals(frame.payloadData.length, 0);
+        }
+    }
+
+    public static class Coalesced_frames {
+        private final List<Integer> writes = new ArrayList<>();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes.add(len);
+                super.write(b, off, len);
+            }
+        };
+
+        private FrameWriter writer(int bytes, long delayNanos) {
+            return new FrameWriter(Server.Transport.forStream(out), new PayloadCoder(), 0, Server.BufferPool.unpooled(),
+                    bytes, delayNanos, Runnable::run);
+        }
+
+        @BeforeMethod
+        public void reset() {
+            synchronized (out) {
+                out.reset();
+                writes.clear();
+            }
+        }
+
+        @Test
+        public void are_written_together_when_flushed() throws Exception {
+            FrameWriter writer = writer(1000, 10_000_000_000L);
+            writer.writeText("a");
+            writer.writeText("b");
+            assertEquals(out.size(), 0);
+            writer.flush();
+            assertEquals(writes, asList(6));
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            assertEquals(asList(Frame.read(in).payloadData[0], Frame.read(in).payloadData[0]), asList((byte) 'a', (byte) 'b'));
+        }
+
+        @Test
+        public void are_written_when_the_buffer_is_full_enough() throws Exception {
+            FrameWriter writer = writer(6, 10_000_000_000L);
+            writer.writeText("a");
+            writer.writeText("b");
+            assertEquals(out.size(), 6);
+        }
+
+        @Test
+        public void are_written_after_the_delay() throws Exception {
+            FrameWriter writer = writer(1000, 1_000_000L);
+            writer.writeText("a");
+            for (int i = 0; i < 100 && out.size() == 0; i++) Thread.sleep(10);
+            assertEquals(out.size(), 3);
+        }
+
+        @Test
+        public void are_written_together_by_a_pending_delayed_flush() throws Exception {
+            FrameWriter writer = writer(1000, 200_000_000L);
+            writer.writeText("a");
+            writer.writeText("b");
+            assertEquals(out.size(), 0);
+            for (int i = 0; i < 100 && out.size() == 0; i++) Thread.sleep(10);
+            assertEquals(writes, asList(6));
+        }
+
+        @Test
+        public void are_written_before_a_control_frame() throws Exception {
+            FrameWriter writer = writer(1000, 10_000_000_000L);
+            writer.writeText("a");
+            writer.writePing(null);
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            assertEquals(asList(Frame.read(in).opCode, Frame.read(in).opCode), asList(1, 9));
+        }
+
+        @Test
+        public void are_written_before_a_large_frame_without_copying_it() throws Exception {
+            FrameWriter writer = writer(1000, 10_000_000_000L);
+            writer.writeText("a");
+            writer.writeBinary(new byte[2000]);
+            assertEquals(writes, asList(3 + 4, 2000));
+        }
+    }
+
+    public static class Masked_frames {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final byte[] data = new byte[2500];
+
+        private FrameWriter writer(int maxFrameSize, int coalescingBytes) {
+            return new FrameWriter(Server.Transport.forStream(out), new PayloadCoder(), maxFrameSize,
+                    Server.BufferPool.unpooled(), coalescingBytes, 10_000_000_000L, Runnable::run, true);
+        }
+
+        @BeforeMethod
+        public void reset() {
+            out.reset();
+            for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        }
+
+        // Reads frames until the final one, checking that each one is masked, and returns the combined payload.
+        private byte[] readMasked(ByteArrayInputStream in) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            Frame frame;
+            do {
+                in.mark(2);
+                in.skip(1);
+                assertTrue((in.read() & 128) != 0, "masked");
+                in.reset();
+                frame = Frame.read(in);
+                payload.write(frame.payloadData, 0, frame.payloadLength);
+            } while (!frame.isFin);
+            return payload.toByteArray();
+        }
+
+        @Test
+        public void can_be_read() throws Exception {
+            writer(0, 0).writeText("hello åäö");
+            byte[] payload = readMasked(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(new String(payload, StandardCharsets.UTF_8), "hello åäö");
+        }
+
+        @Test
+        public void do_not_modify_the_sent_data() throws Exception {
+            writer(1000, 0).writeBinary(data);
+            assertArrayEquals(readMasked(new ByteArrayInputStream(out.toByteArray())), data);
+            assertEquals(data[1], (byte) 1);
+        }
+
+        @Test
+        public void are_masked_separately_when_encoded_up_front() throws Exception {
+            writer(0, 0).writeEncoded(FrameWriter.encodeFrames(2, data, 0, data.length, 1000));
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            assertArrayEquals(readMasked(in), data);
+            assertEquals(in.available(), 0);
+        }
+
+        @Test
+        public void are_masked_when_sent_from_a_direct_buffer() throws Exception {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data).flip();
+            writer(1000, 0).writeBinary(buffer);
+            assertArrayEquals(readMasked(new ByteArrayInputStream(out.toByteArray())), data);
+        }
+
+        @Test
+        public void are_masked_when_coalesced() throws Exception {
+            FrameWriter writer = writer(0, 1000);
+            writer.writeText("a");
+            writer.writeBinary(data);
+            writer.flush();
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            assertEquals(readMasked(in), new byte[] { 'a' });
+            assertArrayEquals(readMasked(in), data);
+        }
+    }
 }
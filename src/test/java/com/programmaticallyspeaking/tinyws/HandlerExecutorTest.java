@@ -0,0 +1,78 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HandlerExecutorTest extends ClientTestBase {
+
+    private CountDownLatch releaseHandler;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andHandlerExecutor(Executors.newCachedThreadPool(), 100);
+    }
+
+    @BeforeMethod
+    public void init() {
+        releaseHandler = new CountDownLatch(0);
+        received.clear();
+    }
+
+    @Override
+    protected WebSocketHandler createHandler() {
+        return new EchoHandler() {
+            @Override
+            public void onTextMessage(CharSequence text) {
+                try {
+                    releaseHandler.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                received.add(text.toString());
+                super.onTextMessage(text);
+            }
+        };
+    }
+
+    private SimpleClient connect() throws Exception {
+        return new SimpleClient(new URI("ws://" + host + ":" + port));
+    }
+
+    @Test
+    public void Slow_handler_should_not_prevent_pong_response() throws Exception {
+        releaseHandler = new CountDownLatch(1);
+        SimpleClient client = connect();
+        try {
+            client.send("blocked");
+            assertThat(client.sendPingAndAwaitPong(2000)).isTrue();
+            assertThat(received).isEmpty();
+        } finally {
+            releaseHandler.countDown();
+            client.closeBlocking();
+        }
+    }
+
+    @Test
+    public void Handler_invocations_should_be_made_in_order() throws Exception {
+        SimpleClient client = connect();
+        List<String> expected = IntStream.range(0, 200).mapToObj(i -> "m" + i).collect(Collectors.toList());
+        expected.forEach(client::send);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < expected.size() && System.nanoTime() < deadline) Thread.sleep(10);
+        client.closeBlocking();
+        assertThat(received).containsExactlyElementsOf(expected);
+    }
+}
@@ -0,0 +1,145 @@
+package com.programmaticallyspeaking.tinyws;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeepAliveTest extends ClientTestBase {
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        server.setFallbackHandler(c -> {
+            String query = c.uri().getQuery();
+            byte[] body = (query != null ? query : "ok").getBytes(StandardCharsets.US_ASCII);
+            if ("/nolength".equals(c.uri().getPath())) {
+                c.sendResponse(200, "OK", null);
+            } else {
+                c.sendResponse(200, "OK", Collections.singletonMap("Content-Length", "" + body.length));
+            }
+            c.outputStream().write(body);
+        });
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setSoTimeout(2000);
+        return socket;
+    }
+
+    private void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private String get(String path) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new IOException("Unexpected end of stream");
+            if (b != '\r') bytes.write(b);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    // Returns the status line, or the status line and the body (separated by a space) if there is a body.
+    private String readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int length = 0;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            String[] keyValue = line.split(":", 2);
+            if ("Content-Length".equalsIgnoreCase(keyValue[0])) length = Integer.parseInt(keyValue[1].trim());
+        }
+        byte[] body = new byte[length];
+        for (int offs = 0; offs < length; ) {
+            int count = in.read(body, offs, length - offs);
+            if (count < 0) throw new IOException("Unexpected end of stream");
+            offs += count;
+        }
+        return length > 0 ? statusLine + " " + new String(body, StandardCharsets.US_ASCII) : statusLine;
+    }
+
+    @Test
+    public void Two_requests_on_the_same_connection_should_both_get_responses() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, get("/a?first"));
+            assertThat(readResponse(socket.getInputStream())).isEqualTo("HTTP/1.1 200 OK first");
+            send(socket, get("/a?second"));
+            assertThat(readResponse(socket.getInputStream())).isEqualTo("HTTP/1.1 200 OK second");
+        }
+    }
+
+    @Test
+    public void Pipelined_requests_should_get_responses_in_order() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, get("/a?1") + get("/a?2") + get("/a?3"));
+            InputStream in = socket.getInputStream();
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK 1");
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK 2");
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK 3");
+        }
+    }
+
+    @Test
+    public void An_unread_request_body_should_be_skipped() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "POST /a?posted HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello" + get("/a?next"));
+            InputStream in = socket.getInputStream();
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK posted");
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK next");
+        }
+    }
+
+    @Test
+    public void A_later_request_should_be_able_to_upgrade_to_WebSocket() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, get("/a"));
+            assertThat(readResponse(socket.getInputStream())).isEqualTo("HTTP/1.1 200 OK ok");
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: keep-alive, Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n");
+            assertThat(readResponse(socket.getInputStream())).isEqualTo("HTTP/1.1 101 Switching Protocols");
+            assertThat(createdHandlers).hasSize(1);
+        }
+    }
+
+    @Test
+    public void A_response_without_Content_Length_should_end_the_connection() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, get("/nolength"));
+            InputStream in = socket.getInputStream();
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK");
+            assertThat(new String(readToEnd(in), StandardCharsets.US_ASCII)).isEqualTo("ok");
+        }
+    }
+
+    @Test
+    public void A_request_with_Connection_close_should_end_the_connection() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "GET /a HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            assertThat(readResponse(in)).isEqualTo("HTTP/1.1 200 OK ok");
+            assertThat(in.read()).isEqualTo(-1);
+        }
+    }
+
+    private byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) bytes.write(b);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package com.programmaticallyspeaking.tinyws;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A WebSocket client that completes the opening handshake and then never reads, so that the writes of the server
+ * block once the socket buffers are full.
+ */
+class NonReadingClient implements Closeable {
+    private final Socket socket;
+
+    /**
+     * @param sslContext the context to connect with, or {@code null} for a plain connection
+     */
+    NonReadingClient(InetAddress address, int port, SSLContext sslContext) throws IOException {
+        this(address, port, sslContext, "/");
+    }
+
+    /**
+     * @param sslContext the context to connect with, or {@code null} for a plain connection
+     * @param resource the requested resource, e.g. "/?topic"
+     */
+    NonReadingClient(InetAddress address, int port, SSLContext sslContext, String resource) throws IOException {
+        socket = sslContext != null ? sslContext.getSocketFactory().createSocket() : new Socket();
+        // A small receive buffer, so that the server's writes block soon.
+        socket.setReceiveBufferSize(65536);
+        socket.connect(new InetSocketAddress(address, port));
+        socket.getOutputStream().write(("GET " + resource + " HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        InputStream in = socket.getInputStream();
+        for (int matched = 0; matched < 4; ) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Unexpected end of stream");
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * A handler that sends 64 KB binary messages from a separate thread until sending fails.
+     */
+    static class Flooder extends EchoHandler {
+        final CountDownLatch sendFailed = new CountDownLatch(1);
+
+        @Override
+        public void onOpened(Server.WebSocketClient client) {
+            Thread thread = new Thread(() -> {
+                byte[] message = new byte[65536];
+                try {
+                    while (true) client.sendBinaryData(message);
+                } catch (IOException e) {
+                    sendFailed.countDown();
+                }
+            }, "flooder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts a server with a {@link Flooder} handler, connects a client that doesn't read and drains the server once
+     * its writes are blocked.
+     *
+     * @param serverContext the SSL context of the server, or {@code null} for plain connections
+     * @param clientContext the SSL context of the client, or {@code null} for plain connections
+     * @return the time in milliseconds that {@link Server#stopGracefully(Duration)} took, which must be at most a few
+     *         seconds
+     */
+    static long drainWhileBlocked(SSLContext serverContext, SSLContext clientContext, Duration timeout) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int port = Benchmarks.freePort();
+        Server.Options options = Server.Options.withPort(port).andAddress(address).andLogger(Benchmarks.silentLogger());
+        Server server = new Server(executor, serverContext != null ? options.andSSL(serverContext) : options);
+        server.addHandlerFactory("/", Flooder::new);
+        server.start();
+        NonReadingClient client = new NonReadingClient(address, port, clientContext);
+        try {
+            // Give the flooder time to fill the socket buffers.
+            Thread.sleep(300);
+            long start = System.nanoTime();
+            Future<Boolean> drained = executor.submit(() -> server.stopGracefully(timeout));
+            drained.get(timeout.toMillis() + 5000, TimeUnit.MILLISECONDS);
+            return (System.nanoTime() - start) / 1000000;
+        } finally {
+            client.close();
+            executor.shutdownNow();
+        }
+    }
+}
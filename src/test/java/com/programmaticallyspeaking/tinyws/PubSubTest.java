@@ -0,0 +1,108 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.WebSocketClient;
+import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class PubSubTest extends ClientTestBase {
+
+    private Server.Topics topics;
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        topics = server.topics();
+    }
+
+    @Override
+    protected WebSocketHandler createHandler() {
+        // Subscribes to the topic given as query
+        WebSocketHandler handler = super.createHandler();
+        doAnswer(inv -> {
+            WebSocketClient client = inv.getArgument(0);
+            topics.subscribe(client.query(), client);
+            return null;
+        }).when(handler).onOpened(any());
+        return handler;
+    }
+
+    private SimpleClient connect(String topic) throws Exception {
+        return new SimpleClient(new URI("ws://" + host + ":" + port + "/?" + topic));
+    }
+
+    private void awaitSubscribers(String topic, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (topics.subscriberCount(topic) != count && System.nanoTime() < deadline) Thread.sleep(10);
+        assertThat(topics.subscriberCount(topic)).isEqualTo(count);
+    }
+
+    private void awaitMessages(SimpleClient client, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.messages.size() < count && System.nanoTime() < deadline) Thread.sleep(10);
+    }
+
+    @Test
+    public void Published_message_should_reach_all_subscribers_of_the_topic_only() throws Exception {
+        SimpleClient a1 = connect("a1"), a2 = connect("a1"), b = connect("b1");
+        awaitSubscribers("a1", 2);
+        awaitSubscribers("b1", 1);
+        topics.publish("a1", "hello");
+        awaitMessages(a1, 1);
+        awaitMessages(a2, 1);
+        topics.publish("b1", "world");
+        awaitMessages(b, 1);
+        assertThat(a1.messages).containsExactly("hello");
+        assertThat(a2.messages).containsExactly("hello");
+        assertThat(b.messages).containsExactly("world");
+        a1.closeBlocking(); a2.closeBlocking(); b.closeBlocking();
+    }
+
+    @Test
+    public void Messages_to_a_topic_should_be_received_in_publishing_order() throws Exception {
+        SimpleClient client = connect("ordered");
+        awaitSubscribers("ordered", 1);
+        for (int i = 0; i < 100; i++) topics.publish("ordered", "m" + i);
+        awaitMessages(client, 100);
+        assertThat(client.messages).hasSize(100);
+        assertThat(client.messages.get(99)).isEqualTo("m99");
+        assertThat(client.messages).isSortedAccordingTo((x, y) -> Integer.parseInt(x.substring(1)) - Integer.parseInt(y.substring(1)));
+        client.closeBlocking();
+    }
+
+    @Test
+    public void A_subscriber_that_doesnt_read_should_not_hold_up_other_subscribers() throws Exception {
+        // Same topic, so the same publish stripe
+        NonReadingClient stalled = new NonReadingClient(InetAddress.getByName(host), port, null, "/?stalling");
+        try {
+            SimpleClient client = connect("stalling");
+            awaitSubscribers("stalling", 2);
+            // Much more than the socket buffers of the subscriber that doesn't read can hold
+            char[] chars = new char[65536];
+            Arrays.fill(chars, 'x');
+            String message = new String(chars);
+            for (int i = 0; i < 200; i++) topics.publish("stalling", message);
+            awaitMessages(client, 200);
+            assertThat(client.messages).hasSize(200);
+            client.closeBlocking();
+        } finally {
+            stalled.close();
+        }
+    }
+
+    @Test
+    public void Closed_client_should_be_unsubscribed() throws Exception {
+        SimpleClient client = connect("closing");
+        awaitSubscribers("closing", 1);
+        client.closeBlocking();
+        awaitSubscribers("closing", 0);
+    }
+}
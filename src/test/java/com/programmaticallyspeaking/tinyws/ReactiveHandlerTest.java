@@ -0,0 +1,253 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.Message;
+import com.programmaticallyspeaking.tinyws.Server.Publisher;
+import com.programmaticallyspeaking.tinyws.Server.ReactiveHandler;
+import com.programmaticallyspeaking.tinyws.Server.Subscriber;
+import com.programmaticallyspeaking.tinyws.Server.Subscription;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReactiveHandlerTest extends ClientTestBase {
+
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    private volatile Consumer<ReactiveHandler> onConnection;
+
+    @BeforeMethod
+    public void init() {
+        onConnection = h -> {};
+    }
+
+    @AfterClass
+    public void shutdownWriteExecutor() {
+        writeExecutor.shutdownNow();
+    }
+
+    @Override
+    protected Server.WebSocketHandler createHandler() {
+        return new ReactiveHandler(h -> onConnection.accept(h), writeExecutor);
+    }
+
+    private SimpleClient connect() throws Exception {
+        return new SimpleClient(new URI("ws://" + host + ":" + port));
+    }
+
+    /**
+     * Collects inbound messages, and keeps the subscription so that a test can signal demand.
+     */
+    private static class CollectingSubscriber implements Subscriber<Message> {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch terminated = new CountDownLatch(1);
+        volatile Subscription subscription;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onNext(Message item) {
+            received.add(item.text().toString());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Publishes numbered text messages, never more than requested.
+     */
+    private static class CountingPublisher implements Publisher<Message> {
+        private final int count;
+        private final int size;
+        final AtomicLong requested = new AtomicLong();
+        private long demand;
+        private int sent;
+        private boolean isEmitting;
+
+        CountingPublisher(int count, int size) {
+            this.count = count;
+            this.size = size;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super Message> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    requested.addAndGet(n);
+                    synchronized (CountingPublisher.this) {
+                        demand += n;
+                        if (isEmitting) return;
+                        isEmitting = true;
+                        while (demand > 0 && sent < count) {
+                            demand--;
+                            StringBuilder sb = new StringBuilder().append(sent++);
+                            while (sb.length() < size) sb.append('.');
+                            subscriber.onNext(Message.text(sb));
+                        }
+                        if (sent == count) {
+                            sent++;
+                            subscriber.onComplete();
+                        }
+                        isEmitting = false;
+                    }
+                }
+
+                @Override
+                public void cancel() {}
+            });
+        }
+    }
+
+    @Test
+    public void Inbound_messages_should_only_be_delivered_when_requested() throws Exception {
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        onConnection = h -> h.inbound().subscribe(subscriber);
+        SimpleClient cl = connect();
+        subscriber.subscribed.await(2, TimeUnit.SECONDS);
+        subscriber.subscription.request(1);
+        cl.send("a");
+        cl.send("b");
+        cl.send("c");
+        assertThat(subscriber.received.poll(2, TimeUnit.SECONDS)).isEqualTo("a");
+        assertThat(subscriber.received.poll(200, TimeUnit.MILLISECONDS)).isNull();
+        subscriber.subscription.request(2);
+        assertThat(subscriber.received.poll(2, TimeUnit.SECONDS)).isEqualTo("b");
+        assertThat(subscriber.received.poll(2, TimeUnit.SECONDS)).isEqualTo("c");
+        // The close frame isn't read without demand.
+        subscriber.subscription.request(1);
+        cl.close();
+        assertThat(subscriber.terminated.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error).isNull();
+    }
+
+    @Test
+    public void A_second_inbound_subscriber_should_get_an_error() throws Exception {
+        CollectingSubscriber second = new CollectingSubscriber();
+        onConnection = h -> {
+            h.inbound().subscribe(new CollectingSubscriber());
+            h.inbound().subscribe(second);
+        };
+        SimpleClient cl = connect();
+        assertThat(second.terminated.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(second.error).isInstanceOf(IllegalStateException.class);
+        cl.close();
+    }
+
+    @Test
+    public void Cancelling_the_inbound_subscription_should_close_the_connection() throws Exception {
+        onConnection = h -> h.inbound().subscribe(new CollectingSubscriber() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Message item) {
+                subscription.cancel();
+            }
+        });
+        SimpleClient cl = connect();
+        cl.send("bye");
+        cl.waitUntilClosed();
+        assertThat(cl.closeCode).isEqualTo(1001);
+    }
+
+    @Test
+    public void Requesting_zero_inbound_messages_should_fail_the_subscriber_and_close_the_connection() throws Exception {
+        CollectingSubscriber subscriber = new CollectingSubscriber() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Message item) {
+                subscription.request(0);
+            }
+        };
+        onConnection = h -> h.inbound().subscribe(subscriber);
+        SimpleClient cl = connect();
+        cl.send("zero");
+        assertThat(subscriber.terminated.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        cl.waitUntilClosed();
+        assertThat(cl.closeCode).isEqualTo(1001);
+    }
+
+    @Test
+    public void Outbound_messages_should_be_sent_and_completion_should_close_the_connection() throws Exception {
+        onConnection = h -> new CountingPublisher(100, 1).subscribe(h.outbound());
+        SimpleClient cl = connect();
+        cl.waitUntilClosed();
+        assertThat(cl.messages).hasSize(100);
+        assertThat(cl.messages.get(99)).isEqualTo("99");
+        assertThat(cl.closeCode).isEqualTo(1001);
+    }
+
+    @Test
+    public void Outbound_demand_should_stop_when_the_client_does_not_read() throws Exception {
+        CountingPublisher publisher = new CountingPublisher(Integer.MAX_VALUE, 65536);
+        onConnection = h -> publisher.subscribe(h.outbound());
+        try (Socket socket = new Socket(host, port)) {
+            socket.setReceiveBufferSize(65536);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            // Don't read anything
+            long before;
+            long after = publisher.requested.get();
+            do {
+                before = after;
+                Thread.sleep(200);
+                after = publisher.requested.get();
+            } while (after != before);
+            // The socket buffers hold a limited number of messages, plus the write window.
+            assertThat(after).isLessThan(1000);
+            assertThat(readSome(socket.getInputStream())).startsWith("HTTP/1.1 101");
+        }
+    }
+
+    private static String readSome(InputStream in) throws IOException {
+        byte[] buf = new byte[12];
+        int count = 0;
+        while (count < buf.length) {
+            int len = in.read(buf, count, buf.length - count);
+            if (len < 0) break;
+            count += len;
+        }
+        return new String(buf, 0, count, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,72 @@
+package com.programmaticallyspeaking.tinyws;
+
+import org.testng.annotations.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecordAlignedFramesTest extends ClientTestBase {
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andSSL(SSLTesting.createSSLContextForTests(true))
+                .andRecordAlignedFrames(true);
+    }
+
+    @Override
+    protected Server.WebSocketHandler createHandler() {
+        return new EchoHandler();
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new IOException("Unexpected end of stream");
+        return b;
+    }
+
+    // Reads frames until one with FIN set, and returns a description of each frame: opcode, FIN and payload length.
+    private List<String> readMessageFrames(InputStream in) throws IOException {
+        List<String> frames = new ArrayList<>();
+        boolean isFinal = false;
+        while (!isFinal) {
+            int b0 = readByte(in), b1 = readByte(in);
+            isFinal = (b0 & 128) != 0;
+            int len = b1 == 126 ? (readByte(in) << 8) | readByte(in) : b1;
+            for (int i = 0; i < len; i++) readByte(in);
+            frames.add((b0 & 15) + (isFinal ? " FIN " : " ") + len);
+        }
+        return frames;
+    }
+
+    @Test
+    public void Large_message_should_be_sent_in_frames_that_fill_TLS_records() throws Exception {
+        try (SSLSocket socket = (SSLSocket) SSLTesting.createSSLContextForTests(false).getSocketFactory().createSocket(host, port)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            // Skip the response headers
+            for (int matched = 0; matched < 4; ) matched = readByte(in) == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : 0;
+
+            // A masked text frame with 40000 bytes of payload and an all-zero mask
+            byte[] frame = new byte[8 + 40000];
+            frame[0] = (byte) 0x81;
+            frame[1] = (byte) (128 | 126);
+            frame[2] = (byte) (40000 >> 8);
+            frame[3] = (byte) (40000 & 255);
+            Arrays.fill(frame, 8, frame.length, (byte) 'x');
+            out.write(frame);
+            out.flush();
+
+            assertThat(readMessageFrames(in)).containsExactly("1 16380", "0 16380", "0 FIN 7240");
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.ConnectorTest.ClosingEchoHandler;
+import com.programmaticallyspeaking.tinyws.ConnectorTest.CollectingHandler;
+import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class RelayTest extends ClientTestBase {
+
+    private ExecutorService executor;
+    private Server.Connector connector;
+    private volatile int fakeUpstreamPort;
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        executor = Executors.newCachedThreadPool();
+        // The relay connects to the echo handler of the same server.
+        Server.Connector relayConnector = new Server.Connector(executor, Server.Options.forConnector());
+        server.addHandlerFactory("/relay", () -> new Server.RelayHandler(relayConnector, uri("ws://localhost:" + port + "/")));
+        server.addHandlerFactory("/fake", () -> new Server.RelayHandler(relayConnector, uri("ws://localhost:" + fakeUpstreamPort + "/")));
+        server.addHandlerFactory("/unreachable", () -> new Server.RelayHandler(relayConnector, uri("ws://localhost:1/")));
+        connector = new Server.Connector(executor, Server.Options.forConnector().andMaxFrameSize(1000));
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static URI uri(String uri) {
+        try {
+            return new URI(uri);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    protected WebSocketHandler createHandler() {
+        return spy(new ClosingEchoHandler());
+    }
+
+    private Server.WebSocketClient connect(String endpoint, CollectingHandler handler) throws Exception {
+        return connector.connect(uri("ws://" + host + ":" + port + endpoint), handler);
+    }
+
+    private WebSocketHandler upstreamHandler() throws InterruptedException {
+        for (int i = 0; i < 100 && createdHandlers.isEmpty(); i++) Thread.sleep(10);
+        return createdHandlers.peek();
+    }
+
+    @Test
+    public void A_text_message_should_be_relayed_both_ways() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect("/relay", handler);
+        client.sendTextMessage("hello");
+        assertThat(handler.received.poll(2, TimeUnit.SECONDS)).isEqualTo("hello");
+        client.close();
+    }
+
+    @Test
+    public void A_fragmented_binary_message_should_be_relayed_both_ways() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(42).nextBytes(data);
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect("/relay", handler);
+        client.sendBinaryData(data);
+        assertThat((byte[]) handler.received.poll(2, TimeUnit.SECONDS)).isEqualTo(data);
+        client.close();
+    }
+
+    @Test
+    public void Closing_the_client_connection_should_close_the_upstream_connection() throws Exception {
+        Server.WebSocketClient client = connect("/relay", new CollectingHandler());
+        client.close();
+        verify(upstreamHandler(), timeout(2000)).onClosedByClient(1000, "Normal Closure");
+    }
+
+    @Test
+    public void A_close_from_upstream_should_close_the_client_connection() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect("/relay", handler);
+        client.sendTextMessage("close");
+        assertThat(handler.closedByServer.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.closeCode).isEqualTo(1001);
+        assertThat(handler.received).isEmpty();
+    }
+
+    @Test
+    public void The_close_code_and_reason_of_the_client_should_be_relayed_upstream() throws Exception {
+        Server.WebSocketClient client = connect("/relay", new CollectingHandler());
+        client.close(4001, "Done");
+        verify(upstreamHandler(), timeout(2000)).onClosedByClient(4001, "Done");
+    }
+
+    @Test
+    public void The_close_code_and_reason_of_upstream_should_be_relayed_to_the_client() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        Server.WebSocketClient client = connect("/relay", handler);
+        client.sendTextMessage("close 4001");
+        assertThat(handler.closedByServer.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.closeCode).isEqualTo(4001);
+        assertThat(handler.closeReason).isEqualTo("Closed by handler");
+    }
+
+    @Test
+    public void An_unreachable_upstream_should_close_the_client_connection() throws Exception {
+        CollectingHandler handler = new CollectingHandler();
+        connect("/unreachable", handler);
+        assertThat(handler.closedByServer.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.closeCode).isEqualTo(1001);
+    }
+
+    @Test
+    public void Fragments_should_be_passed_on_one_by_one_and_masked() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            fakeUpstreamPort = serverSocket.getLocalPort();
+            ExecutorService fakeServer = Executors.newSingleThreadExecutor();
+            try {
+                // Reads all five frames, each with a 1000-byte payload and a 2-byte extended length, so that the
+                // connection isn't closed while the client is still sending.
+                Future<byte[]> frames = fakeServer.submit(() -> {
+                    try (Socket socket = serverSocket.accept()) {
+                        InputStream in = socket.getInputStream();
+                        Server.Headers headers = Server.Headers.read(in, false);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                                "Sec-WebSocket-Accept: " + Server.createResponseKey(headers.key()) + "\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                        byte[] buf = new byte[5 * (4 + 4 + 1000)];
+                        for (int count = 0; count < buf.length; ) {
+                            int n = in.read(buf, count, buf.length - count);
+                            if (n < 0) throw new IOException("Unexpected end of stream");
+                            count += n;
+                        }
+                        return buf;
+                    }
+                });
+                byte[] data = new byte[5000];
+                new Random(42).nextBytes(data);
+                Server.WebSocketClient client = connect("/fake", new CollectingHandler());
+                client.sendBinaryData(data);
+                byte[] buf = frames.get(2, TimeUnit.SECONDS);
+                // A non-final binary frame followed by a non-final continuation frame, both masked
+                assertThat(buf[0]).isEqualTo((byte) 0x02);
+                assertThat(buf[1]).isEqualTo((byte) (0x80 | 126));
+                assertThat(buf[1008]).isEqualTo((byte) 0x00);
+                assertThat(buf[1009]).isEqualTo((byte) (0x80 | 126));
+                byte[] payload = Server.unmaskIfNeededInPlace(Arrays.copyOfRange(buf, 8, 1008), Arrays.copyOfRange(buf, 4, 8));
+                assertThat(payload).isEqualTo(Arrays.copyOf(data, 1000));
+                client.close();
+            } finally {
+                fakeServer.shutdownNow();
+            }
+        }
+    }
+}
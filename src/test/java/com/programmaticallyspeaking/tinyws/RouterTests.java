@@ -0,0 +1,90 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.Router;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertThrows;
+
+public class RouterTests {
+
+    private Router<String> router;
+
+    @BeforeMethod
+    public void setup() {
+        router = new Router<>();
+        router.add("/", "root");
+        router.add("/rooms", "rooms");
+        router.add("/rooms/lobby", "lobby");
+        router.add("/rooms/{id}", "room");
+        router.add("/rooms/{id}/users/{user}", "user");
+        router.add("/rooms/lobby/chat", "lobby chat");
+        router.add("/static/*", "static");
+        router.add("/trailing/", "trailing");
+    }
+
+    @DataProvider
+    public Object[][] paths() {
+        return new Object[][] {
+                {"/", "root"},
+                {"/rooms", "rooms"},
+                {"/rooms/lobby", "lobby"},
+                {"/rooms/42", "room"},
+                {"/rooms/42/users/bob", "user"},
+                {"/rooms/lobby/chat", "lobby chat"},
+                {"/rooms/lobby/users/bob", "user"},
+                {"/static/js/app.js", "static"},
+                {"/static/", "static"},
+                {"/trailing/", "trailing"},
+                {"/trailing", null},
+                {"/rooms/", null},
+                {"/rooms/42/users", null},
+                {"/unknown", null},
+                {"", null},
+        };
+    }
+
+    @Test(dataProvider = "paths")
+    public void Path_should_be_routed(String path, String expected) {
+        Router.Match<String> match = router.match(path);
+        assertThat(match != null ? match.value : null).isEqualTo(expected);
+    }
+
+    @Test
+    public void Parameters_should_be_extracted() {
+        Router.Match<String> match = router.match("/rooms/lobby/users/bob");
+        assertThat(match.parameters).containsEntry("id", "lobby").containsEntry("user", "bob").hasSize(2);
+    }
+
+    @Test
+    public void Wildcard_value_should_be_the_rest_of_the_path() {
+        assertThat(router.match("/static/js/app.js").parameters).containsEntry("*", "js/app.js");
+    }
+
+    @Test
+    public void Match_should_refer_to_the_registered_route() {
+        assertThat(router.match("/rooms/42/users/bob").route).isEqualTo("/rooms/{id}/users/{user}");
+    }
+
+    @Test
+    public void Literal_route_should_have_no_parameters() {
+        assertThat(router.match("/rooms/lobby").parameters).isEmpty();
+    }
+
+    @Test
+    public void Conflicting_parameter_names_should_be_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> router.add("/rooms/{name}/x", "x"));
+    }
+
+    @Test
+    public void Wildcard_that_is_not_last_should_be_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> router.add("/a/*/b", "x"));
+    }
+
+    @Test
+    public void Route_not_starting_with_slash_should_be_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> router.add("rooms", "x"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.Router;
+
+import java.util.Random;
+
+/**
+ * Measures route lookups per second with 10000 registered routes, a mix of literal, parameterized and wildcard
+ * routes. Run the main method, e.g. using "gradle benchmark -Pbenchmark=RoutingBenchmark".
+ */
+public class RoutingBenchmark {
+    private static final int Routes = 10000;
+    private static final int Paths = 1000;
+    private static final int Iterations = 5000000;
+
+    public static void main(String[] args) {
+        Router<Integer> router = new Router<>();
+        for (int i = 0; i < Routes; i++) {
+            switch (i % 4) {
+                case 0: router.add("/api/v1/resource" + i, i); break;
+                case 1: router.add("/api/v1/resource" + i + "/{id}", i); break;
+                case 2: router.add("/rooms" + i + "/{room}/users/{user}", i); break;
+                default: router.add("/static" + i + "/*", i); break;
+            }
+        }
+
+        Random random = new Random(42);
+        String[] paths = new String[Paths];
+        for (int i = 0; i < Paths; i++) {
+            int r = random.nextInt(Routes);
+            switch (r % 4) {
+                case 0: paths[i] = "/api/v1/resource" + r; break;
+                case 1: paths[i] = "/api/v1/resource" + r + "/" + random.nextInt(1000000); break;
+                case 2: paths[i] = "/rooms" + r + "/room" + i + "/users/user" + i; break;
+                default: paths[i] = "/static" + r + "/js/lib/app" + i + ".js"; break;
+            }
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long matched = 0;
+            long before = System.nanoTime();
+            for (int i = 0; i < Iterations; i++) {
+                if (router.match(paths[i % Paths]) != null) matched++;
+            }
+            long elapsed = System.nanoTime() - before;
+            System.out.printf("Round %d: %.0f lookups/s, %.0f ns/lookup (%d matched)%n", round + 1,
+                    Iterations / (elapsed / 1e9), (double) elapsed / Iterations, matched);
+        }
+    }
+}
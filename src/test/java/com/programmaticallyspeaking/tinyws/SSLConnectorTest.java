@@ -0,0 +1,22 @@
+package com.programmaticallyspeaking.tinyws;
+
+/**
+ * Runs the connector tests over SSL.
+ */
+public class SSLConnectorTest extends ConnectorTest {
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andSSL(SSLTesting.createSSLContextForTests(true));
+    }
+
+    @Override
+    protected Server.Options configureConnector(Server.Options options) throws Exception {
+        return options.andSSL(SSLTesting.createSSLContextForTests(false));
+    }
+
+    @Override
+    protected String scheme() {
+        return "wss";
+    }
+}
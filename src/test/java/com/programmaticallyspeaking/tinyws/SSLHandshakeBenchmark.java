@@ -0,0 +1,71 @@
+package com.programmaticallyspeaking.tinyws;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures SSL handshakes per second, with and without session resumption, using the test keystore. Run the main
+ * method, e.g. using "gradle benchmark -Pbenchmark=SSLHandshakeBenchmark". An optional argument specifies the TLS
+ * protocol (default TLSv1.2), and a second one whether the server uses session tickets (default: the JDK default).
+ */
+public class SSLHandshakeBenchmark {
+    private static final int Warmup = 200;
+    private static final int Iterations = 1000;
+    private static final byte[] Request = "GET /unknown HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        String protocol = args.length > 0 ? args[0] : "TLSv1.2";
+        // Read by the JDK when an SSL context is created, so it must be set before the server context is created.
+        if (args.length > 1) System.setProperty("jdk.tls.server.enableSessionTicketExtension", args[1]);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        int port = Benchmarks.freePort();
+        Server server = new Server(executor, Server.Options.withPort(port)
+                .andAddress(InetAddress.getLoopbackAddress())
+                .andSSL(SSLTesting.createSSLContextForTests(true))
+                .andSSLSessionCache(10000, 600));
+        server.start();
+        try {
+            SSLContext clientContext = SSLTesting.createSSLContextForTests(false);
+            SSLSocketFactory factory = clientContext.getSocketFactory();
+
+            for (boolean resume : new boolean[] { false, true }) {
+                run(factory, port, protocol, resume, Warmup);
+                long fullBefore = server.metrics().fullSSLHandshakes();
+                long resumedBefore = server.metrics().resumedSSLHandshakes();
+                long before = System.nanoTime();
+                run(factory, port, protocol, resume, Iterations);
+                double elapsedSec = (System.nanoTime() - before) / 1e9;
+                System.out.printf("%s, resumption %s: %.0f handshakes/s (server: %d full, %d resumed)%n", protocol,
+                        resume ? "enabled" : "disabled", Iterations / elapsedSec,
+                        server.metrics().fullSSLHandshakes() - fullBefore,
+                        server.metrics().resumedSSLHandshakes() - resumedBefore);
+            }
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void run(SSLSocketFactory factory, int port, String protocol, boolean resume, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            try (SSLSocket socket = (SSLSocket) factory.createSocket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setEnabledProtocols(new String[] { protocol });
+                socket.setTcpNoDelay(true);
+                socket.startHandshake();
+                // Make a request and read the response. For TLS 1.3, this is also when the client receives the
+                // session ticket that makes resumption possible.
+                socket.getOutputStream().write(Request);
+                while (socket.getInputStream().read() >= 0) {
+                    // read until the server closes the connection
+                }
+                // Without resumption, make sure that the client cannot offer the session again.
+                if (!resume) socket.getSession().invalidate();
+            }
+        }
+    }
+}
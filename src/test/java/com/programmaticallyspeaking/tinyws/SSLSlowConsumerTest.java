@@ -0,0 +1,19 @@
+package com.programmaticallyspeaking.tinyws;
+
+import java.net.Socket;
+
+/**
+ * Runs the slow consumer tests over SSL, where closing a slow client must not wait for a write that is blocked by it.
+ */
+public class SSLSlowConsumerTest extends SlowConsumerTest {
+
+    @Override
+    protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
+        return super.configureAdditionalOptions(options).andSSL(SSLTesting.createSSLContextForTests(true));
+    }
+
+    @Override
+    protected Socket createSocket() throws Exception {
+        return SSLTesting.createSSLContextForTests(false).getSocketFactory().createSocket();
+    }
+}
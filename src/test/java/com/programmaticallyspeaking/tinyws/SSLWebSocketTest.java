@@ -6,6 +6,8 @@ import org.testng.annotations.Test;
 import javax.net.ssl.SSLContext;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.Collections;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -16,10 +18,12 @@ public class SSLWebSocketTest extends ClientTestBase {
         return new URI("wss://" + host + ":" + port);
     }
 
+    private SSLContext sslContext;
+
     @Override
     protected Server.Options configureAdditionalOptions(Server.Options options) throws Exception {
-        SSLContext sslContext = SSLTesting.createSSLContextForTests(true);
-        return super.configureAdditionalOptions(options).andSSL(sslContext);
+        sslContext = SSLTesting.createSSLContextForTests(true);
+        return super.configureAdditionalOptions(options).andSSL(sslContext).andSSLSessionCache(100, 60);
     }
 
     @Override
@@ -36,4 +40,33 @@ public class SSLWebSocketTest extends ClientTestBase {
         SimpleClient cl = sendTextUsingSSL("hello world");
         assertThat(cl.messages).containsExactly("hello world");
     }
+
+    @Test
+    public void Message_spanning_multiple_TLS_records_should_be_echoed() throws Exception {
+        String text = String.join("", Collections.nCopies(10000, "0123456789"));
+        SimpleClient cl = sendTextUsingSSL(text);
+        assertThat(cl.messages).containsExactly(text);
+    }
+
+    @Test
+    public void Session_cache_should_be_configured() {
+        assertThat(sslContext.getServerSessionContext().getSessionCacheSize()).isEqualTo(100);
+        assertThat(sslContext.getServerSessionContext().getSessionTimeout()).isEqualTo(60);
+    }
+
+    @Test
+    public void Handshakes_should_be_counted() throws Exception {
+        long before = server().metrics().fullSSLHandshakes() + server().metrics().resumedSSLHandshakes();
+        sendTextUsingSSL("hello world");
+        long after = server().metrics().fullSSLHandshakes() + server().metrics().resumedSSLHandshakes();
+        assertThat(after).isEqualTo(before + 1);
+    }
+
+    @Test
+    public void Closing_a_client_that_doesnt_read_should_not_block() throws Exception {
+        // The forced close when the drain times out must not wait for the writer that is blocked by the client.
+        long millis = NonReadingClient.drainWhileBlocked(sslContext, SSLTesting.createSSLContextForTests(false),
+                Duration.ofSeconds(1));
+        assertThat(millis).isLessThan(2000);
+    }
 }
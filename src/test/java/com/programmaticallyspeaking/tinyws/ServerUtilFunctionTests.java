@@ -3,9 +3,18 @@ package com.programmaticallyspeaking.tinyws;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import javax.net.ssl.SSLContext;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.internal.junit.ArrayAsserts.assertArrayEquals;
@@ -76,4 +85,50 @@ public class ServerUtilFunctionTests {
         double bytesPerMs = (data.length * count) / elapsedMs;
         System.out.println("bytes / ms = " + bytesPerMs);
     }
+
+    @Test
+    public void Outbound_frames_should_not_be_fragmented_by_default() {
+        assertThat(Server.Options.withPort(0).outboundFrameSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void Record_aligned_frames_should_fill_a_TLS_record_including_the_header() throws Exception {
+        Server.Options options = Server.Options.withPort(0).andSSL(SSLContext.getDefault()).andRecordAlignedFrames(true);
+        assertThat(options.outboundFrameSize()).isEqualTo(16384 - 4);
+    }
+
+    @Test
+    public void Record_aligned_frames_should_respect_a_smaller_max_frame_size() throws Exception {
+        Server.Options options = Server.Options.withPort(0).andSSL(SSLContext.getDefault()).andRecordAlignedFrames(true)
+                .andMaxFrameSize(1000);
+        assertThat(options.outboundFrameSize()).isEqualTo(1000);
+    }
+
+    @Test
+    public void Record_aligned_frames_should_not_apply_without_SSL() {
+        assertThat(Server.Options.withPort(0).andRecordAlignedFrames(true).outboundFrameSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void ChannelOutputStream_should_write_all_of_a_write_larger_than_a_chunk() throws Exception {
+        byte[] data = new byte[200000];
+        new Random(42).nextBytes(data);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+                 SocketChannel accepted = serverChannel.accept()) {
+                CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+                    byte[] b = new byte[data.length - 1];
+                    try {
+                        new DataInputStream(new Server.ChannelInputStream(client)).readFully(b);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return b;
+                });
+                new Server.ChannelOutputStream(accepted).write(data, 1, data.length - 1);
+                assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), read.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.programmaticallyspeaking.tinyws;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_17;
@@ -13,11 +14,15 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 class SimpleClient extends WebSocketClient {
     private CountDownLatch closeLatch = new CountDownLatch(1);
 
     List<String> messages = new ArrayList<>();
+    volatile int closeCode;
+    volatile long closedAt;
+    private CountDownLatch pongLatch = new CountDownLatch(1);
 
     void sendRawData(byte[] data) {
         ((DraftThatAllowsUsToSendBogusData) getConnection().getDraft()).setDataToSend(data);
@@ -45,12 +50,24 @@ class SimpleClient extends WebSocketClient {
     }
 
     public void onClose(int code, String reason, boolean remote) {
+        closeCode = code;
+        closedAt = System.nanoTime();
         closeLatch.countDown();
     }
 
     public void onError(Exception ex) {
     }
 
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f) {
+        pongLatch.countDown();
+    }
+
+    boolean sendPingAndAwaitPong(long timeoutMs) throws InterruptedException {
+        sendRawData(new byte [] { (byte)137, 0 });
+        return pongLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
     void sendClose(int code) {
         // We just want to send the close frame and let the remote close the connection, otherwise we might
         // not receive an echo response in time.
@@ -0,0 +1,279 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.SlowConsumerPolicy;
+import org.testng.annotations.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlowConsumerTest extends ClientTestBase {
+    private static final int MessageCount = 1000;
+    private static final int MessageSize = 60000;
+    private static final long Budget = 1000000;
+    private static final int Keys = 10;
+
+    private volatile BurstHandler lastHandler;
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+            server.addHandlerFactory("/" + policy.name(), () -> lastHandler = new BurstHandler(), policy, Budget);
+        }
+        // A budget that the whole burst fits in, so that only the unqueued message can be too much.
+        server.addHandlerFactory("/unqueued", () -> lastHandler = new BurstHandler(),
+                SlowConsumerPolicy.CLOSE_TRY_AGAIN_LATER, 2L * MessageCount * MessageSize);
+    }
+
+    /**
+     * Sends a burst of numbered binary messages when the client sends a text message. For "u", the burst is
+     * followed by a message from a direct buffer, which isn't queued.
+     */
+    static class BurstHandler extends EchoHandler {
+        private Server.WebSocketClient client;
+        final CountDownLatch burstDone = new CountDownLatch(1);
+        final CountDownLatch closedByServer = new CountDownLatch(1);
+        volatile int failedAt = -1;
+        volatile int closeCode;
+        volatile Exception unqueuedFailure;
+
+        @Override
+        public void onOpened(Server.WebSocketClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public void onTextMessage(CharSequence text) {
+            boolean isKeyed = "k".contentEquals(text);
+            try {
+                for (int i = 0; i < MessageCount; i++) {
+                    byte[] message = new byte[MessageSize];
+                    Server.numberToBytes(i, 4, message);
+                    if (isKeyed) client.sendBinaryData(i % Keys, message);
+                    else client.sendBinaryData(message);
+                    failedAt = i + 1;
+                }
+                failedAt = -1;
+                if ("u".contentEquals(text)) {
+                    try {
+                        client.sendBinaryData(ByteBuffer.allocateDirect(MessageSize));
+                    } catch (IOException | UnsupportedOperationException e) {
+                        unqueuedFailure = e;
+                    }
+                }
+            } catch (IOException e) {
+                // failedAt is the index of the message that failed
+            } finally {
+                burstDone.countDown();
+            }
+        }
+
+        @Override
+        public void onClosedByServer(int code, String reason) {
+            closeCode = code;
+            closedByServer.countDown();
+        }
+    }
+
+    /**
+     * Creates an unconnected socket to connect to the server with.
+     */
+    protected Socket createSocket() throws Exception {
+        return new Socket();
+    }
+
+    private Socket connect(SlowConsumerPolicy policy) throws Exception {
+        return connect(policy, "x");
+    }
+
+    private Socket connect(SlowConsumerPolicy policy, String request) throws Exception {
+        return connect("/" + policy.name(), request);
+    }
+
+    private Socket connect(String endpoint, String request) throws Exception {
+        Socket socket = createSocket();
+        // A small receive buffer, so that the server's writes block soon.
+        socket.setReceiveBufferSize(65536);
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setSoTimeout(1000);
+        socket.getOutputStream().write(("GET " + endpoint + " HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n" +
+                "Connection: Upgrade\r\nSec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        InputStream in = socket.getInputStream();
+        for (int matched = 0; matched < 4; ) matched = readByte(in) == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : 0;
+        // A masked text frame with an all-zero mask
+        socket.getOutputStream().write(new byte[] { (byte) 0x81, (byte) 0x81, 0, 0, 0, 0, (byte) request.charAt(0) });
+        return socket;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new IOException("Unexpected end of stream");
+        return b;
+    }
+
+    // Reads binary messages until there are no more, and returns their numbers.
+    private static List<Integer> readMessages(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        List<Integer> numbers = new ArrayList<>();
+        try {
+            while (true) {
+                int b0 = in.read();
+                if (b0 < 0 || (b0 & 15) == 8) break;
+                readByte(in);
+                int len = (readByte(in) << 8) | readByte(in);
+                int number = 0;
+                for (int i = 0; i < len; i++) {
+                    int b = readByte(in);
+                    if (i < 4) number = (number << 8) | b;
+                }
+                numbers.add(number);
+            }
+        } catch (SocketTimeoutException ex) {
+            // no more messages
+        }
+        return numbers;
+    }
+
+    private BurstHandler awaitBurst() throws InterruptedException {
+        for (int i = 0; i < 100 && lastHandler == null; i++) Thread.sleep(10);
+        BurstHandler handler = lastHandler;
+        assertThat(handler.burstDone.await(5, TimeUnit.SECONDS)).isTrue();
+        return handler;
+    }
+
+    @Test
+    public void DROP_NEWEST_should_drop_new_messages_without_blocking_the_sender() throws Exception {
+        lastHandler = null;
+        long droppedBefore = server().metrics().droppedNewestMessages();
+        try (Socket socket = connect(SlowConsumerPolicy.DROP_NEWEST)) {
+            BurstHandler handler = awaitBurst();
+            assertThat(handler.failedAt).isEqualTo(-1);
+            List<Integer> numbers = readMessages(socket);
+            assertThat(numbers.size()).isLessThan(MessageCount);
+            assertThat(numbers).startsWith(0, 1, 2).isSorted();
+            assertThat(server().metrics().droppedNewestMessages() - droppedBefore).isEqualTo(MessageCount - numbers.size());
+        }
+    }
+
+    @Test
+    public void DROP_OLDEST_should_drop_queued_messages_without_blocking_the_sender() throws Exception {
+        lastHandler = null;
+        long droppedBefore = server().metrics().droppedOldestMessages();
+        try (Socket socket = connect(SlowConsumerPolicy.DROP_OLDEST)) {
+            BurstHandler handler = awaitBurst();
+            assertThat(handler.failedAt).isEqualTo(-1);
+            List<Integer> numbers = readMessages(socket);
+            assertThat(numbers.size()).isLessThan(MessageCount);
+            // The first messages may be dropped too, if the burst fills the queue before writing starts.
+            assertThat(numbers).endsWith(MessageCount - 1).isSorted();
+            assertThat(server().metrics().droppedOldestMessages() - droppedBefore).isEqualTo(MessageCount - numbers.size());
+        }
+    }
+
+    @Test
+    public void Keyed_messages_should_replace_queued_messages_with_the_same_key() throws Exception {
+        lastHandler = null;
+        long conflatedBefore = server().metrics().conflatedMessages();
+        long droppedBefore = server().metrics().droppedNewestMessages();
+        try (Socket socket = connect(SlowConsumerPolicy.DROP_NEWEST, "k")) {
+            BurstHandler handler = awaitBurst();
+            assertThat(handler.failedAt).isEqualTo(-1);
+            List<Integer> numbers = readMessages(socket);
+            assertThat(numbers.size()).isLessThan(MessageCount);
+            // The client gets the latest value for each key.
+            assertThat(numbers.subList(numbers.size() - Keys, numbers.size()))
+                    .containsExactlyInAnyOrder(990, 991, 992, 993, 994, 995, 996, 997, 998, 999);
+            assertThat(server().metrics().conflatedMessages() - conflatedBefore).isEqualTo(MessageCount - numbers.size());
+            // One message per key fits in the budget.
+            assertThat(server().metrics().droppedNewestMessages()).isEqualTo(droppedBefore);
+        }
+    }
+
+    @Test
+    public void BLOCK_should_block_the_sender_until_the_client_reads() throws Exception {
+        lastHandler = null;
+        long blockedBefore = server().metrics().blockedSends();
+        try (Socket socket = connect(SlowConsumerPolicy.BLOCK)) {
+            Thread.sleep(300);
+            BurstHandler handler = lastHandler;
+            assertThat(handler.burstDone.getCount()).isEqualTo(1);
+            assertThat(server().metrics().blockedSends()).isGreaterThan(blockedBefore);
+            List<Integer> numbers = readMessages(socket);
+            assertThat(numbers).hasSize(MessageCount).isSorted();
+            assertThat(handler.burstDone.await(1, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    public void CLOSE_TRY_AGAIN_LATER_should_close_the_connection_with_1013() throws Exception {
+        assertClosesWith(SlowConsumerPolicy.CLOSE_TRY_AGAIN_LATER, 1013);
+    }
+
+    @Test
+    public void CLOSE_POLICY_VIOLATION_should_close_the_connection_with_1008() throws Exception {
+        assertClosesWith(SlowConsumerPolicy.CLOSE_POLICY_VIOLATION, 1008);
+    }
+
+    @Test
+    public void A_close_policy_should_close_the_connection_if_an_unqueued_message_waits_too_long() throws Exception {
+        lastHandler = null;
+        long closesBefore = server().metrics().slowConsumerCloses();
+        try (Socket socket = connect("/unqueued", "u")) {
+            BurstHandler handler = awaitBurst();
+            assertThat(handler.failedAt).isEqualTo(-1);
+            assertThat(handler.unqueuedFailure).isInstanceOf(IOException.class);
+            assertThat(handler.closedByServer.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(handler.closeCode).isEqualTo(1013);
+            assertThat(server().metrics().slowConsumerCloses() - closesBefore).isEqualTo(1);
+            // The connection is gone, so the client never gets the whole burst.
+            try {
+                assertThat(readMessages(socket).size()).isLessThan(MessageCount);
+            } catch (IOException ignored) {
+                // reset by peer
+            }
+        }
+    }
+
+    @Test
+    public void A_drop_policy_should_reject_an_unqueued_message() throws Exception {
+        lastHandler = null;
+        try (Socket socket = connect(SlowConsumerPolicy.DROP_NEWEST, "u")) {
+            BurstHandler handler = awaitBurst();
+            assertThat(handler.unqueuedFailure).isInstanceOf(UnsupportedOperationException.class);
+            // The connection is still usable for queued messages.
+            assertThat(readMessages(socket)).isNotEmpty();
+        }
+    }
+
+    private void assertClosesWith(SlowConsumerPolicy policy, int code) throws Exception {
+        lastHandler = null;
+        long closesBefore = server().metrics().slowConsumerCloses();
+        try (Socket socket = connect(policy)) {
+            BurstHandler handler = awaitBurst();
+            assertThat(handler.failedAt).isGreaterThan(0).isLessThan(MessageCount);
+            // The client doesn't read, so the close waits for the message being written before giving up on it.
+            assertThat(handler.closedByServer.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(handler.closeCode).isEqualTo(code);
+            assertThat(server().metrics().slowConsumerCloses() - closesBefore).isEqualTo(1);
+            // The connection is gone.
+            try {
+                readMessages(socket);
+            } catch (IOException ignored) {
+                // reset by peer
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.programmaticallyspeaking.tinyws;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StaticFileHandlerTest extends HttpTestBase {
+
+    private Path root;
+    private byte[] largeContent;
+
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        try {
+            root = Files.createTempDirectory("tinyws");
+            Files.write(root.resolve("hello.txt"), "hello world".getBytes(StandardCharsets.UTF_8));
+            Files.createDirectory(root.resolve("dir"));
+            Files.write(root.resolve("dir/index.html"), "<html></html>".getBytes(StandardCharsets.UTF_8));
+            largeContent = new byte[300000];
+            new Random(42).nextBytes(largeContent);
+            Files.write(root.resolve("large.bin"), largeContent);
+            Files.write(root.getParent().resolve(root.getFileName() + ".secret"), new byte[1]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Cache small files only, so that the large file is sent using sendFile.
+        server.setFallbackHandler(new Server.StaticFileHandler(root, 65536, 1024));
+    }
+
+    @AfterClass
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(root.getParent().resolve(root.getFileName() + ".secret"));
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private HttpURLConnection get(String path, String... headers) throws Exception {
+        return sendGET(path, headers(headers), c -> {});
+    }
+
+    private byte[] readBody(HttpURLConnection conn) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = conn.getInputStream()) {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) bytes.write(buf, 0, len);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void A_file_should_be_served_with_content_type() throws Exception {
+        HttpURLConnection conn = get("/hello.txt");
+        assertThat(new String(readBody(conn), StandardCharsets.UTF_8)).isEqualTo("hello world");
+        assertThat(conn.getContentType()).isEqualTo("text/plain; charset=utf-8");
+    }
+
+    @Test
+    public void A_directory_should_serve_its_index_file() throws Exception {
+        HttpURLConnection conn = get("/dir/");
+        assertThat(new String(readBody(conn), StandardCharsets.UTF_8)).isEqualTo("<html></html>");
+    }
+
+    @Test
+    public void A_large_file_should_be_served() throws Exception {
+        HttpURLConnection conn = get("/large.bin");
+        assertThat(readBody(conn)).isEqualTo(largeContent);
+    }
+
+    @Test
+    public void A_matching_If_None_Match_should_result_in_304() throws Exception {
+        String etag = get("/hello.txt").getHeaderField("ETag");
+        HttpURLConnection conn = get("/hello.txt", "If-None-Match", etag);
+        assertThat(conn.getResponseCode()).isEqualTo(304);
+    }
+
+    @Test
+    public void A_range_request_should_result_in_partial_content() throws Exception {
+        HttpURLConnection conn = get("/hello.txt", "Range", "bytes=6-");
+        assertThat(conn.getResponseCode()).isEqualTo(206);
+        assertThat(conn.getHeaderField("Content-Range")).isEqualTo("bytes 6-10/11");
+        assertThat(new String(readBody(conn), StandardCharsets.UTF_8)).isEqualTo("world");
+    }
+
+    @Test
+    public void A_range_request_for_a_large_file_should_result_in_partial_content() throws Exception {
+        HttpURLConnection conn = get("/large.bin", "Range", "bytes=1000-1999");
+        assertThat(readBody(conn)).isEqualTo(java.util.Arrays.copyOfRange(largeContent, 1000, 2000));
+    }
+
+    @Test
+    public void An_unsatisfiable_range_should_result_in_416() throws Exception {
+        HttpURLConnection conn = get("/hello.txt", "Range", "bytes=100-");
+        assertThat(conn.getResponseCode()).isEqualTo(416);
+        assertThat(conn.getHeaderField("Content-Range")).isEqualTo("bytes */11");
+    }
+
+    @Test
+    public void A_path_outside_of_the_root_should_result_in_404() throws Exception {
+        HttpURLConnection conn = get("/%2e%2e/" + root.getFileName() + ".secret");
+        assertThat(conn.getResponseCode()).isEqualTo(404);
+    }
+
+    @Test
+    public void An_unknown_file_should_result_in_404() throws Exception {
+        assertThat(get("/nope.txt").getResponseCode()).isEqualTo(404);
+    }
+
+    @Test
+    public void A_modified_file_should_not_be_served_from_the_cache() throws Exception {
+        Path file = root.resolve("changing.txt");
+        Files.write(file, "before".getBytes(StandardCharsets.UTF_8));
+        assertThat(new String(readBody(get("/changing.txt")), StandardCharsets.UTF_8)).isEqualTo("before");
+        Files.write(file, "and after".getBytes(StandardCharsets.UTF_8));
+        assertThat(new String(readBody(get("/changing.txt")), StandardCharsets.UTF_8)).isEqualTo("and after");
+    }
+
+    @DataProvider
+    public Object[][] ranges() {
+        return new Object[][] {
+                {"bytes=0-4", new long[] {0, 4}},
+                {"bytes=5-", new long[] {5, 9}},
+                {"bytes=-3", new long[] {7, 9}},
+                {"bytes=-30", new long[] {0, 9}},
+                {"bytes=8-100", new long[] {8, 9}},
+                {"bytes=10-", new long[0]},
+                {"bytes=-0", new long[0]},
+                {"bytes=4-2", null},
+                {"bytes=0-1,4-5", null},
+                {"items=0-1", null},
+                {"bytes=x-1", null},
+        };
+    }
+
+    @Test(dataProvider = "ranges")
+    public void Range_header_should_be_parsed(String value, long[] expected) {
+        assertThat(Server.StaticFileHandler.parseRange(value, 10)).isEqualTo(expected);
+    }
+}
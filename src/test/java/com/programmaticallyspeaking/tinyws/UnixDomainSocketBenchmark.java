@@ -0,0 +1,103 @@
+package com.programmaticallyspeaking.tinyws;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the round-trip latency of echoed messages over loopback TCP and over a Unix domain socket, e.g. for a
+ * sidecar proxy on the same host. The same client code is used for both; only the channel differs. Reports the mean,
+ * median and 99th percentile round-trip times. Run the main method, e.g. using
+ * "gradle benchmark -Pbenchmark=UnixDomainSocketBenchmark" (requires Java 16 or later). An optional argument is the
+ * message size (default 64 bytes, at most 125).
+ */
+public class UnixDomainSocketBenchmark {
+    private static final int Warmup = 20000;
+    private static final int Iterations = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int messageSize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        if (messageSize > 125) throw new IllegalArgumentException("Message size must be at most 125.");
+
+        Path dir = Files.createTempDirectory("tinyws");
+        try {
+            int port = Benchmarks.freePort();
+            run("loopback TCP", Server.Options.withPort(port).andAddress(InetAddress.getLoopbackAddress()),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), messageSize);
+            Path socketPath = dir.resolve("ws.sock");
+            run("Unix domain socket", Server.Options.withUnixDomainSocket(socketPath),
+                    UnixDomainSocketAddress.of(socketPath), messageSize);
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    private static void run(String name, Server.Options options, SocketAddress address, int messageSize) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Server server = new Server(executor, options.andLogger(Benchmarks.silentLogger()));
+        server.addHandlerFactory("/", EchoHandler::new);
+        server.start();
+        try (SocketChannel channel = address instanceof InetSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.INET) : SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            if (address instanceof InetSocketAddress) channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+            channel.write(ByteBuffer.wrap(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+            skipResponse(channel);
+
+            // A masked text frame with an all-zero mask
+            ByteBuffer request = ByteBuffer.allocate(6 + messageSize);
+            request.put((byte) 0x81).put((byte) (0x80 | messageSize)).putInt(0);
+            while (request.hasRemaining()) request.put((byte) 'x');
+            ByteBuffer response = ByteBuffer.allocate(2 + messageSize);
+
+            for (int i = 0; i < Warmup; i++) roundTrip(channel, request, response);
+            long[] nanos = new long[Iterations];
+            for (int i = 0; i < Iterations; i++) nanos[i] = roundTrip(channel, request, response);
+
+            Arrays.sort(nanos);
+            long sum = 0;
+            for (long n : nanos) sum += n;
+            System.out.printf("%-18s: mean %6.1f us, median %6.1f us, p99 %6.1f us, %8.0f round trips/s%n", name,
+                    sum / 1e3 / Iterations, nanos[Iterations / 2] / 1e3, nanos[Iterations * 99 / 100] / 1e3,
+                    Iterations / (sum / 1e9));
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void skipResponse(SocketChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        int matched = 0;
+        while (matched < 4) {
+            buf.clear();
+            if (channel.read(buf) < 0) throw new IOException("Unexpected end of stream");
+            byte b = buf.get(0);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+        }
+    }
+
+    private static long roundTrip(SocketChannel channel, ByteBuffer request, ByteBuffer response) throws IOException {
+        long before = System.nanoTime();
+        request.clear();
+        while (request.hasRemaining()) channel.write(request);
+        response.clear();
+        while (response.hasRemaining()) {
+            if (channel.read(response) < 0) throw new IOException("Unexpected end of stream");
+        }
+        return System.nanoTime() - before;
+    }
+}
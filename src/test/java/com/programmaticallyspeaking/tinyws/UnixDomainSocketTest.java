@@ -0,0 +1,89 @@
+package com.programmaticallyspeaking.tinyws;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class UnixDomainSocketTest {
+
+    private ExecutorService executor;
+    private Server server;
+    private Path dir;
+    private Path socketPath;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        if (!UnixDomainSockets.isSupported()) throw new SkipException("Unix domain sockets require Java 16 or later.");
+        dir = Files.createTempDirectory("tinyws");
+        socketPath = dir.resolve("ws.sock");
+        executor = Executors.newCachedThreadPool();
+        server = new Server(executor, Server.Options.withUnixDomainSocket(socketPath).andLogger(Benchmarks.silentLogger()));
+        server.addHandlerFactory("/", EchoHandler::new);
+        server.start();
+    }
+
+    @AfterMethod
+    public void stopServer() throws IOException {
+        if (server != null) server.stop();
+        if (executor != null) executor.shutdownNow();
+        if (dir != null) {
+            Files.deleteIfExists(socketPath);
+            Files.delete(dir);
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new IOException("Unexpected end of stream");
+        return b;
+    }
+
+    @Test
+    public void A_text_message_should_be_echoed() throws Exception {
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socketPath));
+            InputStream in = Channels.newInputStream(channel);
+            OutputStream out = Channels.newOutputStream(channel);
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            Server.Headers response = Server.Headers.readResponse(in, new URI("ws://localhost/"));
+            assertThat(response.accept()).isEqualTo("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+
+            // A masked text frame with an all-zero mask
+            out.write(new byte[] { (byte) 0x81, (byte) 0x82, 0, 0, 0, 0, 'h', 'i' });
+            byte[] frame = new byte[4];
+            for (int i = 0; i < frame.length; i++) frame[i] = (byte) readByte(in);
+            assertThat(frame).containsExactly((byte) 0x81, 2, 'h', 'i');
+        }
+    }
+
+    @Test
+    public void Stopping_the_server_should_delete_the_socket_file() {
+        assertThat(socketPath).exists();
+        server.stop();
+        assertThat(socketPath).doesNotExist();
+    }
+
+    @Test
+    public void Options_should_reject_a_null_path() {
+        assertThatThrownBy(() -> Server.Options.withUnixDomainSocket(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,113 @@
+package com.programmaticallyspeaking.tinyws;
+
+import com.programmaticallyspeaking.tinyws.Server.Utf8Text;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class Utf8TextTests {
+
+    private static Utf8Text text(String s) throws Server.WebSocketClosure {
+        return Utf8Text.validate(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void ASCII_text_should_have_the_length_and_chars_of_the_string() throws Exception {
+        Utf8Text text = text("hello");
+        assertThat(text.length()).isEqualTo(5);
+        assertThat(text.charAt(1)).isEqualTo('e');
+        assertThat(text.toString()).isEqualTo("hello");
+    }
+
+    @Test
+    public void Non_ASCII_text_should_count_UTF16_chars() throws Exception {
+        Utf8Text text = text("aå€𝄞!");
+        assertThat(text.utf8Length()).isEqualTo(1 + 2 + 3 + 4 + 1);
+        assertThat(text.length()).isEqualTo(6);
+        assertThat(text.charAt(0)).isEqualTo('a');
+        assertThat(text.charAt(3)).isEqualTo('\ud834');
+        assertThat(text.charAt(5)).isEqualTo('!');
+        assertThat(text.subSequence(1, 3).toString()).isEqualTo("å€");
+    }
+
+    @Test
+    public void The_UTF8_bytes_should_be_available_read_only() throws Exception {
+        ByteBuffer bytes = text("xå").utf8();
+        assertThat(bytes.isReadOnly()).isTrue();
+        assertThat(bytes.remaining()).isEqualTo(3);
+        assertThat(bytes.get(1)).isEqualTo((byte) 0xc3);
+    }
+
+    @Test
+    public void Texts_with_the_same_content_should_be_equal() throws Exception {
+        assertThat(text("abc")).isEqualTo(text("abc"));
+        assertThat(text("abc").hashCode()).isEqualTo(text("abc").hashCode());
+        assertThat(text("abc")).isNotEqualTo(text("abd"));
+    }
+
+    @DataProvider
+    public Object[][] invalid_data() {
+        return new Object[][] {
+            { new byte[] { (byte) 0x80 } }, // lone continuation byte
+            { new byte[] { (byte) 0xc0, (byte) 0x80 } }, // overlong 2-byte encoding
+            { new byte[] { (byte) 0xe0, (byte) 0x80, (byte) 0x80 } }, // overlong 3-byte encoding
+            { new byte[] { (byte) 0xed, (byte) 0xa0, (byte) 0x80 } }, // surrogate
+            { new byte[] { (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 } }, // above U+10FFFF
+            { new byte[] { 'a', (byte) 0xe2, (byte) 0x82 } }, // truncated
+            { new byte[] { (byte) 0xe2, 'a', (byte) 0xac } }, // non-continuation byte
+            { new byte[] { (byte) 0xff } },
+        };
+    }
+
+    @Test(dataProvider = "invalid_data")
+    public void Invalid_UTF8_should_result_in_1007(byte[] bytes) {
+        assertThatThrownBy(() -> Utf8Text.validate(bytes))
+                .isInstanceOf(Server.WebSocketClosure.class)
+                .hasFieldOrPropertyWithValue("code", 1007);
+    }
+
+    @Test
+    public void Validation_should_agree_with_the_JDK_decoder() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // Mostly valid sequences of random code points, sometimes with a random byte changed.
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(6); j > 0; j--) {
+                int max = new int[] { 0x80, 0x800, 0x10000, 0x110000 }[random.nextInt(4)];
+                int cp = random.nextInt(max);
+                if (cp >= 0xd800 && cp < 0xe000) continue;
+                sb.appendCodePoint(cp);
+            }
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0 && random.nextBoolean()) bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+
+            String expected;
+            try {
+                expected = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+            } catch (CharacterCodingException e) {
+                expected = null;
+            }
+            Utf8Text actual;
+            try {
+                actual = Utf8Text.validate(bytes.clone());
+            } catch (Server.WebSocketClosure e) {
+                actual = null;
+            }
+            if (expected == null) {
+                assertThat(actual).as("invalid bytes %s", Arrays.toString(bytes)).isNull();
+            } else {
+                assertThat(actual).as("valid bytes %s", Arrays.toString(bytes)).isNotNull();
+                assertThat(actual.length()).isEqualTo(expected.length());
+                assertThat(actual.toString()).isEqualTo(expected);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.programmaticallyspeaking.tinyws;
 
 import com.programmaticallyspeaking.tinyws.Server.WebSocketHandler;
+import org.mockito.ArgumentCaptor;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -28,6 +29,16 @@ public class WebSocketTest extends ClientTestBase {
         return useEchoHandler ? new EchoHandler() : super.createHandler();
     }
 
+    @Override
+    protected void onBeforeStart(Server server) {
+        super.onBeforeStart(server);
+        server.addHandlerFactory("/rooms/{id}/*", () -> {
+            WebSocketHandler h = createHandler();
+            createdHandlers.add(h);
+            return h;
+        });
+    }
+
     private void sendIncorrectFrame() throws Exception {
         SimpleClient.sendIncorrectFrame(createURI());
     }
@@ -44,7 +55,8 @@ public class WebSocketTest extends ClientTestBase {
     public void Incorrect_frame_should_invoke_onClosedByServer() throws Exception {
         sendIncorrectFrame();
         WebSocketHandler handler = createdHandlers.remove();
-        verify(handler, times(1)).onClosedByServer(1002, "Protocol error");
+        // The close frame is sent before the handler is invoked.
+        verify(handler, timeout(1000)).onClosedByServer(1002, "Protocol error");
     }
 
     @Test
@@ -58,7 +70,8 @@ public class WebSocketTest extends ClientTestBase {
     public void Proper_close_should_invoke_onClosedByClient() throws Exception {
         sendClose();
         WebSocketHandler handler = createdHandlers.remove();
-        verify(handler, times(1)).onClosedByClient(1001, null);
+        // The client may see the connection close before the server has invoked the handler.
+        verify(handler, timeout(1000).times(1)).onClosedByClient(1001, null);
     }
 
     @Test
@@ -74,4 +87,58 @@ public class WebSocketTest extends ClientTestBase {
         SimpleClient cl = sendText("hello world");
         assertThat(cl.messages).containsExactly("hello world");
     }
+
+    @Test
+    public void Close_from_handler_should_not_invoke_onFailure() throws Exception {
+        SimpleClient cl = new SimpleClient(createURI());
+        WebSocketHandler handler = createdHandlers.remove();
+        ArgumentCaptor<Server.WebSocketClient> client = ArgumentCaptor.forClass(Server.WebSocketClient.class);
+        verify(handler).onOpened(client.capture());
+        client.getValue().close();
+        cl.waitUntilClosed();
+        // Give the server a chance to notice that the socket was closed
+        Thread.sleep(100);
+        verify(handler, never()).onFailure(any());
+    }
+
+    @Test
+    public void Path_parameters_should_be_available_to_the_handler() throws Exception {
+        SimpleClient cl = new SimpleClient(new URI("ws://" + host + ":" + port + "/rooms/42/a/b"));
+        WebSocketHandler handler = createdHandlers.remove();
+        ArgumentCaptor<Server.WebSocketClient> client = ArgumentCaptor.forClass(Server.WebSocketClient.class);
+        verify(handler).onOpened(client.capture());
+        cl.close();
+        assertThat(client.getValue().pathParameters()).containsEntry("id", "42").containsEntry("*", "a/b");
+    }
+
+    private Server.WebSocketClient openedClient(WebSocketHandler handler) {
+        ArgumentCaptor<Server.WebSocketClient> client = ArgumentCaptor.forClass(Server.WebSocketClient.class);
+        verify(handler).onOpened(client.capture());
+        return client.getValue();
+    }
+
+    @Test
+    public void Messages_should_not_be_delivered_while_reading_is_paused() throws Exception {
+        SimpleClient cl = new SimpleClient(createURI());
+        WebSocketHandler handler = createdHandlers.remove();
+        Server.WebSocketClient client = openedClient(handler);
+        client.pauseReading();
+        cl.send("hello");
+        Thread.sleep(200);
+        verify(handler, never()).onTextMessage(any());
+        client.resumeReading();
+        verify(handler, timeout(2000)).onTextMessage(argThat(text -> "hello".contentEquals(text)));
+        cl.close();
+    }
+
+    @Test
+    public void Close_from_handler_should_work_while_reading_is_paused() throws Exception {
+        SimpleClient cl = new SimpleClient(createURI());
+        WebSocketHandler handler = createdHandlers.remove();
+        Server.WebSocketClient client = openedClient(handler);
+        client.pauseReading();
+        client.close();
+        cl.waitUntilClosed();
+        assertThat(cl.closeCode).isEqualTo(1001);
+    }
 }
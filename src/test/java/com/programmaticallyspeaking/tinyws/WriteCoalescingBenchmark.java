@@ -0,0 +1,134 @@
+package com.programmaticallyspeaking.tinyws;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Compares write coalescing settings when a handler sends bursts of small messages. For each burst, reports the time
+ * until the client has received the first message (the latency added by coalescing) and the time until it has
+ * received the whole burst, as well as the message throughput. Run the main method, e.g. using
+ * "gradle benchmark -Pbenchmark=WriteCoalescingBenchmark". Optional arguments are the burst size (default 50
+ * messages) and "ssl" to use SSL.
+ */
+public class WriteCoalescingBenchmark {
+    private static final int Warmup = 200;
+    private static final int Iterations = 1000;
+    private static final int MessageSize = 64;
+    // A masked text frame containing "go", with an all-zero mask
+    private static final byte[] Go = { (byte) 0x81, (byte) 0x82, 0, 0, 0, 0, 'g', 'o' };
+    // A masked text frame containing "gf" (go, then flush), with an all-zero mask
+    private static final byte[] GoFlush = { (byte) 0x81, (byte) 0x82, 0, 0, 0, 0, 'g', 'f' };
+    // A masked close frame without payload
+    private static final byte[] Close = { (byte) 0x88, (byte) 0x80, 0, 0, 0, 0 };
+
+    public static void main(String[] args) throws Exception {
+        int burstSize = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        boolean ssl = args.length > 1 && "ssl".equals(args[1]);
+
+        run("no coalescing", burstSize, ssl, Go, o -> o);
+        run("4096 B, 200 us", burstSize, ssl, Go, o -> o.andWriteCoalescing(4096, 200));
+        run("16384 B, 200 us", burstSize, ssl, Go, o -> o.andWriteCoalescing(16384, 200));
+        run("16384 B, 1000 us", burstSize, ssl, Go, o -> o.andWriteCoalescing(16384, 1000));
+        run("16384 B, flush", burstSize, ssl, GoFlush, o -> o.andWriteCoalescing(16384, 1000));
+    }
+
+    private static void run(String name, int burstSize, boolean ssl, byte[] request,
+                            Function<Server.Options, Server.Options> configure) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        int port = Benchmarks.freePort();
+        Server.Options options = Server.Options.withPort(port)
+                .andLogger(Benchmarks.silentLogger())
+                .andAddress(InetAddress.getLoopbackAddress());
+        if (ssl) options.andSSL(SSLTesting.createSSLContextForTests(true));
+        Server server = new Server(executor, configure.apply(options));
+        StringBuilder message = new StringBuilder();
+        while (message.length() < MessageSize) message.append('x');
+        server.addHandlerFactory("/", () -> new EchoHandler() {
+            private Server.WebSocketClient client;
+
+            @Override
+            public void onOpened(Server.WebSocketClient client) {
+                this.client = client;
+            }
+
+            @Override
+            public void onTextMessage(CharSequence text) {
+                try {
+                    for (int i = 0; i < burstSize; i++) client.sendTextMessage(message);
+                    if ("gf".contentEquals(text)) client.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        server.start();
+        try (Socket socket = ssl
+                ? SSLTesting.createSSLContextForTests(false).getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port)
+                : new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            skipResponse(in);
+
+            for (int i = 0; i < Warmup; i++) receiveBurst(in, out, request, burstSize);
+            long firstNanos = 0, totalNanos = 0;
+            for (int i = 0; i < Iterations; i++) {
+                long[] result = receiveBurst(in, out, request, burstSize);
+                firstNanos += result[0];
+                totalNanos += result[1];
+            }
+            System.out.printf("%-17s: first message after %7.1f us, burst after %7.1f us, %9.0f messages/s%n", name,
+                    firstNanos / 1e3 / Iterations, totalNanos / 1e3 / Iterations,
+                    (double) burstSize * Iterations / (totalNanos / 1e9));
+
+            out.write(Close);
+            out.flush();
+            while (in.read(new byte[16]) >= 0) {
+                // read until the server closes the connection
+            }
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void skipResponse(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Unexpected end of stream");
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+        }
+    }
+
+    // Returns the time until the first message was received, and the time until the whole burst was received.
+    private static long[] receiveBurst(InputStream in, OutputStream out, byte[] request, int burstSize) throws IOException {
+        long before = System.nanoTime();
+        out.write(request);
+        out.flush();
+        long first = 0;
+        for (int i = 0; i < burstSize; i++) {
+            readByte(in);
+            int len = readByte(in) & 127;
+            for (int j = 0; j < len; j++) readByte(in);
+            if (i == 0) first = System.nanoTime() - before;
+        }
+        return new long[] { first, System.nanoTime() - before };
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new IOException("Unexpected end of stream");
+        return b;
+    }
+}